@@ -0,0 +1,32 @@
+//
+// $Id$
+
+package com.threerings.messaging;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Acknowledges the receipt of a batch of messages immediately as long as processing doesn't throw
+ * an exception.
+ */
+public abstract class AckingBatchMessageListener
+    implements BatchMessageListener
+{
+    /**
+     * Calls {@link #processReceived} and acks the whole batch afterwards as long as it doesn't
+     * throw an exception.
+     */
+    public final void received (MessageBatch batch)
+        throws IOException
+    {
+        processReceived(batch.getMessages());
+        batch.ack();
+    }
+
+    /**
+     * Should be implemented in subclasses to process the messages synchronously. If the messages
+     * should be left in the queue, an exception should be thrown.
+     */
+    public abstract void processReceived (List<InMessage> messages) throws IOException;
+}
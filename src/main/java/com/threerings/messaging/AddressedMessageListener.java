@@ -4,9 +4,15 @@
 package com.threerings.messaging;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
 
 import com.samskivert.util.StringUtil;
 
+import com.threerings.messaging.util.RecentIdSet;
+
 /**
  * A listener that knows which queue and address it is interested in.
  */
@@ -22,6 +28,69 @@ public class AddressedMessageListener implements MessageListener
         this.queueName = queueName;
         this.address = address;
         _listener = listener;
+        _batchListener = null;
+        _maxBatchSize = 1;
+        _maxBatchWait = 0;
+    }
+
+    /**
+     * Creates a listener that processes messages in batches.  Once a message arrives, the batch
+     * is gathered until it holds the given number of messages, or the given time has passed,
+     * whichever comes first.
+     *
+     * @param maxBatchSize The most messages to put in a batch.
+     * @param maxBatchWait The longest to wait for a batch to fill, in milliseconds.
+     */
+    public AddressedMessageListener (String queueName, DestinationAddress address,
+        BatchMessageListener listener, int maxBatchSize, long maxBatchWait)
+    {
+        this.queueName = queueName;
+        this.address = address;
+        _listener = new SingleBatchListener(listener);
+        _batchListener = listener;
+        _maxBatchSize = maxBatchSize;
+        _maxBatchWait = maxBatchWait;
+    }
+
+    /**
+     * Creates a listener on the same queue and address as the given one, with the same options,
+     * that passes its messages to the given listener, or batches of them to the given batch
+     * listener if it isn't null.  Used by decorators that wrap the listener of another.
+     */
+    protected AddressedMessageListener (AddressedMessageListener source, MessageListener listener,
+        BatchMessageListener batchListener)
+    {
+        this(source, source.queueName, source.address, listener, batchListener);
+    }
+
+    /**
+     * Creates a listener with the same listener and options as the given one, on the given queue
+     * and address instead.  See {@link PartitionedAddress}.
+     */
+    protected AddressedMessageListener (AddressedMessageListener source, String queueName,
+        DestinationAddress address)
+    {
+        this(source, queueName, address, source._listener, source._batchListener);
+    }
+
+    protected AddressedMessageListener (AddressedMessageListener source, String queueName,
+        DestinationAddress address, MessageListener listener, BatchMessageListener batchListener)
+    {
+        this.queueName = queueName;
+        this.address = address;
+        _listener = (batchListener == null) ? listener : new SingleBatchListener(batchListener);
+        _batchListener = batchListener;
+        _maxBatchSize = source._maxBatchSize;
+        _maxBatchWait = source._maxBatchWait;
+        _admission = source._admission;
+        _laneWeights = source._laneWeights;
+        _processedIds = source._processedIds;
+        _reuseMessages = source._reuseMessages;
+        _minPrefetch = source._minPrefetch;
+        _maxPrefetch = source._maxPrefetch;
+        _minConsumers = source._minConsumers;
+        _maxConsumers = source._maxConsumers;
+        _failurePolicy = source._failurePolicy;
     }
 
     public void received (InMessage message) throws IOException
@@ -29,6 +98,232 @@ public class AddressedMessageListener implements MessageListener
         _listener.received(message);
     }
 
+    /**
+     * Returns the listener to pass batches of messages to, or null if messages are processed one
+     * at a time.
+     */
+    public BatchMessageListener getBatchListener ()
+    {
+        return _batchListener;
+    }
+
+    /**
+     * Returns the most messages to put in a batch.
+     */
+    public int getMaxBatchSize ()
+    {
+        return _maxBatchSize;
+    }
+
+    /**
+     * Returns the longest to wait for a batch to fill, in milliseconds.
+     */
+    public long getMaxBatchWait ()
+    {
+        return _maxBatchWait;
+    }
+
+    /**
+     * Sets the controller that decides which messages are processed when this listener falls
+     * behind.  This must be called before the listener is passed to
+     * {@link MessageConnection#listen}.
+     *
+     * @return this listener, for chaining.
+     */
+    public AddressedMessageListener setAdmissionController (AdmissionController admission)
+    {
+        _admission = admission;
+        return this;
+    }
+
+    /**
+     * Returns the admission controller for this listener, or null if every message is processed.
+     */
+    public AdmissionController getAdmissionController ()
+    {
+        return _admission;
+    }
+
+    /**
+     * Splits the messages waiting to be processed by this listener into lanes by their
+     * {@link SendOptions#priority}, so that higher priority messages don't wait behind a backlog
+     * of lower priority ones.  The priorities are divided evenly among the lanes, the first lane
+     * taking the lowest priorities.  Lanes take turns, each processing as many messages as its
+     * weight before letting the next lower lane have a go.  This must be called before the
+     * listener is passed to {@link MessageConnection#listen}.
+     *
+     * @param weights The weight of each lane, lowest priority first.
+     * @return this listener, for chaining.
+     */
+    public AddressedMessageListener setPriorityLanes (int... weights)
+    {
+        _laneWeights = weights.clone();
+        return this;
+    }
+
+    /**
+     * Returns the weights of the priority lanes, or null if messages are processed in the order
+     * they arrive.
+     */
+    public int[] getPriorityLanes ()
+    {
+        return _laneWeights;
+    }
+
+    /**
+     * Skips messages whose id has already been processed successfully by this listener within the
+     * given window, acknowledging them without passing them on.  This keeps work from being
+     * repeated when messages that were processed but not yet acknowledged are redelivered after a
+     * reconnect.  This must be called before the listener is passed to
+     * {@link MessageConnection#listen}.
+     *
+     * @param window How long message ids are remembered, in milliseconds.
+     * @param capacity How many ids can be remembered for half of the window.
+     * @return this listener, for chaining.
+     */
+    public AddressedMessageListener setDeduplication (long window, int capacity)
+    {
+        _processedIds = new RecentIdSet(window, capacity);
+        return this;
+    }
+
+    /**
+     * Returns the ids of recently processed messages, or null if messages aren't deduplicated.
+     */
+    public RecentIdSet getProcessedIds ()
+    {
+        return _processedIds;
+    }
+
+    /**
+     * Sets whether the {@link InMessage}s passed to this listener are reused from one message to
+     * the next, to cut down on garbage.  A reused message is only valid until {@link #received}
+     * returns, after which it will throw IllegalStateException if used; listeners that need to
+     * keep a message longer must hold on to {@link InMessage#detach} instead.  Per-message
+     * logging is skipped for such listeners.  This must be called before the listener is passed
+     * to {@link MessageConnection#listen}.
+     *
+     * @return this listener, for chaining.
+     */
+    public AddressedMessageListener setReuseMessages (boolean reuse)
+    {
+        _reuseMessages = reuse;
+        return this;
+    }
+
+    /**
+     * Returns whether messages passed to this listener are reused.
+     */
+    public boolean isReuseMessages ()
+    {
+        return _reuseMessages;
+    }
+
+    /**
+     * Has the number of messages handed to this listener ahead of processing tuned at runtime,
+     * between the given bounds, to keep it busy without hoarding messages other listeners on the
+     * same queue could be processing.  Without this, the server hands over as many messages as
+     * it likes.  This has no effect on batch listeners, and must be called before the listener
+     * is passed to {@link MessageConnection#listen}.
+     *
+     * @param minPrefetch The fewest unacknowledged messages to allow, at least 1.
+     * @param maxPrefetch The most unacknowledged messages to allow.
+     * @return this listener, for chaining.
+     */
+    public AddressedMessageListener setAdaptivePrefetch (int minPrefetch, int maxPrefetch)
+    {
+        Preconditions.checkArgument(minPrefetch > 0 && minPrefetch <= maxPrefetch,
+            "Invalid prefetch bounds");
+        _minPrefetch = minPrefetch;
+        _maxPrefetch = maxPrefetch;
+        return this;
+    }
+
+    /**
+     * Returns the fewest unacknowledged messages to allow when tuning prefetch, or 0 if it isn't
+     * tuned.
+     */
+    public int getMinPrefetch ()
+    {
+        return _minPrefetch;
+    }
+
+    /**
+     * Returns the most unacknowledged messages to allow when tuning prefetch, or 0 if it isn't
+     * tuned.
+     */
+    public int getMaxPrefetch ()
+    {
+        return _maxPrefetch;
+    }
+
+    /**
+     * Has the connection add and remove consumers of this listener's queue as its load changes,
+     * keeping between the given numbers of them: more when messages back up on the server or the
+     * consumers are kept busy, fewer when they sit idle.  Every consumer hands its messages to
+     * this listener, from a thread of its own, so the listener, and any admission controller set
+     * on it, must be thread-safe.  So that no one consumer is handed the whole queue, each is
+     * limited to a bounded number of unacknowledged messages: those set by
+     * {@link #setAdaptivePrefetch}, or if that isn't used, a fixed number, and at least a batch.
+     * This must be called before the listener is passed to {@link MessageConnection#listen}.
+     *
+     * @param minConsumers The fewest consumers to keep, at least 1.
+     * @param maxConsumers The most consumers to start.
+     * @return this listener, for chaining.
+     */
+    public AddressedMessageListener setAutoscale (int minConsumers, int maxConsumers)
+    {
+        Preconditions.checkArgument(minConsumers > 0 && minConsumers <= maxConsumers,
+            "Invalid consumer bounds");
+        _minConsumers = minConsumers;
+        _maxConsumers = maxConsumers;
+        return this;
+    }
+
+    /**
+     * Returns the fewest consumers to keep when autoscaling, or 0 if the listener isn't
+     * autoscaled.
+     */
+    public int getMinConsumers ()
+    {
+        return _minConsumers;
+    }
+
+    /**
+     * Returns the most consumers to start when autoscaling, or 0 if the listener isn't
+     * autoscaled.
+     */
+    public int getMaxConsumers ()
+    {
+        return _maxConsumers;
+    }
+
+    /**
+     * Sets what to do with messages this listener fails to process, by throwing an exception from
+     * {@link #received}: try them again later, and give up on them after a few attempts, rather
+     * than leaving them unacknowledged to come back in a flood the next time the connection is
+     * made.  A message that was acknowledged before the exception was thrown is left be.  When a
+     * batch fails, each of its messages is handed to the batch listener again in a batch of its
+     * own, and only those that fail again count as failed attempts.  This must be called before
+     * the listener is passed to {@link MessageConnection#listen}.
+     *
+     * @return this listener, for chaining.
+     */
+    public AddressedMessageListener setFailurePolicy (FailurePolicy policy)
+    {
+        _failurePolicy = policy;
+        return this;
+    }
+
+    /**
+     * Returns what to do with messages this listener fails to process, or null if they're left
+     * unacknowledged.
+     */
+    public FailurePolicy getFailurePolicy ()
+    {
+        return _failurePolicy;
+    }
+
     @Override
     public int hashCode ()
     {
@@ -58,8 +353,79 @@ public class AddressedMessageListener implements MessageListener
         return StringUtil.fieldsToString(this);
     }
 
+    /**
+     * Passes single messages, e.g., those sent from within the process, to a batch listener as a
+     * batch of one.
+     */
+    protected static class SingleBatchListener
+        implements MessageListener
+    {
+        public SingleBatchListener (BatchMessageListener listener)
+        {
+            _listener = listener;
+        }
+
+        public void received (final InMessage message)
+            throws IOException
+        {
+            _listener.received(new MessageBatch() {
+                public List<InMessage> getMessages () {
+                    return Collections.singletonList(message);
+                }
+                public void ack () throws IOException {
+                    message.ack();
+                }
+            });
+        }
+
+        @Override
+        public int hashCode ()
+        {
+            return _listener.hashCode();
+        }
+
+        @Override
+        public boolean equals (Object other)
+        {
+            return (other instanceof SingleBatchListener) &&
+                _listener.equals(((SingleBatchListener)other)._listener);
+        }
+
+        protected final BatchMessageListener _listener;
+    }
+
     /**
      * The delegate that implements the actual functionality to perform when a message is received.
      */
     protected final MessageListener _listener;
+
+    /** The listener to pass batches to, or null if we process one message at a time. */
+    protected final BatchMessageListener _batchListener;
+
+    /** The most messages to put in a batch. */
+    protected final int _maxBatchSize;
+
+    /** The longest to wait for a batch to fill, in milliseconds. */
+    protected final long _maxBatchWait;
+
+    /** Decides which messages to process when we're behind, or null to process them all. */
+    protected AdmissionController _admission;
+
+    /** The weights of our priority lanes, or null for plain FIFO processing. */
+    protected int[] _laneWeights;
+
+    /** The (hashed) ids of messages we've recently processed, or null if we don't dedupe. */
+    protected RecentIdSet _processedIds;
+
+    /** Whether the messages passed to us are reused, and so only valid during processing. */
+    protected boolean _reuseMessages;
+
+    /** The bounds of our tuned prefetch, or 0 if it isn't tuned. */
+    protected int _minPrefetch, _maxPrefetch;
+
+    /** The bounds on our number of consumers, or 0 if it isn't autoscaled. */
+    protected int _minConsumers, _maxConsumers;
+
+    /** What to do with messages we fail to process, or null to leave them unacknowledged. */
+    protected FailurePolicy _failurePolicy;
 }
@@ -0,0 +1,44 @@
+//
+// $Id$
+
+package com.threerings.messaging;
+
+/**
+ * Decides whether a received message should be processed, or dropped in favor of messages that
+ * matter more, when a listener falls behind.  Each listener should have its own controller, since
+ * controllers keep track of how their listener is doing.
+ *
+ * Implementations are only ever called from the thread processing messages for their listener.
+ */
+public interface AdmissionController
+{
+    /** What to do with a message that is up for processing. */
+    enum Decision {
+        /** Hand the message to the listener. */
+        PROCESS,
+        /** Acknowledge the message without processing it. */
+        SHED,
+        /**
+         * Put the message back at the end of its queue without processing it.  A message that
+         * has already been requeued a few times is shed instead, so that it doesn't go around
+         * forever while the listener stays behind.
+         */
+        REQUEUE
+    }
+
+    /**
+     * Called before a message is handed to the listener.
+     *
+     * @param message The message up for processing.
+     * @param queueDelay How long the message waited for its turn, in milliseconds.
+     */
+    Decision admit (InMessage message, long queueDelay);
+
+    /**
+     * Called after the listener has processed an admitted message, whether or not it succeeded.
+     *
+     * @param message The message that was processed.
+     * @param processingTime How long the listener spent on the message, in milliseconds.
+     */
+    void processed (InMessage message, long processingTime);
+}
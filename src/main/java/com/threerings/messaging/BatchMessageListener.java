@@ -0,0 +1,26 @@
+//
+// $Id$
+
+package com.threerings.messaging;
+
+import java.io.IOException;
+
+/**
+ * Listens for messages and processes them in batches, e.g., to write them all to a database in a
+ * single transaction.  See
+ * {@link AddressedMessageListener#AddressedMessageListener(String, DestinationAddress,
+ * BatchMessageListener, int, long)} for how batches are gathered.
+ *
+ * Implementations are expected to be stateless since this will be used on multiple threads.
+ */
+public interface BatchMessageListener
+{
+    /**
+     * Called when a batch of messages has been received. If the batch is processed successfully,
+     * {@link MessageBatch#ack} must be called to remove its messages from the queue. If the
+     * listener always processes batches synchronously in this method,
+     * {@link AckingBatchMessageListener} may be used to take care of acking.
+     */
+    void received (MessageBatch batch)
+        throws IOException;
+}
@@ -0,0 +1,43 @@
+//
+// $Id$
+
+package com.threerings.messaging;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Holds message bodies too large to send through the message server, for claim-check sends: the
+ * sender puts the body in the store and sends only its key, and the listener gets the body back
+ * out with the key.  The sender and its listeners must share the store.
+ *
+ * Implementations must be thread-safe.
+ */
+public interface BlobStore
+{
+    /**
+     * Stores the given body.
+     *
+     * @return the key to get it back with.
+     * @throws IOException The body could not be stored.
+     */
+    String put (byte[] body)
+        throws IOException;
+
+    /**
+     * Returns the body stored with the given key, positioned at its start.  The buffer may be
+     * read-only, and may read the body lazily.
+     *
+     * @throws IOException The body could not be found or read.
+     */
+    ByteBuffer get (String key)
+        throws IOException;
+
+    /**
+     * Removes the body stored with the given key, if it is still there.
+     *
+     * @throws IOException The body could not be removed.
+     */
+    void delete (String key)
+        throws IOException;
+}
@@ -0,0 +1,115 @@
+//
+// $Id$
+
+package com.threerings.messaging;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * A {@link ReplyingDestination} that remembers the replies of another one in a
+ * {@link ReplyCache}, so that repeating an identical request answers from the cache rather than
+ * going through the message server.  When several threads make the same request at once, only one
+ * of them sends it, and the others wait on its reply; they are then bound by the timeout of the
+ * request that was sent, rather than their own.
+ *
+ * This should only be used for requests whose replies stay the same for the lifetime of a cache
+ * entry, such as lookups of static data.
+ *
+ * This class is thread-safe.
+ */
+public class CachingReplyingDestination
+    implements ReplyingDestination
+{
+    /**
+     * Creates a destination with its own cache.
+     *
+     * @param delegate The destination to send requests that aren't cached to.
+     * @param addr The address of the delegate.
+     * @param ttl How long replies are kept, in milliseconds.
+     * @param maxEntries The most replies kept at once.
+     */
+    public CachingReplyingDestination (ReplyingDestination delegate, DestinationAddress addr,
+        long ttl, int maxEntries)
+    {
+        this(delegate, addr, new ReplyCache(ttl, maxEntries));
+    }
+
+    /**
+     * Creates a destination using the given, possibly shared, cache.
+     *
+     * @param delegate The destination to send requests that aren't cached to.
+     * @param addr The address of the delegate, which distinguishes its replies in the cache.
+     * @param cache The cache to keep replies in.
+     */
+    public CachingReplyingDestination (ReplyingDestination delegate, DestinationAddress addr,
+        ReplyCache cache)
+    {
+        _delegate = delegate;
+        _addr = addr;
+        _cache = cache;
+    }
+
+    /**
+     * Returns the cache holding this destination's replies.
+     */
+    public ReplyCache getCache ()
+    {
+        return _cache;
+    }
+
+    public byte[] sendMessage (OutMessage msg, final long timeout)
+        throws IOException, TimeoutException
+    {
+        final EncodedMessage encoded = EncodedMessage.of(msg);
+        try {
+            byte[] reply = _cache.get(_addr, encoded.encodeMessage(), new Callable<byte[]>() {
+                public byte[] call ()
+                    throws IOException, TimeoutException
+                {
+                    return _delegate.sendMessage(encoded, timeout);
+                }
+            });
+            // hand out a copy, so that callers can't spoil the cached reply
+            return reply.clone();
+
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof TimeoutException) {
+                throw (TimeoutException)cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            IOException ioe = new IOException("Request failed.");
+            ioe.initCause(cause);
+            throw ioe;
+        } catch (UncheckedExecutionException uee) {
+            throw (RuntimeException)uee.getCause();
+        } catch (ExecutionError ee) {
+            throw (Error)ee.getCause();
+        }
+    }
+
+    /**
+     * Closes the underlying destination.  The cache is left alone, since it may be shared.
+     */
+    public void close ()
+        throws IOException
+    {
+        _delegate.close();
+    }
+
+    public boolean isClosed ()
+    {
+        return _delegate.isClosed();
+    }
+
+    protected final ReplyingDestination _delegate;
+    protected final DestinationAddress _addr;
+    protected final ReplyCache _cache;
+}
@@ -0,0 +1,215 @@
+//
+// $Id$
+
+package com.threerings.messaging;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.base.Preconditions;
+
+import com.samskivert.util.Logger;
+
+/**
+ * A {@link ReplyingDestination} that stops sending requests to another one while it is failing,
+ * so that callers fail in microseconds with a {@link CircuitOpenException} rather than each
+ * waiting out a whole timeout.
+ *
+ * The outcomes of the most recent requests are kept in a rolling window.  A request fails if it
+ * throws, or if its reply took longer than the slow call threshold.  Once the window holds enough
+ * requests and too many of them failed, the circuit opens, and requests fail fast for the open
+ * period.  After that the circuit is half open: one request is let through as a probe, while the
+ * rest keep failing fast.  If the probe succeeds, the circuit closes and the window starts over;
+ * if not, the circuit opens again.
+ *
+ * This class is thread-safe.
+ */
+public class CircuitBreakerReplyingDestination
+    implements ReplyingDestination
+{
+    /** The states of the circuit. */
+    public enum State
+    {
+        /** Requests are sent as usual. */
+        CLOSED,
+
+        /** Requests fail fast without being sent. */
+        OPEN,
+
+        /** A probe request is being let through to see whether the destination has recovered. */
+        HALF_OPEN
+    }
+
+    /**
+     * Creates a breaker in front of the given destination.
+     *
+     * @param delegate The destination to send requests to.
+     * @param addr The address of the delegate, for reporting.
+     * @param window The number of recent requests to judge the destination by.
+     * @param failureRatio The fraction of the window that must fail to open the circuit.
+     * @param slowCall The reply time, in milliseconds, past which a request counts as failed.
+     * @param openPeriod How long the circuit stays open before probing, in milliseconds.
+     */
+    public CircuitBreakerReplyingDestination (ReplyingDestination delegate,
+        DestinationAddress addr, int window, double failureRatio, long slowCall, long openPeriod)
+    {
+        Preconditions.checkArgument(window > 0, "Window must be positive");
+        Preconditions.checkArgument(failureRatio > 0 && failureRatio <= 1,
+            "Failure ratio must be in (0, 1]");
+        _delegate = delegate;
+        _addr = addr;
+        _outcomes = new boolean[window];
+        _failureRatio = failureRatio;
+        _slowCall = slowCall;
+        _openPeriod = openPeriod;
+    }
+
+    public byte[] sendMessage (OutMessage msg, long timeout)
+        throws IOException, TimeoutException
+    {
+        boolean probe = admit();
+        long start = System.currentTimeMillis();
+        boolean failed = true;
+        try {
+            byte[] reply = _delegate.sendMessage(msg, timeout);
+            failed = (System.currentTimeMillis() - start > _slowCall);
+            return reply;
+        } finally {
+            record(failed, probe);
+        }
+    }
+
+    /**
+     * Returns the current state of the circuit.
+     */
+    public State getState ()
+    {
+        if (_state == State.OPEN && System.currentTimeMillis() >= _openUntil) {
+            // it will let a probe through on the next request
+            return State.HALF_OPEN;
+        }
+        return _state;
+    }
+
+    /**
+     * Returns the fraction of the requests in the window that failed, or 0 if none have been
+     * made since the circuit last closed.
+     */
+    public synchronized double getFailureRate ()
+    {
+        return (_count == 0) ? 0 : (double)_failures / _count;
+    }
+
+    /**
+     * Closes the circuit and clears the window, e.g., when the destination is known to be back.
+     */
+    public synchronized void reset ()
+    {
+        closeCircuit();
+    }
+
+    public void close ()
+        throws IOException
+    {
+        _delegate.close();
+    }
+
+    public boolean isClosed ()
+    {
+        return _delegate.isClosed();
+    }
+
+    /**
+     * Decides whether a request may be sent.
+     *
+     * @return true if the request is the half open circuit's probe.
+     * @throws CircuitOpenException The request may not be sent.
+     */
+    protected boolean admit ()
+        throws CircuitOpenException
+    {
+        if (_state == State.CLOSED) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (now >= _openUntil && _probing.compareAndSet(false, true)) {
+            synchronized (this) {
+                _state = State.HALF_OPEN;
+            }
+            logger.info("Probing open circuit", "addr", _addr);
+            return true;
+        }
+        throw new CircuitOpenException(_addr, Math.max(0, _openUntil - now));
+    }
+
+    /**
+     * Records the outcome of a request, opening or closing the circuit as it warrants.
+     */
+    protected synchronized void record (boolean failed, boolean probe)
+    {
+        if (probe) {
+            _probing.set(false);
+            if (failed) {
+                openCircuit();
+            } else {
+                logger.info("Closing circuit", "addr", _addr);
+                closeCircuit();
+            }
+            return;
+        }
+        if (_state != State.CLOSED) {
+            // a straggler from before the circuit opened
+            return;
+        }
+
+        if (_count == _outcomes.length) {
+            if (_outcomes[_next]) {
+                _failures--;
+            }
+        } else {
+            _count++;
+        }
+        _outcomes[_next] = failed;
+        if (failed) {
+            _failures++;
+        }
+        _next = (_next + 1) % _outcomes.length;
+
+        if (_count == _outcomes.length && _failures >= _failureRatio * _count) {
+            logger.warning("Opening circuit", "addr", _addr, "failures", _failures,
+                "window", _count);
+            openCircuit();
+        }
+    }
+
+    protected void openCircuit ()
+    {
+        _openUntil = System.currentTimeMillis() + _openPeriod;
+        _state = State.OPEN;
+    }
+
+    protected void closeCircuit ()
+    {
+        _state = State.CLOSED;
+        _count = _failures = _next = 0;
+    }
+
+    protected final ReplyingDestination _delegate;
+    protected final DestinationAddress _addr;
+    protected final double _failureRatio;
+    protected final long _slowCall;
+    protected final long _openPeriod;
+
+    /** The rolling window of outcomes, true for failure, of which the last _count are valid. */
+    protected final boolean[] _outcomes;
+    protected int _count, _failures, _next;
+
+    protected volatile State _state = State.CLOSED;
+    protected volatile long _openUntil;
+
+    /** Whether a probe is outstanding while the circuit is half open. */
+    protected final AtomicBoolean _probing = new AtomicBoolean();
+
+    private static final Logger logger = Logger.getLogger(CircuitBreakerReplyingDestination.class);
+}
@@ -0,0 +1,28 @@
+//
+// $Id$
+
+package com.threerings.messaging;
+
+import java.io.IOException;
+
+/**
+ * Thrown by a {@link CircuitBreakerReplyingDestination} instead of sending a request, while its
+ * destination is failing.  The request was not sent.
+ */
+public class CircuitOpenException extends IOException
+{
+    public CircuitOpenException (DestinationAddress addr, long retryAfter)
+    {
+        super("Circuit to " + addr + " is open; not sending requests for " + retryAfter + "ms.");
+        this.addr = addr;
+        this.retryAfter = retryAfter;
+    }
+
+    /** The address the request was for. */
+    public final DestinationAddress addr;
+
+    /** How long until a request will be let through again, in milliseconds. */
+    public final long retryAfter;
+
+    private static final long serialVersionUID = 1L;
+}
@@ -4,6 +4,7 @@
 package com.threerings.messaging;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -35,10 +36,8 @@ public class DelayedMessageConnection
     {
         Preconditions.checkState(_delegate.compareAndSet(null, delegate),
             "The DelayedMessageConnection was already initialized.");
-        // add any listeners that were early to this party
-        for (AddressedMessageListener listener : _impatientListeners) {
-            _delegate.get().listen(listener);
-        }
+        // add any listeners that were early to this party, all together
+        _delegate.get().listen(_impatientListeners);
     }
 
     /**
@@ -55,6 +54,20 @@ public class DelayedMessageConnection
         }
     }
 
+    /**
+     * Logs a message if not yet initialized.
+     */
+    public boolean drain (long timeout)
+        throws IOException
+    {
+        MessageConnection delegate = _delegate.get();
+        if (delegate == null) {
+            logger.debug("Draining message connection that was never initialized.");
+            return true;
+        }
+        return delegate.drain(timeout);
+    }
+
     /**
      * Returns a {@link NullMessageSender} if not yet initialized.
      */
@@ -81,6 +94,20 @@ public class DelayedMessageConnection
         }
     }
 
+    /**
+     * Logs a message and holds on to the listeners if not yet initialized.
+     */
+    public void listen (Collection<AddressedMessageListener> listeners)
+    {
+        MessageConnection delegate = _delegate.get();
+        if (delegate == null) {
+            logger.info("Message connection not yet initialized.", "listeners", listeners.size());
+            _impatientListeners.addAll(listeners);
+        } else {
+            delegate.listen(listeners);
+        }
+    }
+
     public void removeListener (AddressedMessageListener listener)
     {
         MessageConnection delegate = _delegate.get();
@@ -3,6 +3,8 @@
 
 package com.threerings.messaging;
 
+import com.threerings.messaging.util.RoutingTrie;
+
 /**
  * Represents an address to send messages to.  Addresses contain the following information:
  *
@@ -17,6 +19,12 @@ package com.threerings.messaging;
  * will correspond to a queue (mailbox) that will contain the messages sent to the address.  More
  * than one address can potentially point to the same queue.
  *
+ * A listener's address may also be a pattern, in which any component may be "*", matching any one
+ * component, or "#", matching any number of components, as in "game.*.login@exchange" or
+ * "game.#@exchange".  A pattern address only works on a topic exchange; see
+ * {@link com.threerings.messaging.amqp.AMQPMessageConfig}.  Messages are always sent to
+ * addresses without wildcards.
+ *
  * This class is immutable.
  */
 public class DestinationAddress
@@ -35,7 +43,9 @@ public class DestinationAddress
 
     /**
      * Creates a destination address from a string formatted like:
-     * "application.service.command@exchange".
+     * "application.service.command@exchange".  A pattern with fewer components that ends in "#",
+     * such as "game.#@exchange", is padded out with more "#" components, which match the same
+     * keys.
      *
      * @param src String to parse the address from.
      */
@@ -45,8 +55,8 @@ public class DestinationAddress
         String[] routingKey = destinationAndExchange[0].split("\\.");
         exchange = destinationAndExchange[1];
         application = routingKey[0];
-        service = routingKey[1];
-        command = routingKey[2];
+        service = component(routingKey, 1);
+        command = component(routingKey, 2);
     }
 
     /**
@@ -67,7 +77,31 @@ public class DestinationAddress
      */
     public String getRoutingKey ()
     {
-        return application + '.' + service + '.' + command;
+        // computed at most a few times, however many messages are sent to this address
+        String routingKey = _routingKey;
+        if (routingKey == null) {
+            _routingKey = routingKey = application + '.' + service + '.' + command;
+        }
+        return routingKey;
+    }
+
+    /**
+     * Returns whether this address is a pattern, with a "*" or "#" wildcard in any component.
+     */
+    public boolean isPattern ()
+    {
+        return isWildcard(application) || isWildcard(service) || isWildcard(command);
+    }
+
+    /**
+     * Returns whether the given address is on the same exchange as this one, and its routing key
+     * matches ours, treating ours as a pattern.  An address without wildcards matches only
+     * itself.
+     */
+    public boolean matches (DestinationAddress other)
+    {
+        return exchange.equals(other.exchange) &&
+            RoutingTrie.matches(getRoutingKey(), other.getRoutingKey());
     }
 
     /**
@@ -99,4 +133,27 @@ public class DestinationAddress
     {
         return toString().hashCode();
     }
+
+    /**
+     * Returns the given component of a parsed routing key, padding out a key that ends in "#".
+     */
+    protected static String component (String[] routingKey, int idx)
+    {
+        if (idx < routingKey.length) {
+            return routingKey[idx];
+        }
+        String last = routingKey[routingKey.length - 1];
+        if (!last.equals(RoutingTrie.ANY)) {
+            throw new IllegalArgumentException("Missing component " + idx + " of routing key.");
+        }
+        return last;
+    }
+
+    protected static boolean isWildcard (String component)
+    {
+        return component.equals(RoutingTrie.ONE) || component.equals(RoutingTrie.ANY);
+    }
+
+    /** The routing key, once it has been asked for. */
+    protected transient String _routingKey;
 }
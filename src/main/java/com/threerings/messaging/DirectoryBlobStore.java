@@ -0,0 +1,125 @@
+//
+// $Id$
+
+package com.threerings.messaging;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.UUID;
+
+import com.google.common.base.Preconditions;
+
+import com.samskivert.util.Logger;
+
+/**
+ * A {@link BlobStore} that keeps each body in a file of its own in a directory, which may be on a
+ * shared filesystem so that listeners on other machines can read it.  Bodies are written and read
+ * through memory mappings, so a large body is paged in as it is read rather than copied onto the
+ * heap up front.
+ *
+ * Nothing knows when every listener is done with a body, so bodies aren't deleted as they're
+ * read; call {@link #purge} periodically to clear out those older than any message could be.
+ *
+ * This class is thread-safe.
+ */
+public class DirectoryBlobStore
+    implements BlobStore
+{
+    /**
+     * Creates a store in the given directory, creating it if needed.
+     */
+    public DirectoryBlobStore (File dir)
+    {
+        Preconditions.checkArgument(dir.isDirectory() || dir.mkdirs(),
+            "Could not create blob directory " + dir);
+        _dir = dir;
+    }
+
+    public String put (byte[] body)
+        throws IOException
+    {
+        String key = UUID.randomUUID().toString();
+        // write it under a temporary name, so nobody can read it half written
+        File temp = new File(_dir, key + TEMP_SUFFIX);
+        RandomAccessFile file = new RandomAccessFile(temp, "rw");
+        try {
+            MappedByteBuffer buffer =
+                file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, body.length);
+            buffer.put(body);
+            buffer.force();
+        } finally {
+            file.close();
+        }
+        if (!temp.renameTo(new File(_dir, key))) {
+            temp.delete();
+            throw new IOException("Could not store blob " + key + " in " + _dir);
+        }
+        return key;
+    }
+
+    public ByteBuffer get (String key)
+        throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(getFile(key), "r");
+        try {
+            // the mapping stays valid after the file is closed
+            FileChannel channel = file.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            file.close();
+        }
+    }
+
+    public void delete (String key)
+        throws IOException
+    {
+        File file = getFile(key);
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not delete blob " + key + " from " + _dir);
+        }
+    }
+
+    /**
+     * Deletes the bodies stored more than the given time ago.
+     *
+     * @param maxAge The age in milliseconds past which bodies are deleted.
+     * @return the number of bodies deleted.
+     */
+    public int purge (long maxAge)
+    {
+        long cutoff = System.currentTimeMillis() - maxAge;
+        int purged = 0;
+        File[] files = _dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        for (File file : files) {
+            if (file.lastModified() < cutoff) {
+                if (file.delete()) {
+                    purged++;
+                } else {
+                    logger.warning("Could not purge blob", "file", file);
+                }
+            }
+        }
+        return purged;
+    }
+
+    protected File getFile (String key)
+    {
+        // keys are ours, but don't let a forged one wander out of the directory
+        Preconditions.checkArgument(key.indexOf(File.separatorChar) < 0 && !key.startsWith("."),
+            "Invalid blob key");
+        return new File(_dir, key);
+    }
+
+    protected final File _dir;
+
+    protected static final String TEMP_SUFFIX = ".tmp";
+
+    private static final Logger logger = Logger.getLogger(DirectoryBlobStore.class);
+}
@@ -0,0 +1,47 @@
+//
+// $Id$
+
+package com.threerings.messaging;
+
+/**
+ * A message whose body has already been encoded.  This is handy when the same payload is to be
+ * sent more than once, since {@link OutMessage#encodeMessage()} need not be run again for each
+ * send.
+ *
+ * This class is immutable, as long as the caller doesn't modify the array handed to it.
+ */
+public final class EncodedMessage implements OutMessage
+{
+    /**
+     * Encodes the given message once, returning it as is if it was already encoded.
+     */
+    public static EncodedMessage of (OutMessage msg)
+    {
+        return (msg instanceof EncodedMessage) ?
+            (EncodedMessage)msg : new EncodedMessage(msg.encodeMessage());
+    }
+
+    /**
+     * Creates a message around the given, already encoded, body.
+     */
+    public EncodedMessage (byte[] body)
+    {
+        _body = body;
+    }
+
+    /**
+     * Returns the encoded body.  The same array is returned every time.
+     */
+    public byte[] encodeMessage ()
+    {
+        return _body;
+    }
+
+    @Override
+    public String toString ()
+    {
+        return "[" + _body.length + " bytes]";
+    }
+
+    protected final byte[] _body;
+}
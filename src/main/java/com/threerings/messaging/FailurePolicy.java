@@ -0,0 +1,77 @@
+//
+// $Id$
+
+package com.threerings.messaging;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * What to do with a message whose listener throws an exception instead of processing it; see
+ * {@link AddressedMessageListener#setFailurePolicy}.  The message is tried again after a delay
+ * that doubles with each attempt, up to a limit, and once it has failed the given number of times
+ * it is sent on to a dead-letter address, if there is one, and dropped otherwise.  Either way it
+ * is acknowledged, so a message that can never be processed stops coming back.
+ *
+ * A message waiting to be tried again is acknowledged and held in memory, so that it doesn't
+ * hold up the messages behind it.  If its listener is closed first, it's put back on its queue at
+ * once, but if the process dies, it's lost.
+ *
+ * Messages sent to the dead-letter address carry the number of attempts made and the failure
+ * that made the last one fail in their headers.  The address is only sent to, so some listener
+ * must be bound to it for dead letters to be kept.
+ *
+ * This class is immutable.
+ */
+public final class FailurePolicy
+{
+    /** The number of times a message is tried before it's given up on. */
+    public final int maxAttempts;
+
+    /** How long to wait before the first retry, in milliseconds. */
+    public final long initialDelay;
+
+    /** The longest to wait before any retry, in milliseconds. */
+    public final long maxDelay;
+
+    /** Where to send messages that have been given up on, or null to drop them. */
+    public final DestinationAddress deadLetter;
+
+    /**
+     * Creates a policy.
+     *
+     * @param maxAttempts How many times to try a message, at least 1.
+     * @param initialDelay How long to wait before the first retry, in milliseconds.
+     * @param maxDelay The longest to wait before any retry, in milliseconds.
+     * @param deadLetter Where to send messages that have been given up on, or null to drop them.
+     */
+    public FailurePolicy (int maxAttempts, long initialDelay, long maxDelay,
+        DestinationAddress deadLetter)
+    {
+        Preconditions.checkArgument(maxAttempts > 0, "Invalid number of attempts");
+        Preconditions.checkArgument(initialDelay >= 0 && initialDelay <= maxDelay,
+            "Invalid retry delays");
+        this.maxAttempts = maxAttempts;
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.deadLetter = deadLetter;
+    }
+
+    /**
+     * Returns how long to wait before trying a message again after the given number of failed
+     * attempts, in milliseconds.
+     */
+    public long getRetryDelay (int attempts)
+    {
+        int doublings = Math.min(Math.max(0, attempts - 1), 62);
+        long delay = initialDelay << doublings;
+        // after enough attempts, the doubling shifts the delay right out of range
+        return ((delay >> doublings) != initialDelay) ? maxDelay : Math.min(maxDelay, delay);
+    }
+
+    @Override
+    public String toString ()
+    {
+        return "[maxAttempts=" + maxAttempts + ", initialDelay=" + initialDelay +
+            ", maxDelay=" + maxDelay + ", deadLetter=" + deadLetter + "]";
+    }
+}
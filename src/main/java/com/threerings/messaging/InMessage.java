@@ -4,6 +4,7 @@
 package com.threerings.messaging;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * A message received from the queue. If the message is processed, {@link #ack} must be called or
@@ -14,6 +15,13 @@ public interface InMessage
     /** The contents of the message. */
     byte[] getBody ();
 
+    /**
+     * Returns the contents of the message as a read-only buffer.  Unlike {@link #getBody}, this
+     * doesn't copy a large body sent by claim check (see {@link BlobStore}) onto the heap, but
+     * reads it from the store as the buffer is read.
+     */
+    ByteBuffer getBodyBuffer ();
+
     /** Sends OutMessage back to the queue. */
     void reply (OutMessage message)
         throws IOException;
@@ -24,4 +32,12 @@ public interface InMessage
      */
     void ack ()
         throws IOException;
+
+    /**
+     * Returns a copy of this message that stays valid after {@link MessageListener#received}
+     * returns.  Listeners that reuse their messages (see
+     * {@link AddressedMessageListener#setReuseMessages}) must call this to hold on to a message,
+     * e.g., to acknowledge or reply to it later.  Other messages may simply return themselves.
+     */
+    InMessage detach ();
 }
@@ -0,0 +1,78 @@
+//
+// $Id$
+
+package com.threerings.messaging;
+
+/**
+ * An {@link AdmissionController} that sheds sheddable messages once they have waited too long, or
+ * once processing has become slow while messages are backing up.  The processing time threshold is
+ * only applied while messages are waiting at least as long as it takes to process one, so that a
+ * listener which isn't behind never sheds.
+ *
+ * This class is not thread-safe; use one instance per listener.
+ */
+public class LatencyAdmissionController
+    implements AdmissionController
+{
+    /**
+     * Creates a controller that sheds the messages accepted by the classifier when overloaded.
+     *
+     * @param maxQueueDelay Milliseconds a message may wait before it is considered stale.
+     * @param maxProcessingTime Average milliseconds of processing above which the listener is
+     * considered overloaded while messages are waiting.
+     * @param classifier Picks the messages that may be shed.
+     * @param overloaded What to do with sheddable messages when overloaded, either
+     * {@link Decision#SHED} or {@link Decision#REQUEUE}.
+     */
+    public LatencyAdmissionController (long maxQueueDelay, long maxProcessingTime,
+        MessageClassifier classifier, Decision overloaded)
+    {
+        _maxQueueDelay = maxQueueDelay;
+        _maxProcessingTime = maxProcessingTime;
+        _classifier = classifier;
+        _overloaded = overloaded;
+    }
+
+    public Decision admit (InMessage message, long queueDelay)
+    {
+        boolean overloaded = queueDelay > _maxQueueDelay ||
+            (_processingTime > _maxProcessingTime && queueDelay >= _processingTime);
+        if (overloaded && _classifier.isSheddable(message)) {
+            _shed++;
+            return _overloaded;
+        }
+        return Decision.PROCESS;
+    }
+
+    public void processed (InMessage message, long processingTime)
+    {
+        _processingTime += (processingTime - _processingTime) * SMOOTHING;
+    }
+
+    /**
+     * Returns the smoothed processing time of admitted messages, in milliseconds.
+     */
+    public double getProcessingTime ()
+    {
+        return _processingTime;
+    }
+
+    /**
+     * Returns the number of messages that have been shed or requeued.
+     */
+    public long getShedCount ()
+    {
+        return _shed;
+    }
+
+    /** The weight given to each new processing time sample. */
+    protected static final double SMOOTHING = 0.1;
+
+    protected final long _maxQueueDelay;
+    protected final long _maxProcessingTime;
+    protected final MessageClassifier _classifier;
+    protected final Decision _overloaded;
+
+    protected volatile double _processingTime;
+    protected volatile long _shed;
+}
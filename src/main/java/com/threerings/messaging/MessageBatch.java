@@ -0,0 +1,24 @@
+//
+// $Id$
+
+package com.threerings.messaging;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A batch of messages received from a queue together.  If the batch is processed, {@link #ack}
+ * must be called or its messages will remain in the queue.
+ */
+public interface MessageBatch
+{
+    /** The messages in the batch, in the order they were received. */
+    List<InMessage> getMessages ();
+
+    /**
+     * Acknowledges that every message in the batch was processed, with a single acknowledgement
+     * to the server where possible.
+     */
+    void ack ()
+        throws IOException;
+}
@@ -0,0 +1,16 @@
+//
+// $Id$
+
+package com.threerings.messaging;
+
+/**
+ * Tells apart the messages that may be dropped under load from those that must always be
+ * processed.
+ */
+public interface MessageClassifier
+{
+    /**
+     * Returns true if the message can be shed or deferred when its listener is overloaded.
+     */
+    boolean isSheddable (InMessage message);
+}
@@ -5,6 +5,7 @@ package com.threerings.messaging;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.Collection;
 
 /**
  * Fault-tolerant connection to a message server.  The connection will be created when the object
@@ -27,6 +28,14 @@ public interface MessageConnection
      */
     void listen (AddressedMessageListener listener);
 
+    /**
+     * Listens with each of the given listeners, as {@link #listen(AddressedMessageListener)}
+     * does, but possibly much faster than one at a time, e.g., during startup.
+     *
+     * @param listeners Listeners that will process messages as they come in.
+     */
+    void listen (Collection<AddressedMessageListener> listeners);
+
     /**
      * Removes a listener that is not longer interested in receiving messages.
      *
@@ -44,6 +53,22 @@ public interface MessageConnection
     void close ()
         throws IOException;
 
+    /**
+     * Closes the connection gracefully, e.g., for a rolling restart.  Listeners stop taking new
+     * messages at once, so the server sends them to other listeners on the same queues, but the
+     * messages they've already been handed are processed and acknowledged, and messages the sender
+     * is holding back to keep to a rate limit are sent, as long as that can be done within the
+     * given time.  Then the connection is closed as by {@link #close}, and anything left over is
+     * returned to the server or dropped.  Messages scheduled for later are dropped, not sent
+     * early.
+     *
+     * @param timeout The longest to wait for work to finish, in milliseconds.
+     * @return true if all work finished in time.
+     * @throws IOException An error occurred while attempting to close the connection.
+     */
+    boolean drain (long timeout)
+        throws IOException;
+
     /**
      * Gets a {@link MessageSender} to use with this connection.
      */
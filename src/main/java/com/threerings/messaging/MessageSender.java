@@ -5,6 +5,9 @@ package com.threerings.messaging;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Responsible for sending messages to various destinations.
@@ -25,6 +28,68 @@ public interface MessageSender
     void sendMessage (OutMessage msg, DestinationAddress addr)
         throws IOException;
 
+    /**
+     * Sends a one-shot message to the specified address, using the given options.  This method
+     * will return when the message has been sent, but not necessarily after it has been received.
+     *
+     * @param msg Message to be sent.
+     * @param addr Address to send messages to.
+     * @param options Options controlling how the message is sent.
+     * @throws IOException An error occurred while sending the message.
+     */
+    void sendMessage (OutMessage msg, DestinationAddress addr, SendOptions options)
+        throws IOException;
+
+    /**
+     * Sends a one-shot message to each of the given addresses.  The message is only encoded once,
+     * and its copies are all sent together.  This method will return when the message has been
+     * sent, but not necessarily after it has been received.
+     *
+     * @param msg Message to be sent.
+     * @param addrs Addresses to send the message to.
+     * @throws IOException An error occurred while sending the message.
+     */
+    void sendMessage (OutMessage msg, Collection<DestinationAddress> addrs)
+        throws IOException;
+
+    /**
+     * Sends a one-shot message to each of the given addresses, using the given options.  See
+     * {@link #sendMessage(OutMessage, Collection)}.
+     *
+     * @param msg Message to be sent.
+     * @param addrs Addresses to send the message to.
+     * @param options Options controlling how the message is sent.
+     * @throws IOException An error occurred while sending the message.
+     */
+    void sendMessage (OutMessage msg, Collection<DestinationAddress> addrs, SendOptions options)
+        throws IOException;
+
+    /**
+     * Schedules a one-shot message to be sent to the specified address at the given time.  The
+     * message is encoded immediately, and held by the sender until its time comes, so it will be
+     * lost if the sender is closed first.  The time is only honored to within the precision of
+     * the sender's timer, typically some milliseconds.
+     *
+     * @param msg Message to be sent.
+     * @param addr Address to send messages to.
+     * @param when When to send the message, in epoch milliseconds.
+     * @throws IOException The message could not be scheduled.
+     */
+    void sendMessageAt (OutMessage msg, DestinationAddress addr, long when)
+        throws IOException;
+
+    /**
+     * Schedules a one-shot message to be sent to the specified address after the given delay.
+     * See {@link #sendMessageAt}.
+     *
+     * @param msg Message to be sent.
+     * @param addr Address to send messages to.
+     * @param delay How long to wait before sending the message, in milliseconds.
+     * @throws IOException The message could not be scheduled.
+     */
+    void sendMessageDelayed (OutMessage msg, DestinationAddress addr, long delay)
+        throws IOException;
+
     /**
      * Creates a replying destination, which can send messages and wait for replies to those
      * messages.
@@ -36,4 +101,38 @@ public interface MessageSender
     ReplyingDestination createReplyingDestination (DestinationAddress addr)
         throws IOException;
 
+    /**
+     * Sends the same request to each of the given addresses, and blocks until the given number of
+     * them have replied.  The message is only encoded once.  Pass a quorum of 1 to take the first
+     * reply, or the number of addresses to wait for all of them.
+     *
+     * @param msg Request to send to each address.
+     * @param addrs Addresses to send the request to.
+     * @param quorum Number of replies to wait for.
+     * @param timeout Maximum time to wait for the quorum, in milliseconds.
+     * @return The replies received, keyed by the address that sent them, in order of arrival.
+     * @throws IOException Too many of the requests failed for the quorum to be reached.
+     * @throws TimeoutException The quorum was not reached within the timeout.
+     */
+    Map<DestinationAddress, byte[]> scatterGather (OutMessage msg,
+        Collection<DestinationAddress> addrs, int quorum, long timeout)
+        throws IOException, TimeoutException;
+
+    /**
+     * Sends a request to the primary address, and if it hasn't replied by the time the given
+     * percentile of its recent reply latencies has passed, sends the request to the backup address
+     * as well.  Whichever reply arrives first is returned.
+     *
+     * @param msg Request to send.
+     * @param primary Address to send the request to first.
+     * @param backup Address to send the request to if the primary is slow or fails.
+     * @param percentile Percentile of the primary's latency after which to hedge, e.g., 0.95.
+     * @param timeout Maximum time to wait for either reply, in milliseconds.
+     * @return The first reply received.
+     * @throws IOException Both requests failed.
+     * @throws TimeoutException Neither destination replied within the timeout.
+     */
+    byte[] sendHedged (OutMessage msg, DestinationAddress primary, DestinationAddress backup,
+        double percentile, long timeout)
+        throws IOException, TimeoutException;
 }
@@ -4,6 +4,9 @@
 package com.threerings.messaging;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
 
 import com.samskivert.util.Logger;
 
@@ -31,6 +34,72 @@ public class NullMessageSender
         logger.info("Dropping message.", "msg", msg);
     }
 
+    /**
+     * A warning will be logged containing the message. The message itself will be dropped.
+     */
+    public void sendMessage (OutMessage msg, DestinationAddress addr, SendOptions options)
+        throws IOException
+    {
+        logger.info("Dropping message.", "msg", msg, "options", options);
+    }
+
+    /**
+     * A warning will be logged containing the message. The message itself will be dropped.
+     */
+    public void sendMessage (OutMessage msg, Collection<DestinationAddress> addrs)
+        throws IOException
+    {
+        logger.info("Dropping message.", "msg", msg, "addrs", addrs);
+    }
+
+    /**
+     * A warning will be logged containing the message. The message itself will be dropped.
+     */
+    public void sendMessage (OutMessage msg, Collection<DestinationAddress> addrs,
+        SendOptions options)
+        throws IOException
+    {
+        logger.info("Dropping message.", "msg", msg, "addrs", addrs, "options", options);
+    }
+
+    /**
+     * A warning will be logged containing the message. The message itself will be dropped.
+     */
+    public void sendMessageAt (OutMessage msg, DestinationAddress addr, long when)
+        throws IOException
+    {
+        logger.info("Dropping message.", "msg", msg, "when", when);
+    }
+
+    /**
+     * A warning will be logged containing the message. The message itself will be dropped.
+     */
+    public void sendMessageDelayed (OutMessage msg, DestinationAddress addr, long delay)
+        throws IOException
+    {
+        logger.info("Dropping message.", "msg", msg, "delay", delay);
+    }
+
+    /**
+     * This will always throw an IOException, since no replies will ever arrive.
+     */
+    public Map<DestinationAddress, byte[]> scatterGather (OutMessage msg,
+        Collection<DestinationAddress> addrs, int quorum, long timeout)
+        throws IOException, TimeoutException
+    {
+        throw new IOException("Cannot send message from a null message sender.");
+    }
+
+    /**
+     * This will always throw an IOException, since no replies will ever arrive.
+     */
+    public byte[] sendHedged (OutMessage msg, DestinationAddress primary, DestinationAddress backup,
+        double percentile, long timeout)
+        throws IOException, TimeoutException
+    {
+        throw new IOException("Cannot send message from a null message sender.");
+    }
+
     // from Closeable
     public void close ()
     {
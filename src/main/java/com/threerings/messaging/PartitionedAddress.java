@@ -0,0 +1,166 @@
+//
+// $Id$
+
+package com.threerings.messaging;
+
+import java.util.List;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+
+/**
+ * An address whose messages are spread over a number of partitions, each with an address and
+ * queue of its own, so that a busy command isn't held to what a single queue, and the single
+ * consumer it takes to keep messages in order, can handle.  The partitions of
+ * "app.service.command@exchange" are "app.service.command-p0@exchange" and so on, and those of
+ * queue "queue" are "queue-p0" and so on.
+ *
+ * A sender picks the partition for a message from a key, such as the id of the user or object
+ * the message concerns, with {@link #forKey}, so all the messages with the same key go to the
+ * same partition, and are processed in the order they were sent.  The key is placed by
+ * consistent hashing, so when the number of partitions changes, only the keys that must move to
+ * the new partitions do.
+ *
+ * Listeners split the partitions between them: each member of a group of listening processes,
+ * possibly on different machines, listens to its share with {@link #createListeners}.  Every
+ * partition must be listened to by exactly one member for messages to be processed in order, so
+ * partitioned listeners shouldn't be autoscaled, and when members come and go, the messages in
+ * flight for a partition that changes hands may be processed out of order.
+ *
+ * This class is immutable.
+ */
+public class PartitionedAddress
+{
+    /** The address the partitions are of. */
+    public final DestinationAddress address;
+
+    /** The number of partitions. */
+    public final int partitions;
+
+    /**
+     * Creates a partitioned address.
+     *
+     * @param address The address to partition, which may not be a pattern.
+     * @param partitions The number of partitions, at least 1.
+     */
+    public PartitionedAddress (DestinationAddress address, int partitions)
+    {
+        Preconditions.checkArgument(!address.isPattern(), "Cannot partition a pattern address");
+        Preconditions.checkArgument(partitions > 0, "Invalid number of partitions");
+        this.address = address;
+        this.partitions = partitions;
+        _addresses = new DestinationAddress[partitions];
+        for (int ii = 0; ii < partitions; ii++) {
+            _addresses[ii] = new DestinationAddress(address.application, address.service,
+                address.command + SUFFIX + ii, address.exchange);
+        }
+    }
+
+    /**
+     * Returns the address of the partition for messages with the given key.
+     */
+    public DestinationAddress forKey (String key)
+    {
+        return getPartition(getPartitionIndex(key));
+    }
+
+    /**
+     * Returns the index of the partition for messages with the given key.
+     */
+    public int getPartitionIndex (String key)
+    {
+        return Hashing.consistentHash(
+            Hashing.murmur3_128().hashString(key, Charsets.UTF_8), partitions);
+    }
+
+    /**
+     * Returns the address of the given partition.
+     */
+    public DestinationAddress getPartition (int index)
+    {
+        return _addresses[index];
+    }
+
+    /**
+     * Returns the name of the given partition of the given queue.
+     */
+    public String getQueueName (String queueName, int index)
+    {
+        Preconditions.checkElementIndex(index, partitions);
+        return queueName + SUFFIX + index;
+    }
+
+    /**
+     * Returns the indexes of the partitions assigned to the given member of a group of listening
+     * processes.  The partitions are dealt out in turn, so each member gets as many as any other,
+     * give or take one.
+     *
+     * @param member The index of the member, from 0.
+     * @param members The number of members in the group.
+     */
+    public List<Integer> getAssignedPartitions (int member, int members)
+    {
+        Preconditions.checkArgument(members > 0, "Invalid number of members");
+        Preconditions.checkElementIndex(member, members);
+        List<Integer> assigned = Lists.newArrayList();
+        for (int ii = member; ii < partitions; ii += members) {
+            assigned.add(ii);
+        }
+        return assigned;
+    }
+
+    /**
+     * Creates a listener for each of the partitions assigned to the given member of a group of
+     * listening processes, ready to pass to {@link MessageConnection#listen(java.util.Collection)}.
+     * Each takes the listener and options of the given one, on its partition of that listener's
+     * queue and of this address.  The listeners share the given one's listener, admission
+     * controller and so on, which must therefore be thread-safe.  Any of them may be passed to
+     * {@link MessageConnection#removeListener} to stop listening to its partition.
+     *
+     * @param listener A listener on the queue to partition, and this address.
+     * @param member The index of the member, from 0.
+     * @param members The number of members in the group.
+     */
+    public List<AddressedMessageListener> createListeners (AddressedMessageListener listener,
+        int member, int members)
+    {
+        Preconditions.checkArgument(listener.address.equals(address),
+            "Listener is not on the partitioned address");
+        List<AddressedMessageListener> listeners = Lists.newArrayList();
+        for (int index : getAssignedPartitions(member, members)) {
+            listeners.add(new AddressedMessageListener(
+                listener, getQueueName(listener.queueName, index), getPartition(index)));
+        }
+        return listeners;
+    }
+
+    @Override
+    public boolean equals (Object other)
+    {
+        if (other instanceof PartitionedAddress) {
+            PartitionedAddress otherAddress = (PartitionedAddress) other;
+            return address.equals(otherAddress.address) && partitions == otherAddress.partitions;
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode ()
+    {
+        return 31 * address.hashCode() + partitions;
+    }
+
+    @Override
+    public String toString ()
+    {
+        return address + "/" + partitions;
+    }
+
+    /** The addresses of the partitions, by index. */
+    protected final DestinationAddress[] _addresses;
+
+    /** What's added to a command or queue name, followed by the index, to name a partition. */
+    protected static final String SUFFIX = "-p";
+}
@@ -0,0 +1,59 @@
+//
+// $Id$
+
+package com.threerings.messaging;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A limit on how fast messages may be sent to a destination, and what to do with those sent
+ * faster than that.  Messages may be sent in bursts of up to {@link #burst} after a lull, but on
+ * average no faster than {@link #messagesPerSecond}.
+ *
+ * This class is immutable.
+ */
+public final class RateLimit
+{
+    /** What to do with a message sent over the limit. */
+    public enum Mode
+    {
+        /** Block the sending thread until the message may be sent. */
+        BLOCK,
+
+        /** Throw a {@link RateLimitExceededException} without sending the message. */
+        FAIL_FAST,
+
+        /**
+         * Return at once, and hold the message to be sent when it may be, in turn with any
+         * others held for the same destination.  A message that would be held for more than a
+         * few seconds, or that's sent while the sender is closing, blocks as with {@link #BLOCK}
+         * instead, and messages still held when the sender is closed are sent at once.
+         */
+        LINGER
+    }
+
+    /** The steady rate at which messages may be sent. */
+    public final double messagesPerSecond;
+
+    /** The most messages that may be sent at once after a lull. */
+    public final int burst;
+
+    /** What to do with messages sent over the limit. */
+    public final Mode mode;
+
+    public RateLimit (double messagesPerSecond, int burst, Mode mode)
+    {
+        Preconditions.checkArgument(messagesPerSecond > 0, "Rate must be positive");
+        Preconditions.checkArgument(burst > 0, "Burst must be positive");
+        this.messagesPerSecond = messagesPerSecond;
+        this.burst = burst;
+        this.mode = Preconditions.checkNotNull(mode);
+    }
+
+    @Override
+    public String toString ()
+    {
+        return "[messagesPerSecond=" + messagesPerSecond + ", burst=" + burst +
+            ", mode=" + mode + "]";
+    }
+}
@@ -0,0 +1,28 @@
+//
+// $Id$
+
+package com.threerings.messaging;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a message is sent faster than the {@link RateLimit} of its destination allows, and
+ * the limit is to {@link RateLimit.Mode#FAIL_FAST fail fast}.  The message was not sent.
+ */
+public class RateLimitExceededException extends IOException
+{
+    public RateLimitExceededException (DestinationAddress addr, RateLimit limit)
+    {
+        super("Rate limit exceeded sending to " + addr + ": " + limit);
+        this.addr = addr;
+        this.limit = limit;
+    }
+
+    /** The address the message was sent to. */
+    public final DestinationAddress addr;
+
+    /** The limit that was exceeded. */
+    public final RateLimit limit;
+
+    private static final long serialVersionUID = 1L;
+}
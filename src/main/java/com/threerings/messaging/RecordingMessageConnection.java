@@ -0,0 +1,336 @@
+//
+// $Id$
+
+package com.threerings.messaging;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+
+import com.google.common.collect.Lists;
+
+import com.samskivert.util.Logger;
+
+/**
+ * Implementation of {@link MessageConnection} that records the traffic through another connection
+ * in a {@link TrafficLog}: every message sent through its sender, including requests and
+ * scheduled messages, which are recorded when they're handed over, and every message received by
+ * its listeners, under the listener's address.  Messages are recorded once they've been sent
+ * without error, or as they arrive, before they're processed.  Replies aren't recorded.  A log
+ * recorded in production can be replayed against a test setup with a {@link TrafficReplayer}.
+ *
+ * Recording never gets in the way of the traffic itself; if the log can't be written, a warning
+ * is logged and the message goes on as usual.  The log is closed along with the connection.
+ *
+ * This class is thread-safe.
+ */
+public class RecordingMessageConnection
+    implements MessageConnection
+{
+    /**
+     * Creates a connection that records the traffic through the given one in the given log.
+     */
+    public RecordingMessageConnection (MessageConnection delegate, TrafficLog log)
+    {
+        _delegate = delegate;
+        _log = log;
+        _sender = new RecordingSender(delegate.getSender());
+    }
+
+    /**
+     * Returns the log the traffic is recorded in.
+     */
+    public TrafficLog getLog ()
+    {
+        return _log;
+    }
+
+    public void listen (AddressedMessageListener listener)
+    {
+        _delegate.listen(wrap(listener));
+    }
+
+    public void listen (Collection<AddressedMessageListener> listeners)
+    {
+        List<AddressedMessageListener> wrapped = Lists.newArrayListWithCapacity(listeners.size());
+        for (AddressedMessageListener listener : listeners) {
+            wrapped.add(wrap(listener));
+        }
+        _delegate.listen(wrapped);
+    }
+
+    public void removeListener (AddressedMessageListener listener)
+    {
+        AddressedMessageListener wrapped = _listeners.remove(listener);
+        if (wrapped != null) {
+            _delegate.removeListener(wrapped);
+        }
+    }
+
+    public void close ()
+        throws IOException
+    {
+        try {
+            _delegate.close();
+        } finally {
+            _log.close();
+        }
+    }
+
+    public boolean drain (long timeout)
+        throws IOException
+    {
+        try {
+            return _delegate.drain(timeout);
+        } finally {
+            _log.close();
+        }
+    }
+
+    public MessageSender getSender ()
+    {
+        return _sender;
+    }
+
+    /**
+     * Returns a listener like the given one that records its messages, remembering it so that it
+     * can be removed.  The wrappers of equal listeners are equal, so that listening again with a
+     * listener replaces the one it's equal to, as it would without recording.
+     */
+    protected AddressedMessageListener wrap (AddressedMessageListener listener)
+    {
+        BatchMessageListener batchListener = listener.getBatchListener();
+        AddressedMessageListener wrapped = (batchListener == null) ?
+            new AddressedMessageListener(listener, new RecordingListener(listener), null) :
+            new AddressedMessageListener(listener, null,
+                new RecordingBatchListener(listener.address, batchListener));
+        _listeners.put(listener, wrapped);
+        return wrapped;
+    }
+
+    /**
+     * Records a message in our log, logging a warning if it can't be.
+     */
+    protected void record (TrafficLog.Direction direction, DestinationAddress addr, byte[] body)
+    {
+        try {
+            _log.append(direction, addr, body);
+        } catch (Exception e) {
+            // don't flood the logs if the disk is full or the log was closed out from under us
+            if (_failures++ % WARN_INTERVAL == 0) {
+                logger.warning("Could not record message.", "addr", addr, "failures", _failures,
+                    "error", e);
+            }
+        }
+    }
+
+    /**
+     * Records the messages received by a listener, before passing them on to it.
+     */
+    protected class RecordingListener
+        implements MessageListener
+    {
+        public RecordingListener (AddressedMessageListener listener)
+        {
+            _listener = listener;
+        }
+
+        public void received (InMessage message)
+            throws IOException
+        {
+            record(TrafficLog.Direction.RECEIVED, _listener.address, message.getBody());
+            _listener.received(message);
+        }
+
+        @Override
+        public int hashCode ()
+        {
+            return _listener.hashCode();
+        }
+
+        @Override
+        public boolean equals (Object other)
+        {
+            return (other instanceof RecordingListener) &&
+                _listener.equals(((RecordingListener)other)._listener);
+        }
+
+        protected final AddressedMessageListener _listener;
+    }
+
+    /**
+     * Records the messages in the batches received by a listener, before passing them on to it.
+     */
+    protected class RecordingBatchListener
+        implements BatchMessageListener
+    {
+        public RecordingBatchListener (DestinationAddress addr, BatchMessageListener listener)
+        {
+            _addr = addr;
+            _listener = listener;
+        }
+
+        public void received (MessageBatch batch)
+            throws IOException
+        {
+            for (InMessage message : batch.getMessages()) {
+                record(TrafficLog.Direction.RECEIVED, _addr, message.getBody());
+            }
+            _listener.received(batch);
+        }
+
+        @Override
+        public int hashCode ()
+        {
+            return _listener.hashCode();
+        }
+
+        @Override
+        public boolean equals (Object other)
+        {
+            return (other instanceof RecordingBatchListener) &&
+                _listener.equals(((RecordingBatchListener)other)._listener);
+        }
+
+        protected final DestinationAddress _addr;
+        protected final BatchMessageListener _listener;
+    }
+
+    /**
+     * Records messages sent through another sender.
+     */
+    protected class RecordingSender
+        implements MessageSender
+    {
+        public RecordingSender (MessageSender delegate)
+        {
+            _delegate = delegate;
+        }
+
+        public void sendMessage (OutMessage msg, DestinationAddress addr)
+            throws IOException
+        {
+            EncodedMessage encoded = EncodedMessage.of(msg);
+            _delegate.sendMessage(encoded, addr);
+            record(TrafficLog.Direction.SENT, addr, encoded.encodeMessage());
+        }
+
+        public void sendMessage (OutMessage msg, DestinationAddress addr, SendOptions options)
+            throws IOException
+        {
+            EncodedMessage encoded = EncodedMessage.of(msg);
+            _delegate.sendMessage(encoded, addr, options);
+            record(TrafficLog.Direction.SENT, addr, encoded.encodeMessage());
+        }
+
+        public void sendMessage (OutMessage msg, Collection<DestinationAddress> addrs)
+            throws IOException
+        {
+            EncodedMessage encoded = EncodedMessage.of(msg);
+            _delegate.sendMessage(encoded, addrs);
+            recordAll(addrs, encoded);
+        }
+
+        public void sendMessage (OutMessage msg, Collection<DestinationAddress> addrs,
+            SendOptions options)
+            throws IOException
+        {
+            EncodedMessage encoded = EncodedMessage.of(msg);
+            _delegate.sendMessage(encoded, addrs, options);
+            recordAll(addrs, encoded);
+        }
+
+        public void sendMessageAt (OutMessage msg, DestinationAddress addr, long when)
+            throws IOException
+        {
+            EncodedMessage encoded = EncodedMessage.of(msg);
+            _delegate.sendMessageAt(encoded, addr, when);
+            record(TrafficLog.Direction.SENT, addr, encoded.encodeMessage());
+        }
+
+        public void sendMessageDelayed (OutMessage msg, DestinationAddress addr, long delay)
+            throws IOException
+        {
+            EncodedMessage encoded = EncodedMessage.of(msg);
+            _delegate.sendMessageDelayed(encoded, addr, delay);
+            record(TrafficLog.Direction.SENT, addr, encoded.encodeMessage());
+        }
+
+        public ReplyingDestination createReplyingDestination (final DestinationAddress addr)
+            throws IOException
+        {
+            final ReplyingDestination dest = _delegate.createReplyingDestination(addr);
+            return new ReplyingDestination() {
+                public byte[] sendMessage (OutMessage msg, long timeout)
+                    throws IOException, TimeoutException
+                {
+                    EncodedMessage encoded = EncodedMessage.of(msg);
+                    record(TrafficLog.Direction.SENT, addr, encoded.encodeMessage());
+                    return dest.sendMessage(encoded, timeout);
+                }
+                public void close ()
+                    throws IOException
+                {
+                    dest.close();
+                }
+                public boolean isClosed ()
+                {
+                    return dest.isClosed();
+                }
+            };
+        }
+
+        public Map<DestinationAddress, byte[]> scatterGather (OutMessage msg,
+            Collection<DestinationAddress> addrs, int quorum, long timeout)
+            throws IOException, TimeoutException
+        {
+            EncodedMessage encoded = EncodedMessage.of(msg);
+            recordAll(addrs, encoded);
+            return _delegate.scatterGather(encoded, addrs, quorum, timeout);
+        }
+
+        public byte[] sendHedged (OutMessage msg, DestinationAddress primary,
+            DestinationAddress backup, double percentile, long timeout)
+            throws IOException, TimeoutException
+        {
+            // we can't tell whether the backup was asked, so only the primary request is recorded
+            EncodedMessage encoded = EncodedMessage.of(msg);
+            record(TrafficLog.Direction.SENT, primary, encoded.encodeMessage());
+            return _delegate.sendHedged(encoded, primary, backup, percentile, timeout);
+        }
+
+        public void close ()
+            throws IOException
+        {
+            _delegate.close();
+        }
+
+        protected void recordAll (Collection<DestinationAddress> addrs, EncodedMessage encoded)
+        {
+            for (DestinationAddress addr : addrs) {
+                record(TrafficLog.Direction.SENT, addr, encoded.encodeMessage());
+            }
+        }
+
+        protected final MessageSender _delegate;
+    }
+
+    protected final MessageConnection _delegate;
+    protected final TrafficLog _log;
+    protected final RecordingSender _sender;
+
+    /** The recording listeners we've passed on, by the listener each wraps. */
+    protected final Map<AddressedMessageListener, AddressedMessageListener> _listeners =
+        new ConcurrentHashMap<AddressedMessageListener, AddressedMessageListener>();
+
+    /** The number of messages we've failed to record, only roughly counted. */
+    protected volatile int _failures;
+
+    /** Log a warning for every this many messages we fail to record. */
+    protected static final int WARN_INTERVAL = 1000;
+
+    private static final Logger logger = Logger.getLogger(RecordingMessageConnection.class);
+}
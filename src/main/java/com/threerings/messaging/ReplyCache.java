@@ -0,0 +1,105 @@
+//
+// $Id$
+
+package com.threerings.messaging;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Holds recent replies to requests, keyed by the address a request was sent to and its encoded
+ * bytes.  Entries expire a fixed time after they were fetched, and the least recently used ones
+ * are evicted once the cache is full.  A single cache can be shared by several
+ * {@link CachingReplyingDestination}s.
+ *
+ * This class is thread-safe.
+ */
+public class ReplyCache
+{
+    /**
+     * Creates a new reply cache.
+     *
+     * @param ttl How long replies are kept, in milliseconds.
+     * @param maxEntries The most replies kept at once.
+     */
+    public ReplyCache (long ttl, int maxEntries)
+    {
+        _cache = CacheBuilder.newBuilder()
+            .expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+            .maximumSize(maxEntries)
+            .recordStats()
+            .build();
+    }
+
+    /**
+     * Returns the cached reply to the given request, or fetches it with the given loader.  If
+     * another thread is already fetching the same reply, this waits for it rather than fetching
+     * the reply again.
+     *
+     * @throws ExecutionException The loader threw a checked exception.
+     */
+    public byte[] get (DestinationAddress addr, byte[] request, Callable<byte[]> loader)
+        throws ExecutionException
+    {
+        return _cache.get(new RequestKey(addr, request), loader);
+    }
+
+    /**
+     * Returns the hit, miss and load statistics of this cache.
+     */
+    public CacheStats getStats ()
+    {
+        return _cache.stats();
+    }
+
+    /**
+     * Throws out all cached replies.
+     */
+    public void clear ()
+    {
+        _cache.invalidateAll();
+    }
+
+    /**
+     * Identifies a request by its address and encoded contents.
+     */
+    protected static class RequestKey
+    {
+        public final DestinationAddress addr;
+        public final byte[] body;
+
+        public RequestKey (DestinationAddress addr, byte[] body)
+        {
+            this.addr = addr;
+            this.body = body;
+            _hashCode = 31 * addr.hashCode() + Arrays.hashCode(body);
+        }
+
+        @Override
+        public int hashCode ()
+        {
+            return _hashCode;
+        }
+
+        @Override
+        public boolean equals (Object other)
+        {
+            if (other instanceof RequestKey) {
+                RequestKey otherKey = (RequestKey)other;
+                return _hashCode == otherKey._hashCode && addr.equals(otherKey.addr) &&
+                    Arrays.equals(body, otherKey.body);
+            }
+            return false;
+        }
+
+        protected final int _hashCode;
+    }
+
+    protected final Cache<RequestKey, byte[]> _cache;
+}
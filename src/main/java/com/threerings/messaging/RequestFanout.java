@@ -0,0 +1,325 @@
+//
+// $Id$
+
+package com.threerings.messaging;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import com.samskivert.util.Logger;
+
+import com.threerings.messaging.util.LatencyTracker;
+
+/**
+ * Sends one request to several destinations at once, on behalf of a {@link MessageSender}.  This
+ * implements {@link MessageSender#scatterGather} and {@link MessageSender#sendHedged} on top of
+ * the sender's {@link ReplyingDestination}s, which are created as needed and reused afterwards.
+ *
+ * This class is thread-safe.
+ */
+public class RequestFanout
+    implements Closeable
+{
+    /**
+     * Creates a fanout that gets its replying destinations from the given sender.
+     */
+    public RequestFanout (MessageSender sender)
+    {
+        _sender = sender;
+        // a request's thread waits out its reply even once it's no longer wanted, so there are
+        // only so many, and requests beyond them wait their turn
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+            IDLE_TIMEOUT, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                public Thread newThread (Runnable r) {
+                    Thread thread = new Thread(r, "RequestFanout");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        executor.allowCoreThreadTimeOut(true);
+        _executor = executor;
+    }
+
+    /**
+     * Implements {@link MessageSender#scatterGather}.
+     */
+    public Map<DestinationAddress, byte[]> scatterGather (OutMessage msg,
+        Collection<DestinationAddress> addrs, int quorum, long timeout)
+        throws IOException, TimeoutException
+    {
+        Preconditions.checkArgument(quorum > 0 && quorum <= addrs.size(),
+            "Quorum must be between 1 and the number of addresses.");
+        long deadline = System.currentTimeMillis() + timeout;
+        EncodedMessage encoded = EncodedMessage.of(msg);
+
+        CompletionService<Reply> replies = new ExecutorCompletionService<Reply>(_executor);
+        List<Future<Reply>> requests = Lists.newArrayListWithCapacity(addrs.size());
+        for (DestinationAddress addr : addrs) {
+            requests.add(replies.submit(new Request(addr, encoded, deadline)));
+        }
+
+        Map<DestinationAddress, byte[]> results = Maps.newLinkedHashMap();
+        IOException failure = null;
+        try {
+            int outstanding = requests.size();
+            while (results.size() < quorum && results.size() + outstanding >= quorum) {
+                Future<Reply> done = poll(replies, deadline);
+                if (done == null) {
+                    break;
+                }
+                outstanding--;
+                try {
+                    Reply reply = getReply(done);
+                    results.put(reply.addr, reply.body);
+                } catch (IOException ioe) {
+                    failure = ioe;
+                }
+            }
+        } finally {
+            cancel(requests);
+        }
+
+        if (results.size() >= quorum) {
+            return results;
+        } else if (failure != null && System.currentTimeMillis() < deadline) {
+            // we ran out of destinations that could possibly answer
+            throw failure;
+        }
+        throw new TimeoutException("Received " + results.size() + " of " + quorum +
+            " replies within " + timeout + "ms.");
+    }
+
+    /**
+     * Implements {@link MessageSender#sendHedged}.
+     */
+    public byte[] sendHedged (OutMessage msg, DestinationAddress primary, DestinationAddress backup,
+        double percentile, long timeout)
+        throws IOException, TimeoutException
+    {
+        long deadline = System.currentTimeMillis() + timeout;
+        EncodedMessage encoded = EncodedMessage.of(msg);
+        // until we know better, hedge halfway through the timeout
+        long hedgeDelay = getTracker(primary).getPercentile(percentile, timeout / 2);
+
+        CompletionService<Reply> replies = new ExecutorCompletionService<Reply>(_executor);
+        List<Future<Reply>> requests = Lists.newArrayListWithCapacity(2);
+        requests.add(replies.submit(new Request(primary, encoded, deadline)));
+
+        IOException failure = null;
+        try {
+            long hedgeAt = Math.min(deadline, System.currentTimeMillis() + hedgeDelay);
+            int outstanding = 1;
+            while (outstanding > 0 || requests.size() < 2) {
+                Future<Reply> done = (requests.size() < 2) ?
+                    poll(replies, hedgeAt) : poll(replies, deadline);
+                if (done == null) {
+                    if (requests.size() < 2 && System.currentTimeMillis() < deadline) {
+                        // the primary is slow; race the backup against it
+                        logger.debug("Hedging request", "primary", primary, "backup", backup,
+                            "delay", hedgeDelay);
+                        requests.add(replies.submit(new Request(backup, encoded, deadline)));
+                        outstanding++;
+                        continue;
+                    }
+                    break;
+                }
+                outstanding--;
+                try {
+                    return getReply(done).body;
+                } catch (IOException ioe) {
+                    failure = ioe;
+                    if (requests.size() < 2) {
+                        // the primary failed outright, so go straight to the backup
+                        hedgeAt = System.currentTimeMillis();
+                    }
+                }
+            }
+        } finally {
+            cancel(requests);
+        }
+
+        if (failure != null && System.currentTimeMillis() < deadline) {
+            throw failure;
+        }
+        throw new TimeoutException("No reply from " + primary + " or " + backup + " within " +
+            timeout + "ms.");
+    }
+
+    /**
+     * Returns the tracker of recent reply latencies for the given address.
+     */
+    public LatencyTracker getTracker (DestinationAddress addr)
+    {
+        LatencyTracker tracker = _trackers.get(addr);
+        if (tracker == null) {
+            LatencyTracker newTracker = new LatencyTracker();
+            tracker = _trackers.putIfAbsent(addr, newTracker);
+            if (tracker == null) {
+                tracker = newTracker;
+            }
+        }
+        return tracker;
+    }
+
+    /**
+     * Stops the threads used to wait on replies.  The replying destinations belong to the sender,
+     * which is responsible for closing them.
+     */
+    public void close ()
+    {
+        _executor.shutdown();
+    }
+
+    /**
+     * Returns the shared replying destination for the given address, creating it if needed.
+     */
+    protected ReplyingDestination getDestination (DestinationAddress addr)
+        throws IOException
+    {
+        ReplyingDestination dest = _destinations.get(addr);
+        if (dest == null || dest.isClosed()) {
+            synchronized (_destinations) {
+                dest = _destinations.get(addr);
+                if (dest == null || dest.isClosed()) {
+                    dest = _sender.createReplyingDestination(addr);
+                    _destinations.put(addr, dest);
+                }
+            }
+        }
+        return dest;
+    }
+
+    protected static Future<Reply> poll (CompletionService<Reply> replies, long deadline)
+        throws IOException
+    {
+        try {
+            return replies.poll(Math.max(0, deadline - System.currentTimeMillis()),
+                TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            throw interrupted(ie);
+        }
+    }
+
+    /**
+     * Gets the reply from a completed request, turning whatever it failed with into an
+     * IOException.
+     */
+    protected static Reply getReply (Future<Reply> done)
+        throws IOException
+    {
+        try {
+            return done.get();
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            IOException ioe = new IOException("Request failed.");
+            ioe.initCause(cause);
+            throw ioe;
+        } catch (InterruptedException ie) {
+            throw interrupted(ie);
+        }
+    }
+
+    protected static void cancel (List<Future<Reply>> requests)
+    {
+        // those waiting for a thread are never sent, and the stragglers will time out on their
+        // own by the deadline, as waiting for a reply can't be interrupted
+        for (Future<Reply> request : requests) {
+            request.cancel(false);
+        }
+    }
+
+    protected static IOException interrupted (InterruptedException ie)
+    {
+        Thread.currentThread().interrupt();
+        IOException ioe = new IOException("Interrupted while waiting for replies.");
+        ioe.initCause(ie);
+        return ioe;
+    }
+
+    /** A reply to one of the requests in a fanout. */
+    protected static class Reply
+    {
+        public final DestinationAddress addr;
+        public final byte[] body;
+
+        public Reply (DestinationAddress addr, byte[] body)
+        {
+            this.addr = addr;
+            this.body = body;
+        }
+    }
+
+    /** Sends a request to a single destination and waits for its reply until a deadline. */
+    protected class Request
+        implements Callable<Reply>
+    {
+        public Request (DestinationAddress addr, EncodedMessage msg, long deadline)
+        {
+            _addr = addr;
+            _msg = msg;
+            _deadline = deadline;
+        }
+
+        public Reply call ()
+            throws IOException, TimeoutException
+        {
+            long start = System.currentTimeMillis();
+            if (start >= _deadline) {
+                // it waited too long for a thread to be worth sending
+                throw new TimeoutException("No time left to send to " + _addr + ".");
+            }
+            try {
+                byte[] body = getDestination(_addr).sendMessage(_msg, _deadline - start);
+                getTracker(_addr).record(System.currentTimeMillis() - start);
+                return new Reply(_addr, body);
+            } catch (TimeoutException te) {
+                // a timeout still tells us the latency was at least this bad
+                getTracker(_addr).record(System.currentTimeMillis() - start);
+                throw te;
+            }
+        }
+
+        protected final DestinationAddress _addr;
+        protected final EncodedMessage _msg;
+        protected final long _deadline;
+    }
+
+    protected final MessageSender _sender;
+    protected final ExecutorService _executor;
+    protected final Map<DestinationAddress, ReplyingDestination> _destinations =
+        new ConcurrentHashMap<DestinationAddress, ReplyingDestination>();
+    protected final ConcurrentMap<DestinationAddress, LatencyTracker> _trackers =
+        new ConcurrentHashMap<DestinationAddress, LatencyTracker>();
+
+    /** The most requests waited on at once; the rest wait for a thread. */
+    protected static final int MAX_THREADS = 64;
+
+    /** How long an idle thread is kept around, in seconds. */
+    protected static final long IDLE_TIMEOUT = 60;
+
+    private static final Logger logger = Logger.getLogger(RequestFanout.class);
+}
@@ -0,0 +1,89 @@
+//
+// $Id$
+
+package com.threerings.messaging;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Options controlling how a single message is sent.  Start from {@link #DEFAULT} and override
+ * what is needed, e.g., {@code SendOptions.DEFAULT.withPriority(9)}, or for traffic that is
+ * worthless after a few seconds, {@code SendOptions.DEFAULT.withPersistent(false).withTtl(5000)}.
+ *
+ * This class is immutable.
+ */
+public final class SendOptions
+{
+    /** Value of {@link #priority} for messages without a priority. */
+    public static final int NO_PRIORITY = -1;
+
+    /** The lowest priority a message can have. */
+    public static final int MIN_PRIORITY = 0;
+
+    /** The highest priority a message can have. */
+    public static final int MAX_PRIORITY = 9;
+
+    /** The options used by {@link MessageSender#sendMessage(OutMessage, DestinationAddress)}. */
+    public static final SendOptions DEFAULT = new SendOptions(NO_PRIORITY, true, 0);
+
+    /**
+     * The priority of the message, from {@link #MIN_PRIORITY} to {@link #MAX_PRIORITY}, or
+     * {@link #NO_PRIORITY}.  Listeners with priority lanes process higher priority messages ahead
+     * of lower ones.
+     */
+    public final int priority;
+
+    /**
+     * Whether the message must survive a restart of the message server.  Messages that needn't
+     * may be cheaper to send, e.g., by skipping the server entirely when the listener is local.
+     */
+    public final boolean persistent;
+
+    /**
+     * How long the message is worth delivering, in milliseconds, or 0 if it never goes stale.
+     * Once this has passed, the message server drops the message if it is still queued, and a
+     * listener drops it unprocessed if it has yet to get to it.
+     */
+    public final long ttl;
+
+    /**
+     * Returns a copy of these options with the given priority.
+     */
+    public SendOptions withPriority (int priority)
+    {
+        Preconditions.checkArgument(priority == NO_PRIORITY ||
+            (priority >= MIN_PRIORITY && priority <= MAX_PRIORITY), "Invalid priority");
+        return new SendOptions(priority, persistent, ttl);
+    }
+
+    /**
+     * Returns a copy of these options with the given persistence.
+     */
+    public SendOptions withPersistent (boolean persistent)
+    {
+        return new SendOptions(priority, persistent, ttl);
+    }
+
+    /**
+     * Returns a copy of these options with the given time to live, in milliseconds, or 0 for
+     * messages that never go stale.
+     */
+    public SendOptions withTtl (long ttl)
+    {
+        Preconditions.checkArgument(ttl >= 0, "Invalid ttl");
+        return new SendOptions(priority, persistent, ttl);
+    }
+
+    @Override
+    public String toString ()
+    {
+        return "[priority=" + priority + ", persistent=" + persistent + ", ttl=" + ttl + "]";
+    }
+
+    private SendOptions (int priority, boolean persistent, long ttl)
+    {
+        this.priority = priority;
+        this.persistent = persistent;
+        this.ttl = ttl;
+    }
+}
@@ -0,0 +1,346 @@
+//
+// $Id$
+
+package com.threerings.messaging;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import com.samskivert.util.StringUtil;
+
+/**
+ * An append-only log of messages sent and received, kept in a file that is written through a
+ * memory mapping, so that appending a message is a copy into memory rather than a system call.
+ * Each record holds the time, in microseconds, whether the message was sent or received, the
+ * address it went to or came in on, and its body.  Addresses are written out once, the first time
+ * they're seen, and referred to by number after that, so a record costs only 17 bytes more than
+ * its body.  Read a log back with a {@link Reader}; see {@link RecordingMessageConnection} and
+ * {@link TrafficReplayer}.
+ *
+ * The file grows a chunk at a time as it's written, and is trimmed to its contents when the log is
+ * closed.  A log that was never closed, e.g., because its process died, is still readable up to
+ * the last record that made it to disk, and may be opened again to append to it.
+ *
+ * This class is thread-safe.
+ */
+public class TrafficLog
+    implements Closeable
+{
+    /** Which way a message went. */
+    public enum Direction
+    {
+        /** The message was sent by us. */
+        SENT,
+
+        /** The message was received by one of our listeners. */
+        RECEIVED
+    }
+
+    /**
+     * A message read from a log.
+     */
+    public static class Record
+    {
+        /** When the message was sent or received, in microseconds since the epoch. */
+        public final long micros;
+
+        /** Whether the message was sent or received. */
+        public final Direction direction;
+
+        /**
+         * The address the message was sent to, or the address of the listener that received it,
+         * which may be a pattern.
+         */
+        public final DestinationAddress address;
+
+        /** The encoded body of the message. */
+        public final byte[] body;
+
+        public Record (long micros, Direction direction, DestinationAddress address, byte[] body)
+        {
+            this.micros = micros;
+            this.direction = direction;
+            this.address = address;
+            this.body = body;
+        }
+
+        @Override
+        public String toString ()
+        {
+            return StringUtil.fieldsToString(this);
+        }
+    }
+
+    /**
+     * Reads the records of a log in the order they were written.  The file is mapped a chunk at
+     * a time, so logs of any size can be read without their being held in memory.
+     *
+     * This class is not thread-safe.
+     */
+    public static class Reader
+        implements Closeable
+    {
+        /**
+         * Opens the given log for reading.
+         */
+        public Reader (File file)
+            throws IOException
+        {
+            _file = new RandomAccessFile(file, "r");
+            _channel = _file.getChannel();
+            _size = _channel.size();
+        }
+
+        /**
+         * Returns the next record in the log, or null if there are no more.  A record cut off or
+         * garbled by a crash ends the log, along with anything after it.
+         */
+        public Record read ()
+            throws IOException
+        {
+            while (ensure(4)) {
+                int length = _buffer.getInt();
+                if (length <= 0 || !ensure(length)) {
+                    // the unwritten end of a log that wasn't closed, or a record cut off by a crash
+                    break;
+                }
+                byte kind = _buffer.get();
+                if (kind < ADDRESS || kind >= SENT + DIRECTIONS.length) {
+                    break;
+                } else if (kind == ADDRESS) {
+                    DestinationAddress addr;
+                    try {
+                        addr = new DestinationAddress(readString(length - 1));
+                    } catch (RuntimeException re) {
+                        // an address torn by a crash, and nothing after it can be trusted
+                        break;
+                    }
+                    _addresses.add(addr);
+                    _end = getPosition();
+                    continue;
+                } else if (length < RECORD_HEADER) {
+                    break;
+                }
+                long micros = _buffer.getLong();
+                int index = _buffer.getInt();
+                if (index < 0 || index >= _addresses.size()) {
+                    // a record whose address was never written out whole
+                    break;
+                }
+                byte[] body = new byte[length - RECORD_HEADER];
+                _buffer.get(body);
+                _end = getPosition();
+                return new Record(micros, DIRECTIONS[kind - SENT], _addresses.get(index), body);
+            }
+            return null;
+        }
+
+        public void close ()
+            throws IOException
+        {
+            _buffer = null;
+            _file.close();
+        }
+
+        /**
+         * Makes sure there are at least the given number of bytes left in our mapping, mapping
+         * the next part of the file if need be.
+         *
+         * @return false if the file isn't that long.
+         */
+        protected boolean ensure (int bytes)
+            throws IOException
+        {
+            if (_buffer != null && _buffer.remaining() >= bytes) {
+                return true;
+            }
+            long position = getPosition();
+            if (position + bytes > _size) {
+                return false;
+            }
+            _base = position;
+            _buffer = _channel.map(FileChannel.MapMode.READ_ONLY, position,
+                Math.min(_size - position, Math.max(CHUNK_SIZE, bytes)));
+            return true;
+        }
+
+        protected String readString (int length)
+        {
+            byte[] bytes = new byte[length];
+            _buffer.get(bytes);
+            return new String(bytes, Charsets.UTF_8);
+        }
+
+        protected long getPosition ()
+        {
+            return (_buffer == null) ? _base : _base + _buffer.position();
+        }
+
+        protected final RandomAccessFile _file;
+        protected final FileChannel _channel;
+        protected final long _size;
+
+        /** The part of the file we're reading, and where in the file it starts. */
+        protected MappedByteBuffer _buffer;
+        protected long _base;
+
+        /** Where the last whole record we read ends. */
+        protected long _end;
+
+        /** The addresses defined so far, by number. */
+        protected final List<DestinationAddress> _addresses = Lists.newArrayList();
+    }
+
+    /**
+     * Opens the given log for appending, creating it if it doesn't exist.
+     */
+    public TrafficLog (File file)
+        throws IOException
+    {
+        long end = 0;
+        if (file.length() > 0) {
+            // pick up after the last whole record, knowing the addresses already written out
+            Reader reader = new Reader(file);
+            try {
+                while (reader.read() != null) {
+                    // just skipping ahead
+                }
+                end = reader._end;
+                for (DestinationAddress addr : reader._addresses) {
+                    _indices.put(addr, _indices.size());
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        _file = new RandomAccessFile(file, "rw");
+        _channel = _file.getChannel();
+        _base = end;
+        _buffer = _channel.map(FileChannel.MapMode.READ_WRITE, _base, CHUNK_SIZE);
+    }
+
+    /**
+     * Appends a message to the log, stamped with the current time.
+     *
+     * @param direction Whether the message was sent or received.
+     * @param addr Where the message was sent, or the address of the listener that received it.
+     * @param body The encoded body of the message.
+     * @throws IOException The log couldn't be grown to hold the message.
+     * @throws IllegalStateException The log has been closed.
+     */
+    public synchronized void append (Direction direction, DestinationAddress addr, byte[] body)
+        throws IOException
+    {
+        Preconditions.checkState(_buffer != null, "The traffic log is closed.");
+        long micros = now();
+        Integer index = _indices.get(addr);
+        if (index == null) {
+            byte[] name = addr.toString().getBytes(Charsets.UTF_8);
+            reserve(5 + name.length);
+            _buffer.putInt(1 + name.length).put(ADDRESS).put(name);
+            index = _indices.size();
+            _indices.put(addr, index);
+        }
+        reserve(4 + RECORD_HEADER + body.length);
+        _buffer.putInt(RECORD_HEADER + body.length).put((byte)(SENT + direction.ordinal()));
+        _buffer.putLong(micros).putInt(index).put(body);
+    }
+
+    /**
+     * Returns the number of bytes written to the log, including any it held when opened.
+     */
+    public synchronized long getSize ()
+    {
+        return (_buffer == null) ? _base : _base + _buffer.position();
+    }
+
+    /**
+     * Writes everything appended so far out to disk.
+     */
+    public synchronized void force ()
+    {
+        if (_buffer != null) {
+            _buffer.force();
+        }
+    }
+
+    /**
+     * Writes everything appended out to disk and trims the file to the records in it.  Appending
+     * after this will fail.
+     */
+    public synchronized void close ()
+        throws IOException
+    {
+        if (_buffer == null) {
+            return;
+        }
+        long end = getSize();
+        _buffer.force();
+        _buffer = null;
+        _base = end;
+        try {
+            _channel.truncate(end);
+        } finally {
+            _file.close();
+        }
+    }
+
+    /**
+     * Makes sure there's room in our mapping for the given number of bytes, mapping the next part
+     * of the file if not.
+     */
+    protected void reserve (int bytes)
+        throws IOException
+    {
+        if (_buffer.remaining() < bytes) {
+            _base += _buffer.position();
+            _buffer.force();
+            _buffer = _channel.map(FileChannel.MapMode.READ_WRITE, _base,
+                Math.max(CHUNK_SIZE, bytes));
+        }
+    }
+
+    /**
+     * Returns the current time in microseconds since the epoch, from the wall clock when we were
+     * opened and the monotonic clock since.
+     */
+    protected long now ()
+    {
+        return _startMicros + (System.nanoTime() - _startNanos) / 1000;
+    }
+
+    protected final RandomAccessFile _file;
+    protected final FileChannel _channel;
+
+    /** The part of the file we're writing, and where in the file it starts, or null if closed. */
+    protected MappedByteBuffer _buffer;
+    protected long _base;
+
+    /** The number of each address we've written out. */
+    protected final Map<DestinationAddress, Integer> _indices = Maps.newHashMap();
+
+    protected final long _startMicros = System.currentTimeMillis() * 1000;
+    protected final long _startNanos = System.nanoTime();
+
+    /** The kinds of record: an address definition, and a message each way. */
+    protected static final byte ADDRESS = 0, SENT = 1;
+
+    protected static final Direction[] DIRECTIONS = Direction.values();
+
+    /** The bytes of a message record after its length and before its body. */
+    protected static final int RECORD_HEADER = 1 + 8 + 4;
+
+    /** How much of the file is mapped at a time. */
+    protected static final int CHUNK_SIZE = 16 * 1024 * 1024;
+}
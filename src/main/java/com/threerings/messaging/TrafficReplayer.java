@@ -0,0 +1,174 @@
+//
+// $Id$
+
+package com.threerings.messaging;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import com.samskivert.util.StringUtil;
+
+import com.threerings.messaging.util.LatencyHistogram;
+
+/**
+ * Sends the messages in a {@link TrafficLog} through a {@link MessageSender}, e.g., to put a test
+ * setup under the load recorded from production by a {@link RecordingMessageConnection}, or to
+ * compare changes to the library against the same traffic.  Messages are sent with the spacing
+ * they were recorded with, sped up or slowed down by a factor, or one after another as fast as
+ * the sender will take them.  Only messages going the one way are sent; by default those that
+ * were sent, but the messages a service received may be replayed instead, so long as its
+ * listeners weren't on pattern addresses, which messages can't be sent to.
+ *
+ * Messages are sent from the calling thread, so a sender that's slower than the recorded traffic
+ * holds up the messages behind, which is reported as lag.  Messages are sent with the default
+ * options for their address, whatever they were originally sent with.
+ *
+ * This class is not thread-safe.
+ */
+public class TrafficReplayer
+{
+    /**
+     * The outcome of a replay.
+     */
+    public static class Result
+    {
+        /** The number of messages sent without error. */
+        public final int sent;
+
+        /** The number whose sending threw an exception. */
+        public final int failed;
+
+        /** The number skipped because they were received on a pattern address. */
+        public final int skipped;
+
+        /** How long the replay took, in milliseconds. */
+        public final long elapsedMillis;
+
+        /** The messages sent per second. */
+        public final double throughput;
+
+        /** How long each send took, in microseconds. */
+        public final LatencyHistogram latency;
+
+        /**
+         * How far behind its recorded time each message was sent, in microseconds, or nothing
+         * if the replay was as fast as possible.
+         */
+        public final LatencyHistogram lag;
+
+        public Result (int sent, int failed, int skipped, long elapsedMillis,
+            LatencyHistogram latency, LatencyHistogram lag)
+        {
+            this.sent = sent;
+            this.failed = failed;
+            this.skipped = skipped;
+            this.elapsedMillis = elapsedMillis;
+            this.throughput = (elapsedMillis == 0) ? 0 : sent * 1000.0 / elapsedMillis;
+            this.latency = latency;
+            this.lag = lag;
+        }
+
+        @Override
+        public String toString ()
+        {
+            return StringUtil.fieldsToString(this);
+        }
+    }
+
+    /**
+     * Creates a replayer that sends through the given sender, at the recorded speed.
+     */
+    public TrafficReplayer (MessageSender sender)
+    {
+        _sender = sender;
+    }
+
+    /**
+     * Sets how much faster than recorded to send messages: 1 for the recorded speed, 2 for twice
+     * as fast, 0.5 for half as fast, and 0 for as fast as possible.
+     *
+     * @return this replayer, for chaining.
+     */
+    public TrafficReplayer setSpeed (double speed)
+    {
+        Preconditions.checkArgument(speed >= 0, "Invalid replay speed");
+        _speed = speed;
+        return this;
+    }
+
+    /**
+     * Sets which messages are sent: those that were sent when recorded, or those that were
+     * received.
+     *
+     * @return this replayer, for chaining.
+     */
+    public TrafficReplayer setDirection (TrafficLog.Direction direction)
+    {
+        _direction = direction;
+        return this;
+    }
+
+    /**
+     * Sends the messages in the given log, returning when the last has been sent.
+     *
+     * @throws IOException The log couldn't be read.
+     */
+    public Result replay (File log)
+        throws IOException
+    {
+        LatencyHistogram latency = new LatencyHistogram();
+        LatencyHistogram lag = new LatencyHistogram();
+        int sent = 0, failed = 0, skipped = 0;
+        long firstMicros = -1, startNanos = System.nanoTime();
+        TrafficLog.Reader reader = new TrafficLog.Reader(log);
+        try {
+            for (TrafficLog.Record record; (record = reader.read()) != null; ) {
+                if (record.direction != _direction) {
+                    continue;
+                } else if (record.address.isPattern()) {
+                    skipped++;
+                    continue;
+                }
+                if (firstMicros < 0) {
+                    firstMicros = record.micros;
+                    startNanos = System.nanoTime();
+                }
+                if (_speed > 0) {
+                    long due = startNanos +
+                        (long)(TimeUnit.MICROSECONDS.toNanos(record.micros - firstMicros) / _speed);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        Uninterruptibles.sleepUninterruptibly(wait, TimeUnit.NANOSECONDS);
+                        lag.record(0);
+                    } else {
+                        lag.record(TimeUnit.NANOSECONDS.toMicros(-wait));
+                    }
+                }
+                long before = System.nanoTime();
+                try {
+                    _sender.sendMessage(new EncodedMessage(record.body), record.address);
+                    latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - before));
+                    sent++;
+                } catch (IOException ioe) {
+                    failed++;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        return new Result(sent, failed, skipped, elapsed, latency, lag);
+    }
+
+    protected final MessageSender _sender;
+
+    /** How much faster than recorded to send, or 0 for as fast as possible. */
+    protected double _speed = 1;
+
+    /** Which messages to send. */
+    protected TrafficLog.Direction _direction = TrafficLog.Direction.SENT;
+}
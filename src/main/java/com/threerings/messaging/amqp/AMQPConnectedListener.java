@@ -3,23 +3,48 @@
 
 package com.threerings.messaging.amqp;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
 
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.QueueingConsumer;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
 import com.rabbitmq.client.ShutdownSignalException;
 
 import com.samskivert.util.Logger;
 
+import com.threerings.messaging.AddressedMessageListener;
+import com.threerings.messaging.AdmissionController;
+import com.threerings.messaging.BatchMessageListener;
+import com.threerings.messaging.BlobStore;
 import com.threerings.messaging.ConnectedListener;
 import com.threerings.messaging.DestinationAddress;
+import com.threerings.messaging.FailurePolicy;
 import com.threerings.messaging.InMessage;
+import com.threerings.messaging.MessageBatch;
 import com.threerings.messaging.MessageListener;
 import com.threerings.messaging.OutMessage;
+import com.threerings.messaging.SendOptions;
+import com.threerings.messaging.util.RecentIdSet;
+import com.threerings.messaging.util.TimingWheel;
+import com.threerings.messaging.util.WeightedLanes;
 
 /**
  * Implementation of {@link ConnectedListener} for AMQP messages.
@@ -43,19 +68,63 @@ public class AMQPConnectedListener
     public AMQPConnectedListener (String queueName, DestinationAddress addr,
             MessageListener listener, ChannelFactory channelFactory)
     {
-        _queueName = queueName;
-        _addr = addr;
+        this(new AddressedMessageListener(queueName, addr, listener), channelFactory);
+    }
+
+    /**
+     * Creates a new connected listener for the given addressed listener, honoring the options set
+     * on it, and begins listening on its queue for messages.
+     *
+     * @param listener Listener that knows its queue and address.
+     * @param channelFactory Factory for creating channels on a connection.
+     */
+    public AMQPConnectedListener (AddressedMessageListener listener, ChannelFactory channelFactory)
+    {
+        this(listener, channelFactory, false, null);
+    }
+
+    /**
+     * Creates a new connected listener for the given addressed listener, skipping the declaration
+     * of its exchange and queue on the first connection if the caller has already taken care of
+     * it.
+     *
+     * @param declared Whether the listener's exchange, queue, and binding have been declared.
+     * @param blobStore Where to find the bodies of claim-checked messages, or null.
+     */
+    AMQPConnectedListener (AddressedMessageListener listener, ChannelFactory channelFactory,
+        boolean declared, BlobStore blobStore)
+    {
+        _blobStore = blobStore;
+        _queueName = listener.queueName;
+        _addr = listener.address;
         _listener = listener;
+        _batchListener = listener.getBatchListener();
+        _maxBatchSize = listener.getMaxBatchSize();
+        _maxBatchWait = listener.getMaxBatchWait();
+        _ackTracker = (_batchListener == null) ? null : new AckTracker();
+        _prefetch = (listener.getMinPrefetch() == 0 || _batchListener != null) ? null :
+            new PrefetchController(listener.getMinPrefetch(), listener.getMaxPrefetch());
+        // the server would hand an unbounded consumer the whole queue, leaving nothing for the
+        // extra consumers to take
+        _autoscalePrefetch = (_prefetch != null || listener.getMaxConsumers() == 0) ? 0 :
+            Math.max(AUTOSCALE_PREFETCH, (_batchListener == null) ? 0 : _maxBatchSize);
+        _admission = listener.getAdmissionController();
+        _laneWeights = listener.getPriorityLanes();
+        _processedIds = listener.getProcessedIds();
+        _failurePolicy = listener.getFailurePolicy();
+        // batches hold on to their messages, so there's nothing to reuse
+        _reusable = (listener.isReuseMessages() && _batchListener == null) ?
+            new AMQPInMessage(null, null, 0) : null;
         _channelFactory = channelFactory;
         _shutdown = false;
 
         // Attempt to connect.  If we cannot connect on construction, leave it to the connection
         // to attempt to reconnect automatically.
         try {
-            connect();
+            connect(!declared);
         } catch (IOException ioe) {
-            logger.warning("Could not listen on queue.", "queueName", queueName,
-                "address", addr.toString(), ioe);
+            logger.warning("Could not listen on queue.", "queueName", _queueName,
+                "address", _addr.toString(), ioe);
         }
     }
 
@@ -64,13 +133,44 @@ public class AMQPConnectedListener
     {
         _shutdown = true;
 
+        if (_retries != null) {
+            // we hold the only copies of the messages waiting to be retried, so send them now,
+            // on a channel of their own if ours has gone
+            _retryService.shutdown();
+            List<Retry> held = Lists.newArrayList();
+            if (_retries.clear(held) > 0) {
+                logger.info("Retrying held messages early to close", "queue", _queueName,
+                    "count", held.size());
+            }
+            for (Retry retry : held) {
+                try {
+                    retry.send();
+                } catch (Exception e) {
+                    logger.warning("Dropping failed message that could not be retried", "queue",
+                        _queueName, e);
+                }
+            }
+            _retryService = null;
+            _retries = null;
+        }
+        closeChannel();
+    }
+
+    /**
+     * Stops processing messages, and cancels our consumer and closes our channel if they're still
+     * up, leaving the messages waiting to be retried to be retried once we've reconnected.
+     */
+    protected synchronized void closeChannel ()
+        throws IOException
+    {
         if (_service != null) {
             _service.shutdown();
         }
-
         if (_channel != null && !isClosed() && _channel.isOpen()) {
             try {
-                _channel.basicCancel(_consumerTag);
+                if (!_draining) {
+                    _channel.basicCancel(_consumerTag);
+                }
             } finally {
                 // Try closing the channel even if the above failed.
                 _channel.close(AMQP.REPLY_SUCCESS, "Consumer closed.");
@@ -78,12 +178,142 @@ public class AMQPConnectedListener
         }
     }
 
+    /**
+     * Stops the server from handing us any more messages, while leaving the channel open so that
+     * the ones we already have can be processed and acknowledged.  Follow with {@link #awaitIdle}
+     * and {@link #close}.
+     */
+    public synchronized void stopConsuming ()
+        throws IOException
+    {
+        if (_draining || isClosed() || _channel == null || !_channel.isOpen()) {
+            return;
+        }
+        _draining = true;
+        _channel.basicCancel(_consumerTag);
+    }
+
+    /**
+     * Waits until we have no messages buffered or being processed, or the given time has passed.
+     *
+     * @param deadline When to give up, in epoch milliseconds.
+     * @return true if we're idle.
+     */
+    public boolean awaitIdle (long deadline)
+    {
+        while (true) {
+            DeliveryConsumer consumer = _consumer;
+            boolean idle = (_shutdown || consumer == null || consumer.getBufferedCount() == 0) &&
+                _inFlight.get() == 0;
+            long remaining = deadline - System.currentTimeMillis();
+            if (idle || remaining <= 0) {
+                return idle;
+            }
+            try {
+                Thread.sleep(Math.min(remaining, IDLE_POLL_INTERVAL));
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
     public synchronized boolean isClosed()
     {
         // If it was explicitly shutdown, or if it never started.
         return _shutdown || _consumerTag == null;
     }
 
+    /**
+     * Queues a message sent from within this process for processing, as if it had arrived from
+     * the server.  Acknowledging the message does nothing, and a reply, if any, is put in the
+     * given queue.
+     *
+     * @param replies Where to put the reply to the message, or null if none is expected.
+     * @return false if the listener isn't consuming, in which case the message should be sent
+     * through the server instead.
+     */
+    public boolean deliverLocally (AMQP.BasicProperties props, byte[] body,
+        BlockingQueue<byte[]> replies)
+    {
+        DeliveryConsumer consumer = _consumer;
+        if (_shutdown || _draining || consumer == null) {
+            return false;
+        }
+        return consumer.handleLocalDelivery(new Delivery(props, body, replies));
+    }
+
+    /**
+     * Returns a snapshot of how this listener is keeping up.  This doesn't lock the listener, so it
+     * is cheap enough to poll frequently.
+     */
+    public AMQPConnectionStatus.Listener getStatus ()
+    {
+        DeliveryConsumer consumer = _consumer;
+        return new AMQPConnectionStatus.Listener(_queueName, _addr,
+            !_shutdown && _consumerTag != null, _inFlight.get(),
+            (consumer == null) ? 0 : consumer.getBufferedCount(),
+            Math.max(0, _delivered.get() - _acked.get()), _lastDelivery);
+    }
+
+    /**
+     * Returns whether we have an open channel with our consumer on it.
+     */
+    public synchronized boolean isConsuming ()
+    {
+        return !isClosed() && !_draining && _channel != null && _channel.isOpen();
+    }
+
+    /**
+     * Returns the number of messages we've dropped unprocessed because they had expired.
+     */
+    public long getExpiredCount ()
+    {
+        return _expired.get();
+    }
+
+    /**
+     * Returns the number of failed messages we've held on to, to try again later.
+     */
+    public long getRetriedCount ()
+    {
+        return _retried.get();
+    }
+
+    /**
+     * Returns the number of failed messages we've given up on, sending them to the dead-letter
+     * address if there is one.
+     */
+    public long getDeadLetteredCount ()
+    {
+        return _deadLettered.get();
+    }
+
+    /**
+     * Returns the total time the listener has spent processing messages, in nanoseconds.
+     */
+    public long getBusyNanos ()
+    {
+        return _busyNanos.get();
+    }
+
+    /**
+     * Sets where to find the bodies of claim-checked messages.
+     */
+    public void setBlobStore (BlobStore blobStore)
+    {
+        _blobStore = blobStore;
+    }
+
+    /**
+     * Returns the histograms of how long messages to this listener spend in each leg of their
+     * trip.
+     */
+    public ListenerLatency getLatency ()
+    {
+        return _latency;
+    }
+
     /**
      * Begin consuming messages from the queue.  This method assumes the current channel has already
      * been closed, either because it has never connected or because the connection had previously
@@ -91,62 +321,87 @@ public class AMQPConnectedListener
      *
      * @throws IOException An error occurred while attempting to connect.
      */
-    public synchronized void connect ()
+    public void connect ()
+        throws IOException
+    {
+        connect(true);
+    }
+
+    /**
+     * Begin consuming messages from the queue, declaring it first if asked.
+     *
+     * @param declare Whether to declare the exchange, queue, and binding.
+     */
+    protected synchronized void connect (boolean declare)
         throws IOException
     {
         // make sure that the existing channel and service are shutdown in the case we are
-        // reconnecting
-        close();
+        // reconnecting, but hold on to our retries, which we hold the only copies of
+        _shutdown = true;
+        closeChannel();
         _shutdown = false;
+        _draining = false;
 
         _channel = _channelFactory.createChannel();
-        _channel.exchangeDeclare(_addr.exchange, "direct", true);
-        _channel.queueDeclare(_queueName, true);
-        _channel.queueBind(_queueName, _addr.exchange, _addr.getRoutingKey());
-        final QueueingConsumer consumer = new QueueingConsumer(_channel) {
-            @Override
-            public void handleCancelOk (String consumerTag) {
-                super.handleCancelOk(consumerTag);
-                logger.info("Canceled consumer for queue: " + _queueName);
-            }
-
-            @Override
-            public void handleConsumeOk(String consumerTag) {
-                super.handleConsumeOk(consumerTag);
-                _consumerTag = consumerTag;
-                logger.info("Consume OK", "queue", _queueName, "consumerTag", consumerTag);
-            }
-
-            @Override
-            public void handleShutdownSignal (String consumerTag,
-                ShutdownSignalException ex)
-            {
-                super.handleShutdownSignal(consumerTag, ex);
-                logger.info("Disconnected from queue: " + _queueName);
-            }
-
-        };
+        if (declare) {
+            declare(_channel);
+        }
+        final DeliveryConsumer consumer = new DeliveryConsumer(_channel);
+        // delivery tags, and so our counts of unacked messages, start over with each channel
+        _delivered.set(0);
+        _acked.set(0);
+        if (_ackTracker != null) {
+            _ackTracker.clear();
+        }
+        _consumer = consumer;
+        if (_prefetch != null) {
+            _channel.basicQos(_prefetch.getPrefetch());
+        } else if (_autoscalePrefetch > 0) {
+            _channel.basicQos(_autoscalePrefetch);
+        }
         _consumerTag = _channel.basicConsume(_queueName, false, consumer);
 
         _service = Executors.newSingleThreadExecutor();
+        if (_batchListener != null) {
+            _service.execute(new Runnable() {
+                public void run () {
+                    runBatches(consumer);
+                }
+            });
+            return;
+        }
         _service.execute(new Runnable() {
             public void run () {
                 while(!_shutdown) {
-                    QueueingConsumer.Delivery delivery = null;
+                    Delivery delivery = null;
                     try {
+                        long waitStart = System.nanoTime();
+                        boolean starving = _prefetch != null && consumer.getBufferedCount() == 0;
                         delivery = consumer.nextDelivery();
-                        logger.info("Message received from RabbitMQ", "queue", _queueName);
+                        try {
+                            if (starving) {
+                                _prefetch.starved(System.nanoTime() - waitStart);
+                            }
+                            if (_reusable == null) {
+                                logger.info("Message received from RabbitMQ", "queue",
+                                    _queueName);
+                            }
 
-                        // forward the received message to the listener for processing
-                        _listener.received(new AMQPInMessage(delivery.getBody(),
-                            delivery.getProperties(), delivery.getEnvelope().getDeliveryTag()));
+                            // forward the received message to the listener for processing
+                            dispatch(delivery);
+                        } finally {
+                            _inFlight.decrementAndGet();
+                            consumer.recycle(delivery);
+                        }
                     } catch (InterruptedException iex) {
                         if (!_shutdown) {
                             logger.warning("Interrupted while a waiting for messages from RabbitMQ "
                                 + "message.", "queueName", _queueName, iex);
                         }
                     } catch (ShutdownSignalException sse) {
-                        // no problem, we're shutting down
+                        // our channel is gone, and the next one gets a loop of its own
+                        channelLost(consumer, sse);
+                        return;
                     } catch (Throwable ex) {
                         logger.warning("Something nasty happened while processing a RabbitMQ " +
                             "message.", "queueName", _queueName, "delivery", delivery, ex);
@@ -156,15 +411,675 @@ public class AMQPConnectedListener
         });
     }
 
+    /**
+     * Called by the processing thread when the given consumer's channel has shut down.  If the
+     * server closed just the channel under us, we reconnect on our own, since the connection
+     * only reconnects its listeners when it's the whole connection that went down.
+     */
+    protected synchronized void channelLost (DeliveryConsumer consumer, ShutdownSignalException sse)
+    {
+        if (_shutdown || consumer != _consumer || sse.isHardError() ||
+            sse.isInitiatedByApplication()) {
+            return;
+        }
+        logger.warning("Channel closed under listener, reconnecting", "queueName", _queueName,
+            "reason", sse.getReason());
+        try {
+            connect(false);
+        } catch (Exception e) {
+            // the connection will reconnect us if it's the one at fault
+            logger.warning("Could not reconnect listener", "queueName", _queueName, e);
+        }
+    }
+
+    /**
+     * Declares our exchange and queue on the given channel, and binds the queue to our address.
+     */
+    protected void declare (Channel channel)
+        throws IOException
+    {
+        _channelFactory.declareExchange(channel, _addr.exchange);
+        channel.queueDeclare(_queueName, true);
+        channel.queueBind(_queueName, _addr.exchange, _addr.getRoutingKey());
+    }
+
+    /**
+     * Gathers deliveries into batches and hands them to the batch listener until we shut down.
+     */
+    protected void runBatches (DeliveryConsumer consumer)
+    {
+        List<Delivery> deliveries = Lists.newArrayListWithCapacity(_maxBatchSize);
+        while (!_shutdown) {
+            deliveries.clear();
+            try {
+                // each delivery is in flight from when it's taken, while we gather the rest
+                try {
+                    deliveries.add(consumer.nextDelivery());
+                    long deadline = System.currentTimeMillis() + _maxBatchWait;
+                    while (deliveries.size() < _maxBatchSize) {
+                        Delivery next =
+                            consumer.pollDelivery(deadline - System.currentTimeMillis());
+                        if (next == null) {
+                            break;
+                        }
+                        deliveries.add(next);
+                    }
+                    logger.info("Messages received from RabbitMQ", "queue", _queueName,
+                        "count", deliveries.size());
+
+                    dispatch(deliveries);
+                } finally {
+                    _inFlight.addAndGet(-deliveries.size());
+                }
+            } catch (InterruptedException iex) {
+                if (!_shutdown) {
+                    logger.warning("Interrupted while a waiting for messages from RabbitMQ "
+                        + "message.", "queueName", _queueName, iex);
+                }
+            } catch (ShutdownSignalException sse) {
+                // the server will redeliver what we'd gathered, and the next channel gets a loop
+                // of its own
+                channelLost(consumer, sse);
+                return;
+            } catch (Throwable ex) {
+                logger.warning("Something nasty happened while processing a batch of RabbitMQ " +
+                    "messages.", "queueName", _queueName, "deliveries", deliveries, ex);
+            }
+        }
+    }
+
+    /**
+     * Hands a batch of deliveries to the batch listener, less any that have expired or already been
+     * processed, or that the admission controller decides should be shed or requeued instead.
+     */
+    protected void dispatch (List<Delivery> deliveries)
+        throws IOException
+    {
+        List<InMessage> messages = Lists.newArrayListWithCapacity(deliveries.size());
+        List<Delivery> admitted = Lists.newArrayListWithCapacity(deliveries.size());
+        List<Long> idHashes = Lists.newArrayListWithCapacity(deliveries.size());
+        for (Delivery delivery : deliveries) {
+            AMQPInMessage message = delivery.local ? new LocalInMessage(delivery) :
+                new AMQPInMessage(delivery.body, delivery.props, delivery.tag);
+            Long idHash = getIdHash(delivery);
+            if (screen(message, delivery, idHash)) {
+                messages.add(message);
+                admitted.add(delivery);
+                if (idHash != null) {
+                    idHashes.add(idHash);
+                }
+            }
+        }
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        Exception failure = null;
+        try {
+            if (_failurePolicy == null) {
+                _batchListener.received(new AMQPMessageBatch(messages));
+            } else {
+                try {
+                    _batchListener.received(new AMQPMessageBatch(messages));
+                } catch (Exception e) {
+                    failure = e;
+                }
+            }
+        } finally {
+            // the controller learns what each message cost, not what the whole batch did
+            long share = (System.nanoTime() - start) / messages.size();
+            for (InMessage message : messages) {
+                processed(message, share);
+            }
+        }
+        long finished = System.nanoTime();
+        _busyNanos.addAndGet(finished - start);
+        if (failure != null) {
+            List<Integer> unsettled = Lists.newArrayList();
+            for (int ii = 0; ii < messages.size(); ii++) {
+                if (!((AMQPInMessage)messages.get(ii))._settled) {
+                    unsettled.add(ii);
+                }
+            }
+            if (unsettled.size() == 1) {
+                int ii = unsettled.get(0);
+                failed((AMQPInMessage)messages.get(ii), admitted.get(ii), failure);
+                return;
+            }
+            // we can't tell which message was at fault, so rather than charge each an attempt,
+            // we give each a batch of its own, and only those that fail again are charged
+            for (int ii : unsettled) {
+                redispatch((AMQPInMessage)messages.get(ii), admitted.get(ii));
+            }
+            return;
+        }
+        for (Delivery delivery : admitted) {
+            _latency.record(SendTimestamp.getSentAt(delivery.props), delivery.arrived, start,
+                finished);
+        }
+        for (Long idHash : idHashes) {
+            _processedIds.add(idHash);
+        }
+    }
+
+    /**
+     * Hands a message from a batch that failed to the batch listener again in a batch of its own,
+     * and deals with it as failed if it fails again, or as processed if it doesn't.
+     */
+    protected void redispatch (AMQPInMessage message, Delivery delivery)
+        throws IOException
+    {
+        long start = System.nanoTime();
+        Exception failure = null;
+        try {
+            _batchListener.received(new AMQPMessageBatch(Lists.<InMessage>newArrayList(message)));
+        } catch (Exception e) {
+            failure = e;
+        }
+        long finished = System.nanoTime();
+        _busyNanos.addAndGet(finished - start);
+        if (failure != null) {
+            if (!message._settled) {
+                failed(message, delivery, failure);
+            }
+            return;
+        }
+        _latency.record(SendTimestamp.getSentAt(delivery.props), delivery.arrived, start,
+            finished);
+        Long idHash = getIdHash(delivery);
+        if (idHash != null) {
+            _processedIds.add(idHash);
+        }
+    }
+
+    /**
+     * Hands a delivery to the listener, unless it has expired or already been processed, or the
+     * admission controller decides it should be shed or requeued instead.
+     */
+    protected void dispatch (Delivery delivery)
+        throws IOException
+    {
+        if (delivery.local) {
+            dispatch(new LocalInMessage(delivery), delivery);
+        } else if (_reusable == null) {
+            dispatch(new AMQPInMessage(delivery.body, delivery.props, delivery.tag), delivery);
+        } else {
+            _reusable.reset(delivery.body, delivery.props, delivery.tag);
+            try {
+                dispatch(_reusable, delivery);
+            } finally {
+                _reusable.release();
+            }
+        }
+    }
+
+    protected void dispatch (AMQPInMessage message, Delivery delivery)
+        throws IOException
+    {
+        Long idHash = getIdHash(delivery);
+        if (!screen(message, delivery, idHash)) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        Exception failure = null;
+        try {
+            if (_failurePolicy == null) {
+                _listener.received(message);
+            } else {
+                try {
+                    _listener.received(message);
+                } catch (Exception e) {
+                    failure = e;
+                }
+            }
+        } finally {
+            processed(message, System.nanoTime() - start);
+        }
+        long finished = System.nanoTime();
+        _busyNanos.addAndGet(finished - start);
+        if (failure != null) {
+            if (!message._settled) {
+                failed(message, delivery, failure);
+            }
+            return;
+        }
+        _latency.record(SendTimestamp.getSentAt(delivery.props), delivery.arrived, start,
+            finished);
+        if (idHash != null) {
+            _processedIds.add(idHash);
+        }
+        if (_prefetch != null && !delivery.local) {
+            adjustPrefetch(start - delivery.arrived, finished - start);
+        }
+    }
+
+    /**
+     * Feeds the prefetch controller, and passes any new prefetch it comes up with on to the
+     * server.
+     */
+    protected void adjustPrefetch (long queueNanos, long serviceNanos)
+        throws IOException
+    {
+        int prefetch = _prefetch.processed(queueNanos, serviceNanos);
+        if (prefetch > 0) {
+            logger.debug("Adjusting prefetch", "queue", _queueName, "prefetch", prefetch);
+            synchronized (this) {
+                _channel.basicQos(prefetch);
+            }
+        }
+    }
+
+    /**
+     * Returns the hash we remember the delivery's message id by, or null if we aren't
+     * deduplicating or the message has no id.
+     */
+    protected Long getIdHash (Delivery delivery)
+    {
+        String messageId = delivery.props.getMessageId();
+        if (_processedIds == null || messageId == null) {
+            return null;
+        }
+        return Hashing.murmur3_128().hashString(messageId, Charsets.UTF_8).asLong();
+    }
+
+    /**
+     * Decides whether a message should be handed to the listener.  If it has expired, has already
+     * been processed, or the admission controller decides it should be shed, it is acknowledged,
+     * and if the controller decides it should be requeued, it is.  Expired messages are dropped
+     * before anything reads their bodies.
+     *
+     * @param idHash The hash of the message's id, or null if we aren't deduplicating it.
+     * @return true if the listener should process the message.
+     */
+    protected boolean screen (AMQPInMessage message, Delivery delivery, Long idHash)
+        throws IOException
+    {
+        if (Expiry.isExpired(delivery.props, System.currentTimeMillis())) {
+            logger.debug("Dropping expired message", "queue", _queueName,
+                "id", delivery.props.getMessageId());
+            _expired.incrementAndGet();
+            message.ack();
+            return false;
+        }
+        if (idHash != null && _processedIds.contains(idHash)) {
+            logger.debug("Skipping duplicate message", "queue", _queueName,
+                "id", delivery.props.getMessageId());
+            message.ack();
+            return false;
+        }
+        if (_admission == null) {
+            return true;
+        }
+
+        long queueDelay = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - delivery.arrived);
+        switch (_admission.admit(message, queueDelay)) {
+        case SHED:
+            logger.debug("Shedding message", "queue", _queueName, "queueDelay", queueDelay);
+            message.ack();
+            return false;
+        case REQUEUE:
+            int requeues = Retries.getRequeueCount(delivery.props);
+            if (requeues >= MAX_REQUEUES) {
+                // we've stayed behind for as long as it's been going around, so give up on it
+                logger.debug("Shedding message requeued too often", "queue", _queueName,
+                    "queueDelay", queueDelay, "requeues", requeues);
+                message.ack();
+                return false;
+            }
+            logger.debug("Requeueing message", "queue", _queueName, "queueDelay", queueDelay);
+            message.requeue(Retries.withRequeueCount(delivery.props, requeues + 1));
+            return false;
+        default:
+            return true;
+        }
+    }
+
+    /**
+     * Tells the admission controller, if any, how long a message took to process.
+     *
+     * @param nanos How long it took, or its share of the time its batch took, in nanoseconds.
+     */
+    protected void processed (InMessage message, long nanos)
+    {
+        if (_admission != null) {
+            _admission.processed(message, TimeUnit.NANOSECONDS.toMillis(nanos));
+        }
+    }
+
+    /**
+     * Deals with a message the listener failed to process, according to our failure policy.  If
+     * it has attempts left, it's acknowledged at once, so that it doesn't take up one of the
+     * unacknowledged messages the server allows us while it waits, and held until its retry
+     * comes due, when it's published to the back of our queue with its attempts counted.  If
+     * we're closed first, it's published at once.  Otherwise it's sent to the dead-letter
+     * address, if any, and acknowledged.
+     */
+    protected void failed (AMQPInMessage message, Delivery delivery, Exception failure)
+        throws IOException
+    {
+        int attempts = Retries.getCount(delivery.props) + 1;
+        if (attempts < _failurePolicy.maxAttempts) {
+            long delay = _failurePolicy.getRetryDelay(attempts);
+            logger.info("Retrying failed message", "queue", _queueName, "attempts", attempts,
+                "delay", delay, "error", failure);
+            synchronized (this) {
+                getRetries().add(new Retry(delivery, Retries.withCount(delivery.props, attempts)),
+                    System.currentTimeMillis() + delay);
+            }
+            message.ack();
+            _retried.incrementAndGet();
+            return;
+        }
+
+        DestinationAddress deadLetter = _failurePolicy.deadLetter;
+        logger.warning("Giving up on failed message", "queue", _queueName, "attempts", attempts,
+            "deadLetter", deadLetter, failure);
+        if (deadLetter != null) {
+            AMQP.BasicProperties props =
+                Retries.forDeadLetter(delivery.props, attempts, failure, _queueName);
+            // Ensure this doesn't trip up with connect(), shutdown(), etc.
+            synchronized (this) {
+                // dead letters are rare, so we needn't keep track of what we've declared
+                _channelFactory.declareExchange(_channel, deadLetter.exchange);
+                _channel.basicPublish(deadLetter.exchange, deadLetter.getRoutingKey(), props,
+                    delivery.body);
+            }
+        }
+        message.ack();
+        _deadLettered.incrementAndGet();
+    }
+
+    /**
+     * Returns the timer holding messages waiting to be retried, starting the thread that retries
+     * them as they come due if it isn't running.  Must be called while synchronized.
+     */
+    protected TimingWheel<Retry> getRetries ()
+    {
+        if (_retries == null) {
+            _retries = new TimingWheel<Retry>(RETRY_TICK, System.currentTimeMillis());
+            _retryService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread (Runnable r) {
+                    Thread thread = new Thread(r, "AMQPConnectedListener retries " + _queueName);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            _retryService.scheduleWithFixedDelay(new Runnable() {
+                public void run () {
+                    sendRetries();
+                }
+            }, RETRY_TICK, RETRY_TICK, TimeUnit.MILLISECONDS);
+        }
+        return _retries;
+    }
+
+    /**
+     * Retries the messages that have come due.
+     */
+    protected void sendRetries ()
+    {
+        TimingWheel<Retry> retries = _retries;
+        List<Retry> due = Lists.newArrayList();
+        if (retries == null || retries.advance(System.currentTimeMillis(), due) == 0) {
+            return;
+        }
+        for (Retry retry : due) {
+            try {
+                retry.send();
+            } catch (Exception e) {
+                // we hold the only copy now, so try again once we may have reconnected
+                logger.warning("Could not retry failed message", "queue", _queueName, e);
+                retries.add(retry, System.currentTimeMillis() + RETRY_BACKOFF);
+            }
+        }
+    }
+
     // used only for null-ish singleton
     private AMQPConnectedListener () {
         _queueName = null;
         _addr = null;
         _listener = null;
+        _batchListener = null;
+        _prefetch = null;
+        _autoscalePrefetch = 0;
+        _maxBatchSize = 0;
+        _maxBatchWait = 0;
+        _ackTracker = null;
+        _admission = null;
+        _laneWeights = null;
+        _processedIds = null;
+        _failurePolicy = null;
+        _reusable = null;
         _channelFactory = null;
         _shutdown = true; // appear closed
     }
 
+    /**
+     * A message as it was handed to us by the broker, or by a sender in this process, along with
+     * when it arrived.
+     */
+    protected static class Delivery
+    {
+        public long tag;
+        public String routingKey;
+        public AMQP.BasicProperties props;
+        public byte[] body;
+
+        /** When the delivery arrived, in {@link System#nanoTime} terms. */
+        public long arrived;
+
+        /** Whether this was sent from within this process, bypassing the server. */
+        public boolean local;
+
+        /** Where to put the reply to a local delivery, or null. */
+        public BlockingQueue<byte[]> replies;
+
+        public Delivery (Envelope envelope, AMQP.BasicProperties props, byte[] body)
+        {
+            set(envelope, props, body);
+        }
+
+        public Delivery (AMQP.BasicProperties props, byte[] body, BlockingQueue<byte[]> replies)
+        {
+            this.props = props;
+            this.body = body;
+            this.arrived = System.nanoTime();
+            this.local = true;
+            this.replies = replies;
+        }
+
+        /**
+         * Fills in this delivery with a message from the server.
+         */
+        public Delivery set (Envelope envelope, AMQP.BasicProperties props, byte[] body)
+        {
+            this.tag = (envelope == null) ? 0 : envelope.getDeliveryTag();
+            this.routingKey = (envelope == null) ? null : envelope.getRoutingKey();
+            this.props = props;
+            this.body = body;
+            this.arrived = System.nanoTime();
+            return this;
+        }
+
+        /**
+         * Lets go of the message this delivery held, so that it can be reused.
+         */
+        public void clear ()
+        {
+            this.props = null;
+            this.body = null;
+        }
+
+        @Override
+        public String toString ()
+        {
+            return "[tag=" + tag + ", routingKey=" + routingKey + "]";
+        }
+    }
+
+    /**
+     * Buffers deliveries from the broker until our processing thread gets to them.  This works
+     * much like the client's QueueingConsumer, but notes when each delivery arrived, and if the
+     * listener has priority lanes, sorts deliveries into them.
+     */
+    protected class DeliveryConsumer extends DefaultConsumer
+    {
+        public DeliveryConsumer (Channel channel)
+        {
+            super(channel);
+        }
+
+        /**
+         * Waits for the next delivery, which counts as in flight from then on, until the caller
+         * takes it off the count.
+         *
+         * @throws ShutdownSignalException The channel was shut down.
+         */
+        public Delivery nextDelivery ()
+            throws InterruptedException
+        {
+            return taken(_queue.take());
+        }
+
+        /**
+         * Waits up to the given number of milliseconds for the next delivery, which counts as in
+         * flight as with {@link #nextDelivery}.
+         *
+         * @return the delivery, or null if none arrived in time.
+         * @throws ShutdownSignalException The channel was shut down.
+         */
+        public Delivery pollDelivery (long timeout)
+            throws InterruptedException
+        {
+            Delivery delivery = _queue.poll(timeout);
+            return (delivery == null) ? null : taken(delivery);
+        }
+
+        /**
+         * Counts a delivery just taken off the buffer as in flight, so that we never look idle
+         * between the two, unless it's the sign the channel was shut down.
+         */
+        protected Delivery taken (Delivery delivery)
+        {
+            checkShutdown(delivery);
+            _inFlight.incrementAndGet();
+            return delivery;
+        }
+
+        @Override
+        public void handleDelivery (String consumerTag, Envelope envelope,
+            AMQP.BasicProperties properties, byte[] body)
+        {
+            checkShutdown(null);
+            _delivered.incrementAndGet();
+            _lastDelivery = System.currentTimeMillis();
+            if (_ackTracker != null) {
+                _ackTracker.delivered(envelope.getDeliveryTag());
+            }
+            Delivery delivery = (_reusable == null) ? null : _free.poll();
+            if (delivery == null) {
+                delivery = new Delivery(envelope, properties, body);
+            } else {
+                delivery.set(envelope, properties, body);
+            }
+            _queue.add(delivery, getLane(properties));
+        }
+
+        /**
+         * Returns a processed delivery to the pool, if the listener reuses its messages.
+         */
+        public void recycle (Delivery delivery)
+        {
+            if (_reusable != null && delivery != null && !delivery.local) {
+                delivery.clear();
+                _free.offer(delivery);
+            }
+        }
+
+        /**
+         * Queues a delivery from within this process.
+         *
+         * @return false if our channel has already been shut down.
+         */
+        public boolean handleLocalDelivery (Delivery delivery)
+        {
+            if (_shutdownSignal != null) {
+                return false;
+            }
+            _queue.add(delivery, getLane(delivery.props));
+            return true;
+        }
+
+        /**
+         * Returns the number of deliveries waiting to be processed.
+         */
+        public int getBufferedCount ()
+        {
+            int size = _queue.size();
+            // don't count the poison pill
+            return (_shutdownSignal == null) ? size : Math.max(0, size - 1);
+        }
+
+        @Override
+        public void handleCancelOk (String consumerTag) {
+            super.handleCancelOk(consumerTag);
+            logger.info("Canceled consumer for queue: " + _queueName);
+        }
+
+        @Override
+        public void handleConsumeOk(String consumerTag) {
+            super.handleConsumeOk(consumerTag);
+            _consumerTag = consumerTag;
+            logger.info("Consume OK", "queue", _queueName, "consumerTag", consumerTag);
+        }
+
+        @Override
+        public void handleShutdownSignal (String consumerTag,
+            ShutdownSignalException ex)
+        {
+            super.handleShutdownSignal(consumerTag, ex);
+            _shutdownSignal = ex;
+            _queue.add(POISON, _queue.getLaneCount() - 1);
+            logger.info("Disconnected from queue: " + _queueName);
+        }
+
+        protected Delivery checkShutdown (Delivery delivery)
+        {
+            if (delivery == POISON) {
+                // leave it there for anyone else waiting
+                _queue.add(POISON, _queue.getLaneCount() - 1);
+            }
+            if (delivery == POISON || (delivery == null && _shutdownSignal != null)) {
+                throw _shutdownSignal;
+            }
+            return delivery;
+        }
+
+        /**
+         * Returns the lane for a message with the given properties.
+         */
+        protected int getLane (AMQP.BasicProperties props)
+        {
+            Integer priority = props.getPriority();
+            if (priority == null || _queue.getLaneCount() == 1) {
+                return 0;
+            }
+            int clamped = Math.max(SendOptions.MIN_PRIORITY,
+                Math.min(SendOptions.MAX_PRIORITY, priority));
+            return clamped * _queue.getLaneCount() / (SendOptions.MAX_PRIORITY + 1);
+        }
+
+        protected final WeightedLanes<Delivery> _queue = (_laneWeights == null) ?
+            new WeightedLanes<Delivery>(1) : new WeightedLanes<Delivery>(_laneWeights);
+        protected volatile ShutdownSignalException _shutdownSignal;
+
+        /** Processed deliveries waiting to be reused. */
+        protected final BlockingQueue<Delivery> _free = (_reusable == null) ? null :
+            new ArrayBlockingQueue<Delivery>(DELIVERY_POOL_SIZE);
+    }
+
     protected class AMQPInMessage implements InMessage
     {
         public AMQPInMessage (byte[] body, AMQP.BasicProperties props, long deliveryTag)
@@ -172,28 +1087,99 @@ public class AMQPConnectedListener
             _body = body;
             _props = props;
             _deliveryTag = deliveryTag;
+            _valid = true;
+        }
+
+        /**
+         * Makes this (reusable) message represent the given delivery.
+         */
+        public void reset (byte[] body, AMQP.BasicProperties props, long deliveryTag)
+        {
+            _body = body;
+            _props = props;
+            _deliveryTag = deliveryTag;
+            _claimed = null;
+            _valid = true;
+        }
 
+        /**
+         * Marks this (reusable) message as done with, so that any further use of it fails.
+         */
+        public void release ()
+        {
+            _body = null;
+            _props = null;
+            _claimed = null;
+            _valid = false;
+        }
+
+        public InMessage detach ()
+        {
+            checkValid();
+            return (this == _reusable) ? new AMQPInMessage(_body, _props, _deliveryTag) : this;
         }
 
         public void ack ()
             throws IOException
         {
+            checkValid();
             // Ensure this doesn't trip up with connect(), shutdown(), etc.
             synchronized (AMQPConnectedListener.this) {
                 // Acknowledge the message only after it has been successfully processed.
                 _channel.basicAck(_deliveryTag, false);
+                settled();
             }
-
+            _acked.incrementAndGet();
         }
 
         public byte[] getBody ()
         {
-            return _body;
+            checkValid();
+            String key = ClaimCheck.getKey(_props, _body);
+            if (key == null) {
+                return _body;
+            }
+            if (_claimed == null) {
+                ByteBuffer buffer = ClaimCheck.claim(_blobStore, key);
+                byte[] claimed = new byte[buffer.remaining()];
+                buffer.get(claimed);
+                _claimed = claimed;
+            }
+            return _claimed;
+        }
+
+        public ByteBuffer getBodyBuffer ()
+        {
+            checkValid();
+            String key = ClaimCheck.getKey(_props, _body);
+            if (key == null || _claimed != null) {
+                return ByteBuffer.wrap(getBody()).asReadOnlyBuffer();
+            }
+            return ClaimCheck.claim(_blobStore, key).asReadOnlyBuffer();
+        }
+
+        /**
+         * Publishes this message again, with the given properties, to the back of its queue and
+         * acknowledges this copy.
+         */
+        public void requeue (AMQP.BasicProperties props)
+            throws IOException
+        {
+            checkValid();
+            synchronized (AMQPConnectedListener.this) {
+                // the default exchange routes straight to our queue, not to every queue bound to
+                // the same key
+                _channel.basicPublish("", _queueName, props, _body);
+                _channel.basicAck(_deliveryTag, false);
+                settled();
+            }
+            _acked.incrementAndGet();
         }
 
         public void reply (OutMessage message)
             throws IOException
         {
+            checkValid();
             // Ensure this doesn't trip up with connect(), shutdown(), etc.
             synchronized (AMQPConnectedListener.this) {
                 _channel.basicPublish(_addr.exchange, _props.getReplyTo(), _props,
@@ -201,19 +1187,269 @@ public class AMQPConnectedListener
             }
         }
 
+        /**
+         * Notes that this message has been acknowledged on its own.
+         */
+        protected void settled ()
+        {
+            _settled = true;
+            if (_ackTracker != null) {
+                _ackTracker.acked(_deliveryTag);
+            }
+        }
+
+        protected void checkValid ()
+        {
+            if (!_valid) {
+                throw new IllegalStateException(
+                    "Reused message accessed after processing; use detach() to keep it.");
+            }
+        }
+
+        protected AMQP.BasicProperties _props;
+        protected long _deliveryTag;
+        protected byte[] _body;
+        protected boolean _valid;
+
+        /** The claim-checked body, once it has been copied out of the store. */
+        protected byte[] _claimed;
+
+        /** Whether this message has been acknowledged on its own, outside of any batch. */
+        protected boolean _settled;
+    }
+
+    /**
+     * A message that was sent from within this process, so it has nothing to acknowledge, and
+     * replies go straight back to the waiting sender.
+     */
+    protected class LocalInMessage extends AMQPInMessage
+    {
+        public LocalInMessage (Delivery delivery)
+        {
+            super(delivery.body, delivery.props, 0);
+            _delivery = delivery;
+        }
+
+        @Override
+        public void ack ()
+        {
+            // nothing to acknowledge, but the listener is done with it all the same
+            _settled = true;
+        }
+
+        @Override
+        public void reply (OutMessage message)
+        {
+            if (_delivery.replies == null || !_delivery.replies.offer(message.encodeMessage())) {
+                logger.warning("Dropping unexpected reply to a local message.", "queue",
+                    _queueName, "message", message);
+            }
+        }
+
+        @Override
+        public void requeue (AMQP.BasicProperties props)
+        {
+            if (!deliverLocally(props, _delivery.body, _delivery.replies)) {
+                logger.warning("Dropping local message that could not be requeued.", "queue",
+                    _queueName);
+            }
+        }
+
+        protected final Delivery _delivery;
+    }
+
+    /**
+     * A failed message waiting to be tried again.  This copies what it needs from the delivery,
+     * since deliveries are reused, and the failed copy has been acknowledged.
+     */
+    protected class Retry
+    {
+        public Retry (Delivery delivery, AMQP.BasicProperties props)
+        {
+            _props = props;
+            _body = delivery.body;
+            _local = delivery.local;
+            _replies = delivery.replies;
+        }
+
+        /**
+         * Puts the message back on our queue, on our channel, or if it has gone, on a channel of
+         * its own.
+         *
+         * @throws IOException No channel could be had to publish it on.
+         */
+        public void send ()
+            throws IOException
+        {
+            if (_local) {
+                if (!deliverLocally(_props, _body, _replies)) {
+                    logger.warning("Dropping local message that could not be retried.", "queue",
+                        _queueName);
+                }
+                return;
+            }
+            // Ensure this doesn't trip up with connect(), shutdown(), etc.
+            synchronized (AMQPConnectedListener.this) {
+                if (_channel != null && _channel.isOpen()) {
+                    try {
+                        // the default exchange routes straight to the queue, not its neighbors
+                        _channel.basicPublish("", _queueName, _props, _body);
+                        return;
+                    } catch (ShutdownSignalException sse) {
+                        // it went as we used it; fall through to a channel of our own
+                    }
+                }
+            }
+            Channel channel = _channelFactory.createChannel();
+            try {
+                channel.basicPublish("", _queueName, _props, _body);
+            } finally {
+                try {
+                    channel.close(AMQP.REPLY_SUCCESS, "Failed message retried.");
+                } catch (ShutdownSignalException sse) {
+                    // Do nothing, it's already closed.
+                }
+            }
+        }
+
         protected final AMQP.BasicProperties _props;
-        protected final long _deliveryTag;
         protected final byte[] _body;
+        protected final boolean _local;
+        protected final BlockingQueue<byte[]> _replies;
     }
 
+    /**
+     * A batch of messages from the server, and possibly from within this process, that is
+     * acknowledged with a single multiple ack when that wouldn't also acknowledge messages outside
+     * the batch, and one ack per message otherwise.
+     */
+    protected class AMQPMessageBatch
+        implements MessageBatch
+    {
+        public AMQPMessageBatch (List<InMessage> messages)
+        {
+            _messages = messages;
+        }
+
+        public List<InMessage> getMessages ()
+        {
+            return _messages;
+        }
+
+        public void ack ()
+            throws IOException
+        {
+            long[] tags = new long[_messages.size()];
+            int count = 0;
+            for (InMessage message : _messages) {
+                if (!(message instanceof LocalInMessage) && !((AMQPInMessage)message)._settled) {
+                    tags[count++] = ((AMQPInMessage)message)._deliveryTag;
+                }
+            }
+            if (count == 0) {
+                return;
+            }
+            tags = Arrays.copyOf(tags, count);
+            Arrays.sort(tags);
+
+            // Ensure this doesn't trip up with connect(), shutdown(), etc.
+            synchronized (AMQPConnectedListener.this) {
+                if (_ackTracker.ackThrough(tags)) {
+                    _channel.basicAck(tags[count - 1], true);
+                } else {
+                    for (long tag : tags) {
+                        _channel.basicAck(tag, false);
+                        _ackTracker.acked(tag);
+                    }
+                }
+                for (InMessage message : _messages) {
+                    ((AMQPInMessage)message)._settled = true;
+                }
+            }
+            _acked.addAndGet(count);
+        }
+
+        protected final List<InMessage> _messages;
+    }
+
+    /** How often {@link #awaitIdle} checks whether we're idle, in milliseconds. */
+    protected static final long IDLE_POLL_INTERVAL = 10;
+
+    /** The prefetch of an autoscaled listener whose prefetch isn't tuned, at least a batch. */
+    protected static final int AUTOSCALE_PREFETCH = 100;
+
+    /** The most times a message is requeued by the admission controller before it's shed. */
+    protected static final int MAX_REQUEUES = 3;
+
+    /** How often we look for messages due to be retried, in milliseconds. */
+    protected static final long RETRY_TICK = 10;
+
+    /** How long to wait before trying again to retry a message we couldn't, in milliseconds. */
+    protected static final long RETRY_BACKOFF = 1000;
+
+    /** The most processed deliveries kept around for reuse. */
+    protected static final int DELIVERY_POOL_SIZE = 64;
+
+    /** Marks the end of the deliveries for a consumer whose channel has shut down. */
+    protected static final Delivery POISON = new Delivery((Envelope)null, null, null);
+
     private static final Logger logger = Logger.getLogger(AMQPMessageConnection.class);
 
     protected final String _queueName;
     protected final DestinationAddress _addr;
     protected final MessageListener _listener;
+
+    /** The listener to pass batches to, or null if we process one message at a time. */
+    protected final BatchMessageListener _batchListener;
+    protected final int _maxBatchSize;
+    protected final long _maxBatchWait;
+
+    /** Tracks unacknowledged deliveries so batches can be multiple acked, if we take batches. */
+    protected final AckTracker _ackTracker;
+    /** Tunes our prefetch, or null if we leave it to the server. */
+    protected final PrefetchController _prefetch;
+
+    /** The fixed prefetch we ask for because we're autoscaled and not tuned, or 0 for none. */
+    protected final int _autoscalePrefetch;
+    protected final AdmissionController _admission;
+    protected final int[] _laneWeights;
+    protected final RecentIdSet _processedIds;
+
+    /** What to do with messages the listener fails to process, or null to leave them be. */
+    protected final FailurePolicy _failurePolicy;
+
+    /** Failed messages waiting to be retried, and the thread that retries them, once needed. */
+    protected volatile TimingWheel<Retry> _retries;
+    protected ScheduledExecutorService _retryService;
+
+    /** The message reused for each delivery, or null if the listener doesn't reuse messages. */
+    protected final AMQPInMessage _reusable;
     protected final ChannelFactory _channelFactory;
     protected ExecutorService _service;
     protected Channel _channel;
-    protected String _consumerTag;
-    protected boolean _shutdown;
+    protected volatile DeliveryConsumer _consumer;
+    protected volatile String _consumerTag;
+    protected volatile boolean _shutdown;
+
+    /** Whether we've stopped consuming, to finish up what we have before closing. */
+    protected volatile boolean _draining;
+
+    protected final ListenerLatency _latency = new ListenerLatency();
+
+    /** Where to find the bodies of claim-checked messages, or null if we don't expect any. */
+    protected volatile BlobStore _blobStore;
+    protected final AtomicInteger _inFlight = new AtomicInteger();
+
+    /** The number of messages dropped because they had expired. */
+    protected final AtomicLong _expired = new AtomicLong();
+
+    /** The number of failed messages held to retry, and given up on. */
+    protected final AtomicLong _retried = new AtomicLong();
+    protected final AtomicLong _deadLettered = new AtomicLong();
+
+    /** The total time spent in the listener, in nanoseconds. */
+    protected final AtomicLong _busyNanos = new AtomicLong();
+    protected final AtomicLong _delivered = new AtomicLong();
+    protected final AtomicLong _acked = new AtomicLong();
+    protected volatile long _lastDelivery;
 }
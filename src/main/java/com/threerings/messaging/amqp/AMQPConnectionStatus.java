@@ -0,0 +1,137 @@
+//
+// $Id$
+
+package com.threerings.messaging.amqp;
+
+import java.util.List;
+
+import com.samskivert.util.StringUtil;
+
+import com.threerings.messaging.DestinationAddress;
+
+/**
+ * A snapshot of the health of an {@link AMQPMessageConnection} and the listeners and destinations
+ * using it, as returned by {@link AMQPMessageConnection#getStatus}.  Taking a snapshot doesn't
+ * lock anything, so the figures may be slightly inconsistent with each other.
+ *
+ * This class is immutable.
+ */
+public class AMQPConnectionStatus
+{
+    /**
+     * The state of one listener.
+     */
+    public static class Listener
+    {
+        /** The queue the listener consumes. */
+        public final String queueName;
+
+        /** The address the queue is bound to. */
+        public final DestinationAddress address;
+
+        /** Whether the listener is currently consuming its queue. */
+        public final boolean consuming;
+
+        /** The number of messages being processed right now. */
+        public final int inFlight;
+
+        /** The number of messages delivered to us and waiting to be processed. */
+        public final int buffered;
+
+        /** The number of messages delivered on the current channel and not yet acknowledged. */
+        public final long unacked;
+
+        /** When the last message was delivered, in epoch milliseconds, or 0 if none has been. */
+        public final long lastDelivery;
+
+        public Listener (String queueName, DestinationAddress address, boolean consuming,
+            int inFlight, int buffered, long unacked, long lastDelivery)
+        {
+            this.queueName = queueName;
+            this.address = address;
+            this.consuming = consuming;
+            this.inFlight = inFlight;
+            this.buffered = buffered;
+            this.unacked = unacked;
+            this.lastDelivery = lastDelivery;
+        }
+
+        @Override
+        public String toString ()
+        {
+            return StringUtil.fieldsToString(this);
+        }
+    }
+
+    /**
+     * The state of one replying destination.
+     */
+    public static class Destination
+    {
+        /** The address requests are sent to. */
+        public final DestinationAddress address;
+
+        /** The number of requests waiting for a reply. */
+        public final int pending;
+
+        /** How long the oldest pending request has waited, in milliseconds, or 0 if none. */
+        public final long oldestPendingAge;
+
+        public Destination (DestinationAddress address, int pending, long oldestPendingAge)
+        {
+            this.address = address;
+            this.pending = pending;
+            this.oldestPendingAge = oldestPendingAge;
+        }
+
+        @Override
+        public String toString ()
+        {
+            return StringUtil.fieldsToString(this);
+        }
+    }
+
+    /** Whether the connection to the server is currently open. */
+    public final boolean connected;
+
+    /** The number of times a connection has been established, including the first. */
+    public final int connectCount;
+
+    /** When the connection was last established, in epoch milliseconds, or 0 if never. */
+    public final long lastConnected;
+
+    /** When the connection was last lost, in epoch milliseconds, or 0 if never. */
+    public final long lastDisconnected;
+
+    /** The number of messages published by the sender. */
+    public final long publishCount;
+
+    /** The recent rate of publishing by the sender, in messages per second. */
+    public final double publishRate;
+
+    /** The state of each of the connection's listeners. */
+    public final List<Listener> listeners;
+
+    /** The state of each of the sender's replying destinations. */
+    public final List<Destination> destinations;
+
+    public AMQPConnectionStatus (boolean connected, int connectCount, long lastConnected,
+        long lastDisconnected, long publishCount, double publishRate, List<Listener> listeners,
+        List<Destination> destinations)
+    {
+        this.connected = connected;
+        this.connectCount = connectCount;
+        this.lastConnected = lastConnected;
+        this.lastDisconnected = lastDisconnected;
+        this.publishCount = publishCount;
+        this.publishRate = publishRate;
+        this.listeners = listeners;
+        this.destinations = destinations;
+    }
+
+    @Override
+    public String toString ()
+    {
+        return StringUtil.fieldsToString(this);
+    }
+}
@@ -3,6 +3,12 @@
 
 package com.threerings.messaging.amqp;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableSet;
+
 import com.rabbitmq.client.Address;
 
 /**
@@ -30,6 +36,13 @@ public final class AMQPMessageConfig
     /** Seconds between heartbeats between client and server. */
     public final int heartBeat;
 
+    /**
+     * Exchanges declared as topic exchanges, on which listeners may use pattern addresses.  The
+     * rest are direct exchanges.  An existing exchange can't change type, so an exchange already
+     * declared direct on the server must be deleted before it can be listed here.
+     */
+    public final Set<String> topicExchanges;
+
     /**
      * Constructs a new AMQP configuration.
      *
@@ -43,6 +56,19 @@ public final class AMQPMessageConfig
      */
     public AMQPMessageConfig (String hostAddresses, String virtualHost, String username,
             String password, String realm, int heartBeat)
+    {
+        this(hostAddresses, virtualHost, username, password, realm, heartBeat,
+            Collections.<String>emptySet());
+    }
+
+    /**
+     * Constructs a new AMQP configuration with some topic exchanges.
+     *
+     * @param topicExchanges Exchanges to declare as topic exchanges, rather than direct.
+     * @see #AMQPMessageConfig(String, String, String, String, String, int)
+     */
+    public AMQPMessageConfig (String hostAddresses, String virtualHost, String username,
+            String password, String realm, int heartBeat, Collection<String> topicExchanges)
     {
         this.hostAddresses = Address.parseAddresses(hostAddresses);
         this.virtualHost = virtualHost;
@@ -50,6 +76,15 @@ public final class AMQPMessageConfig
         this.password = password;
         this.realm = realm;
         this.heartBeat = heartBeat;
+        this.topicExchanges = ImmutableSet.copyOf(topicExchanges);
+    }
+
+    /**
+     * Returns the AMQP type to declare the given exchange as, "topic" or "direct".
+     */
+    public String getExchangeType (String exchange)
+    {
+        return topicExchanges.contains(exchange) ? "topic" : "direct";
     }
 
     @Override
@@ -63,6 +98,7 @@ public final class AMQPMessageConfig
         sb.append(", username: ").append(username);
         sb.append(", realm: ").append(realm);
         sb.append(", heartBeat: ").append(heartBeat);
+        sb.append(", topicExchanges: ").append(topicExchanges);
         return sb.toString();
     }
 }
@@ -4,14 +4,30 @@
 package com.threerings.messaging.amqp;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Uninterruptibles;
 
+import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
@@ -20,8 +36,12 @@ import com.rabbitmq.client.ShutdownListener;
 import com.rabbitmq.client.ShutdownSignalException;
 import com.samskivert.util.Logger;
 import com.threerings.messaging.AddressedMessageListener;
+import com.threerings.messaging.BlobStore;
+import com.threerings.messaging.DestinationAddress;
 import com.threerings.messaging.MessageConnection;
 import com.threerings.messaging.MessageSender;
+import com.threerings.messaging.RateLimit;
+import com.threerings.messaging.SendOptions;
 
 /**
  * Implementation of {@link MessageConnection} to use with AMQP messages.
@@ -54,8 +74,13 @@ public class AMQPMessageConnection
                 return _conn.createChannel();
             }
 
+            public void declareExchange (Channel channel, String exchange)
+                throws IOException
+            {
+                channel.exchangeDeclare(exchange, _config.getExchangeType(exchange), true);
+            }
         };
-        _sender = new AMQPMessageSender(_channelFactory);
+        _sender = new AMQPMessageSender(_channelFactory, _router);
 
         _reconnectService = Executors.newSingleThreadScheduledExecutor();
         // schedule a connection attempt immediately on the reconnect thread
@@ -67,13 +92,208 @@ public class AMQPMessageConnection
         return (conn != null && conn.isOpen());
     }
 
+    /**
+     * Turns on or off the short-circuiting of messages to listeners in this process.  When on,
+     * non-persistent messages and requests from replying destinations whose address is bound to
+     * a listener of this connection are handed straight to that listener, rather than making a
+     * round trip through the server.  Persistent messages, and messages with no local listener,
+     * still go through the server.  Note that listeners in other processes won't see
+     * short-circuited messages, so this should only be used where any listener will do.
+     */
+    public void setLocalDelivery (boolean enabled)
+    {
+        _router.setEnabled(enabled);
+    }
+
+    /**
+     * Sets the options to send messages to the given address with when none are given, or goes
+     * back to the defaults if null is given.  See {@link AMQPMessageSender#setDefaultOptions}.
+     */
+    public void setDefaultOptions (DestinationAddress addr, SendOptions options)
+    {
+        _sender.setDefaultOptions(addr, options);
+    }
+
+    /**
+     * Limits the rate at which messages may be sent to the given address, or removes the limit if
+     * null is given.  See {@link AMQPMessageSender#setRateLimit}.
+     */
+    public void setRateLimit (DestinationAddress addr, RateLimit limit)
+    {
+        _sender.setRateLimit(addr, limit);
+    }
+
+    /**
+     * Limits the rate at which messages may be sent to addresses on the given exchange, or
+     * removes the limit if null is given.  See {@link AMQPMessageSender#setExchangeRateLimit}.
+     */
+    public void setExchangeRateLimit (String exchange, RateLimit limit)
+    {
+        _sender.setExchangeRateLimit(exchange, limit);
+    }
+
+    /**
+     * Sends message bodies larger than the given size by claim check through the given store,
+     * and has our listeners read such bodies from it.  See {@link AMQPMessageSender#setClaimCheck}.
+     * Pass a null store to turn this off.
+     *
+     * @param threshold The largest body to send through the server, in bytes.
+     */
+    public void setClaimCheck (BlobStore store, int threshold)
+    {
+        _blobStore = store;
+        _sender.setClaimCheck(store, threshold);
+        for (AMQPConnectedListener listener : _listeners.values()) {
+            if (listener != AMQPConnectedListener.NULL) {
+                listener.setBlobStore(store);
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot of the health of this connection, its listeners, and the destinations
+     * and publishing of its sender.  Nothing is locked while the snapshot is taken, so this is
+     * cheap enough to poll frequently, e.g., to decide whether to route load away from us.
+     */
+    public AMQPConnectionStatus getStatus ()
+    {
+        List<AMQPConnectionStatus.Listener> listeners = Lists.newArrayList();
+        for (Map.Entry<AddressedMessageListener, AMQPConnectedListener> entry :
+                 _listeners.entrySet()) {
+            AMQPConnectedListener connected = entry.getValue();
+            if (connected == AMQPConnectedListener.NULL) {
+                AddressedMessageListener listener = entry.getKey();
+                listeners.add(new AMQPConnectionStatus.Listener(
+                    listener.queueName, listener.address, false, 0, 0, 0, 0));
+            } else {
+                listeners.add(connected.getStatus());
+            }
+            AutoscaledListener scaled = _autoscaled.get(entry.getKey());
+            if (scaled != null) {
+                for (AMQPConnectedListener extra : scaled.getExtras()) {
+                    listeners.add(extra.getStatus());
+                }
+            }
+        }
+        return new AMQPConnectionStatus(isConnected(), _connectCount.get(), _lastConnected,
+            _lastDisconnected, _sender.getPublished().getCount(),
+            _sender.getPublished().getRate(), listeners, _sender.getDestinationStatus());
+    }
+
+    /**
+     * Returns the histograms of where the time goes for messages to each of our listeners, by
+     * address.  Listeners waiting to reconnect are left out, and where several queues share an
+     * address, only one of them is included.
+     */
+    public Map<DestinationAddress, ListenerLatency> getLatencies ()
+    {
+        Map<DestinationAddress, ListenerLatency> latencies = Maps.newHashMap();
+        for (AMQPConnectedListener listener : _listeners.values()) {
+            if (listener != AMQPConnectedListener.NULL) {
+                latencies.put(listener._addr, listener.getLatency());
+            }
+        }
+        return latencies;
+    }
+
     public void listen (AddressedMessageListener listener)
     {
-        AMQPConnectedListener connectedListener;
+        prepareListener(listener);
+        if (deferUntilConnected(Collections.singleton(listener))) {
+            return;
+        }
+        logger.info("Connecting listener", "listener", listener);
+        AMQPConnectedListener connectedListener =
+            new AMQPConnectedListener(listener, _channelFactory, false, _blobStore);
+        _listeners.put(listener, connectedListener);
+        _router.add(connectedListener);
+    }
 
+    /**
+     * Listens with each of the given listeners.  Their exchanges and queues are all declared and
+     * bound on a single channel, each exchange only once, and then their consumers are started
+     * on several threads at once.
+     */
+    public void listen (Collection<AddressedMessageListener> listeners)
+    {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        for (AddressedMessageListener listener : listeners) {
+            prepareListener(listener);
+        }
+        boolean declared = false;
+        if (isConnected()) {
+            try {
+                declare(listeners);
+                declared = true;
+            } catch (Exception e) {
+                // each listener will declare its own, and fail on its own if it must
+                logger.warning("Could not declare listener queues in bulk",
+                    "count", listeners.size(), e);
+            }
+        }
+        if (deferUntilConnected(listeners)) {
+            return;
+        }
+
+        logger.info("Connecting listeners", "count", listeners.size());
+        final boolean wasDeclared = declared;
+        ExecutorService executor = Executors.newFixedThreadPool(
+            Math.min(listeners.size(), BULK_LISTEN_THREADS));
+        try {
+            List<Future<AMQPConnectedListener>> connecting = Lists.newArrayList();
+            for (final AddressedMessageListener listener : listeners) {
+                connecting.add(executor.submit(new Callable<AMQPConnectedListener>() {
+                    public AMQPConnectedListener call () {
+                        return new AMQPConnectedListener(
+                            listener, _channelFactory, wasDeclared, _blobStore);
+                    }
+                }));
+            }
+            int ii = 0;
+            for (AddressedMessageListener listener : listeners) {
+                AMQPConnectedListener connectedListener = getConnected(connecting.get(ii++));
+                _listeners.put(listener, connectedListener);
+                _router.add(connectedListener);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Leaves the given listeners to be connected when we next connect, if we aren't connected
+     * now.  This is synchronized with {@link #connect}, so that a connection that comes up while
+     * we're looking either is seen to be up, or finds the listeners waiting for it.
+     *
+     * @return true if the listeners were deferred.
+     */
+    protected synchronized boolean deferUntilConnected (
+        Collection<AddressedMessageListener> listeners)
+    {
+        if (isConnected()) {
+            return false;
+        }
+        logger.info("Deferring listeners until we reconnect", "listeners", listeners);
+        for (AddressedMessageListener listener : listeners) {
+            _listeners.put(listener, AMQPConnectedListener.NULL);
+        }
+        return true;
+    }
+
+    /**
+     * Closes down the connected listener for the given listener, if there already is one, so that
+     * it can be replaced, warns about patterns that won't work, and starts autoscaling the
+     * listener if it asks for that.
+     */
+    protected void prepareListener (AddressedMessageListener listener)
+    {
+        startAutoscaling(listener);
         // check to see if this listener already exists, if so, we will reconnect
         if (_listeners.containsKey(listener)) {
-            connectedListener = _listeners.get(listener);
+            AMQPConnectedListener connectedListener = _listeners.get(listener);
+            _router.remove(connectedListener);
             if (!connectedListener.isClosed()) {
                 logger.warning("Reconnecting listener", "listener", listener);
                 try {
@@ -85,24 +305,118 @@ public class AMQPMessageConnection
             }
         }
 
-        if (isConnected()) {
-            logger.info("Connecting listener", "listener", listener);
-            connectedListener = new AMQPConnectedListener(
-                listener.queueName, listener.address, listener, _channelFactory);
-            _listeners.put(listener, connectedListener);
-        } else {
-            // otherwise wait for reconnect and we'll connect this listener
-            logger.info("Deferring listener until we reconnect", "listener", listener);
-            _listeners.put(listener, AMQPConnectedListener.NULL);
+        if (listener.address.isPattern() &&
+                !_config.topicExchanges.contains(listener.address.exchange)) {
+            logger.warning("Pattern listener on a direct exchange will only receive messages " +
+                "sent to its literal address", "listener", listener);
+        }
+    }
+
+    /**
+     * Starts adding and removing consumers for the given listener as its load changes, if it's
+     * autoscaled and we aren't already.
+     */
+    protected void startAutoscaling (AddressedMessageListener listener)
+    {
+        if (listener.getMaxConsumers() == 0 ||
+                _autoscaled.putIfAbsent(listener, new AutoscaledListener(listener)) != null) {
+            return;
+        }
+        synchronized (_autoscaled) {
+            if (_scalerService != null) {
+                return;
+            }
+            _scalerService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread (Runnable r) {
+                    Thread thread = new Thread(r, "AMQPMessageConnection autoscaler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            _scalerService.scheduleWithFixedDelay(new Runnable() {
+                public void run () {
+                    autoscale();
+                }
+            }, 0, AUTOSCALE_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Brings the number of consumers of each autoscaled listener into line with its load.
+     */
+    protected void autoscale ()
+    {
+        if (!isConnected()) {
+            return;
+        }
+        for (Map.Entry<AddressedMessageListener, AutoscaledListener> entry :
+                 _autoscaled.entrySet()) {
+            AMQPConnectedListener primary = _listeners.get(entry.getKey());
+            if (primary == null || primary == AMQPConnectedListener.NULL ||
+                    !primary.isConsuming()) {
+                // wait for it to reconnect
+                continue;
+            }
+            try {
+                entry.getValue().scale(primary);
+            } catch (Exception e) {
+                logger.warning("Could not autoscale listener", "listener", entry.getKey(), e);
+            }
+        }
+    }
+
+    /**
+     * Declares the exchanges and queues of the given listeners, and binds the queues, all on one
+     * channel.
+     */
+    protected void declare (Collection<AddressedMessageListener> listeners)
+        throws IOException
+    {
+        Channel channel = _channelFactory.createChannel();
+        try {
+            Set<String> exchanges = Sets.newHashSet();
+            for (AddressedMessageListener listener : listeners) {
+                if (exchanges.add(listener.address.exchange)) {
+                    _channelFactory.declareExchange(channel, listener.address.exchange);
+                }
+                channel.queueDeclare(listener.queueName, true);
+                channel.queueBind(listener.queueName, listener.address.exchange,
+                    listener.address.getRoutingKey());
+            }
+        } finally {
+            try {
+                channel.close(AMQP.REPLY_SUCCESS, "Listeners declared.");
+            } catch (ShutdownSignalException sse) {
+                // Do nothing, it's already closed.
+            }
+        }
+    }
+
+    /**
+     * Waits for a listener being connected by {@link #listen(Collection)}.
+     */
+    protected static AMQPConnectedListener getConnected (Future<AMQPConnectedListener> connecting)
+    {
+        try {
+            // don't leave a connected listener behind untracked just because we were interrupted
+            return Uninterruptibles.getUninterruptibly(connecting);
+        } catch (ExecutionException ee) {
+            // the constructor logs and swallows connection failures, so this is a real bug
+            throw new RuntimeException(ee.getCause());
         }
     }
 
     public void removeListener (AddressedMessageListener listener)
     {
+        AutoscaledListener scaled = _autoscaled.remove(listener);
+        if (scaled != null) {
+            scaled.close();
+        }
         if (_listeners.containsKey(listener)) {
             logger.warning("Removing listener", "listener", listener);
             // remove the listener and disconnect it
             AMQPConnectedListener connectedListener = _listeners.remove(listener);
+            _router.remove(connectedListener);
             if (!connectedListener.isClosed()) {
                 try {
                     connectedListener.close();
@@ -121,6 +435,7 @@ public class AMQPMessageConnection
     {
         logger.info("Closing connection to RabbitMQ server.");
         _reconnectService.shutdown();
+        stopAutoscaling();
         _sender.close();
 
         for (AddressedMessageListener listener : Lists.newArrayList(_listeners.keySet())) {
@@ -131,11 +446,56 @@ public class AMQPMessageConnection
         }
     }
 
+    public boolean drain (long timeout)
+        throws IOException
+    {
+        long deadline = System.currentTimeMillis() + timeout;
+        logger.info("Draining connection to RabbitMQ server.", "timeout", timeout);
+        // stop them all taking messages first, so they all drain at once
+        stopAutoscaling();
+        List<AMQPConnectedListener> draining = Lists.newArrayList();
+        for (AutoscaledListener scaled : _autoscaled.values()) {
+            draining.addAll(scaled.stopConsuming());
+        }
+        for (AMQPConnectedListener listener : _listeners.values()) {
+            if (listener == AMQPConnectedListener.NULL) {
+                continue;
+            }
+            _router.remove(listener);
+            try {
+                listener.stopConsuming();
+                draining.add(listener);
+            } catch (IOException ioe) {
+                logger.warning("Could not stop listener consuming", "queue", listener._queueName,
+                    ioe);
+            }
+        }
+        boolean drained = true;
+        for (AMQPConnectedListener listener : draining) {
+            if (!listener.awaitIdle(deadline)) {
+                logger.warning("Listener did not drain in time", "queue", listener._queueName);
+                drained = false;
+            }
+        }
+        drained &= _sender.drain(deadline);
+        close();
+        return drained;
+    }
+
     public MessageSender getSender ()
     {
         return _sender;
     }
 
+    protected void stopAutoscaling ()
+    {
+        synchronized (_autoscaled) {
+            if (_scalerService != null) {
+                _scalerService.shutdown();
+            }
+        }
+    }
+
     /**
      * Connects or re-connects to the AMQP server, re-establishing any listeners.
      *
@@ -148,17 +508,12 @@ public class AMQPMessageConnection
             return;
         }
 
-        ConnectionParameters params = new ConnectionParameters();
-        params.setUsername(_config.username);
-        params.setPassword(_config.password);
-        params.setVirtualHost(_config.virtualHost);
-        params.setRequestedHeartbeat(_config.heartBeat);
-        ConnectionFactory factory = new ConnectionFactory(params);
         logger.debug("Establishing connection to RabbitMQ server: " + _config);
-        _conn = factory.newConnection(_config.hostAddresses);
+        _conn = newConnection();
         _conn.addShutdownListener(new ShutdownListener() {
             public void shutdownCompleted (ShutdownSignalException ex)
             {
+                _lastDisconnected = System.currentTimeMillis();
                 // If the reconnectService has already been shutdown, this is from a normal close.
                 if (!_reconnectService.isShutdown()) {
                     logger.warning("RabbitMQ connection closed unexpectedly.  Retrying every 5 " +
@@ -170,6 +525,8 @@ public class AMQPMessageConnection
             }
         });
         logger.info("Connection established to RabbitMQ server: " + _config);
+        _connectCount.incrementAndGet();
+        _lastConnected = System.currentTimeMillis();
 
         // Reconnect all of the added listeners. Retry if there's an error while reconnecting them.
         for (AddressedMessageListener listener : _listeners.keySet()) {
@@ -177,6 +534,22 @@ public class AMQPMessageConnection
         }
     }
 
+    /**
+     * Opens a new connection to the server in our configuration.  Overridden by
+     * tests to connect to an in-memory broker instead.
+     */
+    protected Connection newConnection ()
+        throws IOException
+    {
+        ConnectionParameters params = new ConnectionParameters();
+        params.setUsername(_config.username);
+        params.setPassword(_config.password);
+        params.setVirtualHost(_config.virtualHost);
+        params.setRequestedHeartbeat(_config.heartBeat);
+        ConnectionFactory factory = new ConnectionFactory(params);
+        return factory.newConnection(_config.hostAddresses);
+    }
+
     protected class AttemptReconnect implements Runnable
     {
         public void run ()
@@ -191,6 +564,177 @@ public class AMQPMessageConnection
         }
     }
 
+    /**
+     * The extra consumers autoscaling has started for a listener, alongside the one we keep for
+     * it in {@link #_listeners}.
+     */
+    protected class AutoscaledListener
+    {
+        public AutoscaledListener (AddressedMessageListener listener)
+        {
+            _listener = listener;
+            _scaler = new ConsumerScaler(listener.getMinConsumers(), listener.getMaxConsumers());
+        }
+
+        /**
+         * Returns the extra consumers.
+         */
+        public List<AMQPConnectedListener> getExtras ()
+        {
+            return _extras;
+        }
+
+        /**
+         * Starts or retires extra consumers, according to the backlog on the server and how
+         * busy the consumers have been since we last looked.
+         *
+         * @param primary The listener's own consumer.
+         */
+        public synchronized void scale (AMQPConnectedListener primary)
+            throws IOException
+        {
+            if (_closed) {
+                return;
+            }
+            // forget extras whose channels have gone; new ones are started if still needed
+            for (AMQPConnectedListener extra : _extras) {
+                if (!extra.isConsuming()) {
+                    _extras.remove(extra);
+                    closeQuietly(extra);
+                }
+            }
+            List<AMQPConnectedListener> consumers = Lists.newArrayList(_extras);
+            consumers.add(primary);
+
+            long now = System.nanoTime();
+            long busy = 0;
+            Map<AMQPConnectedListener, Long> busyNanos = Maps.newHashMap();
+            for (AMQPConnectedListener consumer : consumers) {
+                long total = consumer.getBusyNanos();
+                Long last = _busyNanos.get(consumer);
+                busy += total - ((last == null) ? 0 : last);
+                busyNanos.put(consumer, total);
+            }
+            int count = consumers.size();
+            int desired;
+            if (_lastScaled == 0) {
+                // we've nothing to go on yet but the bounds
+                desired = Math.max(_listener.getMinConsumers(),
+                    Math.min(_listener.getMaxConsumers(), count));
+            } else {
+                double utilization = busy / ((double)(now - _lastScaled) * count);
+                desired = _scaler.scale(count, getBacklog(consumers), utilization);
+            }
+            _lastScaled = now;
+            _busyNanos = busyNanos;
+            if (desired == count) {
+                return;
+            }
+
+            logger.info("Autoscaling listener", "listener", _listener, "consumers", count,
+                "desired", desired);
+            for (; count < desired; count++) {
+                AMQPConnectedListener extra =
+                    new AMQPConnectedListener(_listener, _channelFactory, true, _blobStore);
+                if (!extra.isConsuming()) {
+                    // it has logged why; try again next time
+                    closeQuietly(extra);
+                    break;
+                }
+                _extras.add(extra);
+            }
+            for (; count > desired && !_extras.isEmpty(); count--) {
+                AMQPConnectedListener extra = _extras.remove(_extras.size() - 1);
+                try {
+                    extra.stopConsuming();
+                    extra.awaitIdle(System.currentTimeMillis() + RETIRE_TIMEOUT);
+                } catch (IOException ioe) {
+                    logger.warning("Could not stop consumer cleanly", "listener", _listener, ioe);
+                }
+                closeQuietly(extra);
+            }
+        }
+
+        /**
+         * Stops the extra consumers taking messages, so that they can drain.
+         *
+         * @return the consumers that were stopped.
+         */
+        public List<AMQPConnectedListener> stopConsuming ()
+        {
+            List<AMQPConnectedListener> stopped = Lists.newArrayList();
+            for (AMQPConnectedListener extra : _extras) {
+                try {
+                    extra.stopConsuming();
+                    stopped.add(extra);
+                } catch (IOException ioe) {
+                    logger.warning("Could not stop listener consuming", "queue",
+                        extra._queueName, ioe);
+                }
+            }
+            return stopped;
+        }
+
+        /**
+         * Closes the extra consumers, and starts no more.
+         */
+        public synchronized void close ()
+        {
+            _closed = true;
+            for (AMQPConnectedListener extra : _extras) {
+                closeQuietly(extra);
+            }
+            _extras.clear();
+        }
+
+        /**
+         * Returns the number of messages waiting for the listener: those ready on the server for
+         * its queue, and those the given consumers have been handed and not yet started on.  The
+         * server counts only the former, and without the latter, a consumer that's been handed a
+         * full prefetch would hide the backlog behind it.
+         */
+        protected int getBacklog (List<AMQPConnectedListener> consumers)
+            throws IOException
+        {
+            int buffered = 0;
+            for (AMQPConnectedListener consumer : consumers) {
+                buffered += consumer.getStatus().buffered;
+            }
+            Channel channel = _channelFactory.createChannel();
+            try {
+                return buffered + channel.queueDeclare(
+                    _listener.queueName, true, true, false, false, null).getMessageCount();
+            } finally {
+                try {
+                    channel.close(AMQP.REPLY_SUCCESS, "Backlog checked.");
+                } catch (ShutdownSignalException sse) {
+                    // Do nothing, it's already closed.
+                }
+            }
+        }
+
+        protected void closeQuietly (AMQPConnectedListener extra)
+        {
+            try {
+                extra.close();
+            } catch (Exception e) {
+                logger.warning("Could not close consumer", "listener", _listener, e);
+            }
+        }
+
+        protected final AddressedMessageListener _listener;
+        protected final ConsumerScaler _scaler;
+        protected final List<AMQPConnectedListener> _extras =
+            new CopyOnWriteArrayList<AMQPConnectedListener>();
+
+        /** How long each consumer had been busy when we last scaled, in nanoseconds. */
+        protected Map<AMQPConnectedListener, Long> _busyNanos = Maps.newHashMap();
+
+        /** When we last scaled, by {@link System#nanoTime}, or 0 if we haven't. */
+        protected long _lastScaled;
+        protected boolean _closed;
+    }
+
     protected class ListenerReconnectAttempt implements Runnable
     {
         public ListenerReconnectAttempt (AddressedMessageListener listener) {
@@ -225,11 +769,32 @@ public class AMQPMessageConnection
     protected static final Logger logger = Logger.getLogger(AMQPMessageConnection.class);
     protected static final int CLOSE_TIMEOUT = 2000;
 
+    /** The most listeners {@link #listen(Collection)} connects at once. */
+    protected static final int BULK_LISTEN_THREADS = 16;
+
+    /** How often to rescale autoscaled listeners, in milliseconds. */
+    protected static final long AUTOSCALE_INTERVAL = 5000;
+
+    /** How long a retiring consumer gets to finish what it has, in milliseconds. */
+    protected static final long RETIRE_TIMEOUT = 5000;
+
     protected volatile Connection _conn;
+    protected volatile long _lastConnected;
+    protected volatile long _lastDisconnected;
+    protected final AtomicInteger _connectCount = new AtomicInteger();
+    protected volatile BlobStore _blobStore;
     protected final AMQPMessageConfig _config;
     protected final AMQPMessageSender _sender;
     protected final ChannelFactory _channelFactory;
+    protected final LocalRouter _router = new LocalRouter();
     protected final ScheduledExecutorService _reconnectService;
     protected final Map<AddressedMessageListener, AMQPConnectedListener> _listeners =
         new ConcurrentHashMap<AddressedMessageListener, AMQPConnectedListener>();
+
+    /** Our autoscaled listeners, and the extra consumers started for them. */
+    protected final ConcurrentMap<AddressedMessageListener, AutoscaledListener> _autoscaled =
+        new ConcurrentHashMap<AddressedMessageListener, AutoscaledListener>();
+
+    /** Runs {@link #autoscale}, once there's an autoscaled listener. */
+    protected ScheduledExecutorService _scalerService;
 }
@@ -4,19 +4,44 @@
 package com.threerings.messaging.amqp;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.MessageProperties;
 import com.rabbitmq.client.ShutdownSignalException;
 import com.samskivert.util.Logger;
+import com.threerings.messaging.BlobStore;
 import com.threerings.messaging.DestinationAddress;
 import com.threerings.messaging.MessageSender;
 import com.threerings.messaging.OutMessage;
+import com.threerings.messaging.RateLimit;
+import com.threerings.messaging.RateLimitExceededException;
 import com.threerings.messaging.ReplyingDestination;
+import com.threerings.messaging.RequestFanout;
+import com.threerings.messaging.SendOptions;
+import com.threerings.messaging.util.RateMeter;
+import com.threerings.messaging.util.TimingWheel;
+import com.threerings.messaging.util.TokenBucket;
 
 /**
  * Implementation of {@link MessageSender} for AMQP services.
@@ -29,33 +54,292 @@ public class AMQPMessageSender
      * connection.
      */
     public AMQPMessageSender (ChannelFactory channelFactory)
+    {
+        this(channelFactory, new LocalRouter());
+    }
+
+    /**
+     * Creates a new message sender using the given channel factory to get channels from a
+     * connection, and the given router to find listeners in this process.
+     */
+    public AMQPMessageSender (ChannelFactory channelFactory, LocalRouter router)
     {
         _channelFactory = channelFactory;
+        _router = router;
         _declaredExchanges = new HashSet<String>();
+        _fanout = new RequestFanout(this);
     }
 
     public void sendMessage (OutMessage msg, DestinationAddress addr)
         throws IOException
+    {
+        sendMessage(msg, addr, getDefaultOptions(addr));
+    }
+
+    public void sendMessage (OutMessage msg, DestinationAddress addr, SendOptions options)
+        throws IOException
     {
         logger.info("Sending AMQP message", "msg", msg, "addr", addr);
+        byte[] body = msg.encodeMessage();
+        Limiter limiter = getLimiter(addr);
+        if (limiter != null && !limiter.admit(body, addr, options)) {
+            return;
+        }
+        publish(Collections.singletonList(
+            new Publication(addr, createProperties(options), body, options)));
+    }
+
+    public void sendMessage (OutMessage msg, Collection<DestinationAddress> addrs)
+        throws IOException
+    {
+        if (_defaultOptions.isEmpty()) {
+            sendMessage(msg, addrs, SendOptions.DEFAULT);
+            return;
+        }
+        // send to the addresses that share default options together
+        Map<SendOptions, List<DestinationAddress>> byOptions = Maps.newLinkedHashMap();
+        for (DestinationAddress addr : addrs) {
+            SendOptions options = getDefaultOptions(addr);
+            List<DestinationAddress> group = byOptions.get(options);
+            if (group == null) {
+                byOptions.put(options, group = Lists.newArrayList());
+            }
+            group.add(addr);
+        }
+        RateLimitExceededException exceeded = null;
+        for (Map.Entry<SendOptions, List<DestinationAddress>> entry : byOptions.entrySet()) {
+            try {
+                sendMessage(msg, entry.getValue(), entry.getKey());
+            } catch (RateLimitExceededException rlee) {
+                // the other groups still get their copies, as with a single group
+                exceeded = rlee;
+            }
+        }
+        if (exceeded != null) {
+            throw exceeded;
+        }
+    }
+
+    /**
+     * Sends the message to each address, as described by {@link MessageSender}.  If the rate
+     * limit of some of the addresses is exceeded, and they fail fast, the message is still sent to
+     * the rest of them before the exception is thrown.
+     */
+    public void sendMessage (OutMessage msg, Collection<DestinationAddress> addrs,
+        SendOptions options)
+        throws IOException
+    {
+        logger.info("Sending AMQP message", "msg", msg, "addrs", addrs);
+        // every copy shares the one body, and the one set of properties, id included
+        byte[] body = msg.encodeMessage();
+        AMQP.BasicProperties props = createProperties(options);
+        List<Publication> publications = Lists.newArrayListWithCapacity(addrs.size());
+        RateLimitExceededException exceeded = null;
+        for (DestinationAddress addr : addrs) {
+            Limiter limiter = getLimiter(addr);
+            try {
+                if (limiter == null || limiter.admit(body, addr, options)) {
+                    publications.add(new Publication(addr, props, body, options));
+                }
+            } catch (RateLimitExceededException rlee) {
+                // the addresses that were admitted have spent their permits, so send to them
+                exceeded = rlee;
+            }
+        }
+        publish(publications);
+        if (exceeded != null) {
+            throw exceeded;
+        }
+    }
+
+    public void sendMessageAt (OutMessage msg, DestinationAddress addr, long when)
+        throws IOException
+    {
+        logger.info("Scheduling AMQP message", "msg", msg, "addr", addr, "when", when);
+        getTimer().add(
+            new Publication(addr, null, msg.encodeMessage(), getDefaultOptions(addr)), when);
+    }
+
+    public void sendMessageDelayed (OutMessage msg, DestinationAddress addr, long delay)
+        throws IOException
+    {
+        sendMessageAt(msg, addr, System.currentTimeMillis() + delay);
+    }
+
+    public ReplyingDestination createReplyingDestination (DestinationAddress addr)
+        throws IOException
+    {
+        AMQPReplyingDestination dest = new AMQPReplyingDestination(_channelFactory, addr, _router);
+        _destinations.add(dest);
+        return dest;
+    }
+
+    public Map<DestinationAddress, byte[]> scatterGather (OutMessage msg,
+        Collection<DestinationAddress> addrs, int quorum, long timeout)
+        throws IOException, TimeoutException
+    {
+        return _fanout.scatterGather(msg, addrs, quorum, timeout);
+    }
+
+    public byte[] sendHedged (OutMessage msg, DestinationAddress primary, DestinationAddress backup,
+        double percentile, long timeout)
+        throws IOException, TimeoutException
+    {
+        return _fanout.sendHedged(msg, primary, backup, percentile, timeout);
+    }
+
+    /**
+     * Sets the options to send messages to the given address with when none are given, e.g., to
+     * make all the presence pings to an address transient with a short ttl, or goes back to
+     * {@link SendOptions#DEFAULT} if null is given.
+     */
+    public void setDefaultOptions (DestinationAddress addr, SendOptions options)
+    {
+        if (options == null) {
+            _defaultOptions.remove(addr);
+        } else {
+            _defaultOptions.put(addr, options);
+        }
+    }
+
+    /**
+     * Returns the options to send messages to the given address with when none are given.
+     */
+    public SendOptions getDefaultOptions (DestinationAddress addr)
+    {
+        SendOptions options = _defaultOptions.get(addr);
+        return (options == null) ? SendOptions.DEFAULT : options;
+    }
+
+    /**
+     * Limits the rate at which messages may be sent to the given address with
+     * {@link #sendMessage}, or removes the limit if null is given.  A limit on an address takes
+     * the place of any limit on its exchange.
+     */
+    public void setRateLimit (DestinationAddress addr, RateLimit limit)
+    {
+        if (limit == null) {
+            _addressLimiters.remove(addr);
+        } else {
+            _addressLimiters.put(addr, new Limiter(limit));
+        }
+    }
+
+    /**
+     * Limits the rate at which messages may be sent to addresses on the given exchange with
+     * {@link #sendMessage}, or removes the limit if null is given.  The limit is shared by every
+     * address on the exchange that doesn't have a limit of its own.
+     */
+    public void setExchangeRateLimit (String exchange, RateLimit limit)
+    {
+        if (limit == null) {
+            _exchangeLimiters.remove(exchange);
+        } else {
+            _exchangeLimiters.put(exchange, new Limiter(limit));
+        }
+    }
+
+    /**
+     * Sends message bodies larger than the given size by claim check: the body is put in the
+     * given store, and only its key is sent through the server, so that a huge message doesn't
+     * hold up everything else on the connection.  Listeners must be able to read the same store.
+     * Messages delivered within this process are never claim-checked.  Pass a null store to turn
+     * this off.
+     *
+     * @param threshold The largest body to send through the server, in bytes.
+     */
+    public void setClaimCheck (BlobStore store, int threshold)
+    {
+        _claimCheckThreshold = threshold;
+        _blobStore = store;
+    }
+
+    /**
+     * Returns the number of scheduled messages waiting to be sent.
+     */
+    public int getScheduledCount ()
+    {
+        TimingWheel<Publication> timer = _timer;
+        return (timer == null) ? 0 : timer.size();
+    }
+
+    /**
+     * Returns the meter of messages published by {@link #sendMessage}.
+     */
+    public RateMeter getPublished ()
+    {
+        return _published;
+    }
+
+    /**
+     * Returns a snapshot of the state of each replying destination that hasn't been closed.
+     */
+    public List<AMQPConnectionStatus.Destination> getDestinationStatus ()
+    {
+        List<AMQPConnectionStatus.Destination> status = Lists.newArrayList();
+        for (AMQPReplyingDestination destination : _destinations) {
+            if (!destination.isClosed()) {
+                status.add(destination.getStatus());
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Publishes the given messages, short-circuiting any that aren't persistent to listeners in
+     * this process where possible, and sending the rest through the server on a single channel.
+     * If the channel is shut down partway through, the messages that weren't yet published are
+     * retried once on a new channel.
+     */
+    protected void publish (List<Publication> publications)
+        throws IOException
+    {
+        List<Publication> remote = Lists.newArrayListWithCapacity(publications.size());
+        for (Publication pub : publications) {
+            if (pub.options.persistent || !deliverLocally(pub.addr, pub.props, pub.body)) {
+                remote.add(pub);
+            }
+        }
+
+        BlobStore blobStore = _blobStore;
+        if (blobStore != null) {
+            // copies of a multicast share their body, so it's stored just once, but they needn't
+            // share their properties, as scheduled copies are each stamped when they're sent
+            Map<byte[], String> keys = null;
+            Set<AMQP.BasicProperties> stamped = null;
+            for (Publication pub : remote) {
+                if (pub.body.length <= _claimCheckThreshold) {
+                    continue;
+                }
+                if (keys == null) {
+                    keys = Maps.newIdentityHashMap();
+                    stamped = Sets.newIdentityHashSet();
+                }
+                String key = keys.get(pub.body);
+                if (key == null) {
+                    keys.put(pub.body, key = blobStore.put(pub.body));
+                }
+                if (stamped.add(pub.props)) {
+                    ClaimCheck.stamp(pub.props, key);
+                }
+                pub.body = ClaimCheck.EMPTY_BODY;
+            }
+        }
+
         // We want to retry in case the connection is closed.
         int retries = 1;
-        do {
+        int published = 0;
+        while (published < remote.size()) {
             // This will reconnect if needed.
             Channel channel = _channelFactory.createChannel();
             try {
-
-                // Ensure the exchange exists before continuing
-                synchronized(this) {
-                    if (!_declaredExchanges.contains(addr.exchange)) {
-                        logger.info("Declaring AMQP exchange", "exchange", addr.exchange);
-                        channel.exchangeDeclare(addr.exchange, "direct", true);
-                        _declaredExchanges.add(addr.exchange);
-                    }
+                for (; published < remote.size(); published++) {
+                    Publication pub = remote.get(published);
+                    declareExchange(channel, pub.addr.exchange);
+                    channel.basicPublish(
+                        pub.addr.exchange, pub.addr.getRoutingKey(), pub.props, pub.body);
+                    _published.mark();
                 }
-                channel.basicPublish(addr.exchange, addr.getRoutingKey(),
-                    MessageProperties.PERSISTENT_BASIC, msg.encodeMessage());
-                return;
             } catch(ShutdownSignalException sse) {
                 // Already retried, just throw the exception.
                 if (retries == 0) {
@@ -70,23 +354,237 @@ public class AMQPMessageSender
                     // Do nothing, it's already closed.
                 }
             }
-        } while (true);
+        }
     }
 
-    public ReplyingDestination createReplyingDestination (DestinationAddress addr)
+    /**
+     * Ensures the given exchange exists before we publish to it, declaring it on the given
+     * channel if we haven't already.
+     */
+    protected synchronized void declareExchange (Channel channel, String exchange)
         throws IOException
     {
-        AMQPReplyingDestination dest = new AMQPReplyingDestination(_channelFactory, addr);
-        _destinations.add(dest);
-        return dest;
+        if (!_declaredExchanges.contains(exchange)) {
+            logger.info("Declaring AMQP exchange", "exchange", exchange);
+            _channelFactory.declareExchange(channel, exchange);
+            _declaredExchanges.add(exchange);
+        }
+    }
+
+    /**
+     * Returns the timer holding scheduled messages, creating it and starting the thread that
+     * sends them as they come due if this is the first one.
+     */
+    protected synchronized TimingWheel<Publication> getTimer ()
+        throws IOException
+    {
+        if (_closed) {
+            throw new IOException("Cannot schedule a message on a closed sender.");
+        }
+        if (_timer == null) {
+            _timer = new TimingWheel<Publication>(TIMER_TICK, System.currentTimeMillis());
+            _timerService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread (Runnable r) {
+                    Thread thread = new Thread(r, "AMQPMessageSender timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            _timerService.scheduleWithFixedDelay(new Runnable() {
+                public void run () {
+                    sendScheduled();
+                }
+            }, TIMER_TICK, TIMER_TICK, TimeUnit.MILLISECONDS);
+        }
+        return _timer;
+    }
+
+    /**
+     * Holds a rate limited message on the timer until the given time.
+     *
+     * @return false if the sender is closed, so the message must be sent by the caller.
+     */
+    protected synchronized boolean linger (Publication pub, long when)
+        throws IOException
+    {
+        if (_closed) {
+            return false;
+        }
+        getTimer().add(pub, when);
+        _lingering.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Returns the limiter for messages to the given address, or null if they aren't limited.
+     */
+    protected Limiter getLimiter (DestinationAddress addr)
+    {
+        Limiter limiter = _addressLimiters.get(addr);
+        return (limiter != null || _exchangeLimiters.isEmpty()) ?
+            limiter : _exchangeLimiters.get(addr.exchange);
+    }
+
+    /**
+     * Sends the scheduled messages that have come due, as a single batch.
+     */
+    protected void sendScheduled ()
+    {
+        List<Publication> due = Lists.newArrayList();
+        if (_timer.advance(System.currentTimeMillis(), due) > 0) {
+            sendScheduled(due);
+        }
+    }
+
+    /**
+     * Sends the given scheduled messages as a single batch.
+     */
+    protected void sendScheduled (List<Publication> due)
+    {
+        for (Publication pub : due) {
+            // stamp them now, so their ids are in the order they're sent
+            pub.props = createProperties(pub.options);
+            if (pub.limiter != null) {
+                _lingering.decrementAndGet();
+            }
+        }
+        try {
+            publish(due);
+        } catch (Exception e) {
+            logger.warning("Failed to send scheduled messages.", "count", due.size(), e);
+        }
+        // only now may messages their limiters would let go at once overtake them
+        for (Publication pub : due) {
+            if (pub.limiter != null) {
+                pub.limiter.released();
+            }
+        }
     }
 
     /**
-     * Closes underlying replying destinations.
+     * Hands a message straight to the listeners in this process that are bound to its address,
+     * if there are any and routing to them is enabled.
+     *
+     * @return false if the message should be sent through the server instead.
+     */
+    protected boolean deliverLocally (DestinationAddress addr, AMQP.BasicProperties props,
+        byte[] body)
+    {
+        boolean delivered = false;
+        for (AMQPConnectedListener listener : _router.route(addr)) {
+            if (listener.deliverLocally(props, body, null)) {
+                delivered = true;
+            } else if (delivered) {
+                // we can't send it through the server now without duplicating it for the others
+                logger.warning("Local listener went away; dropping its copy of the message.",
+                    "addr", addr, "queue", listener._queueName);
+            } else {
+                return false;
+            }
+        }
+        return delivered;
+    }
+
+    /**
+     * Creates the AMQP properties to send a message with the given options.  Each message is
+     * stamped with an id unique to this sender, which listeners can use to recognize
+     * redeliveries, with the time it was sent, and if it has a ttl, with when it expires.
+     */
+    protected AMQP.BasicProperties createProperties (SendOptions options)
+    {
+        AMQP.BasicProperties props = new AMQP.BasicProperties();
+        props.setDeliveryMode(options.persistent ?
+            PERSISTENT_DELIVERY_MODE : TRANSIENT_DELIVERY_MODE);
+        props.setPriority((options.priority == SendOptions.NO_PRIORITY) ?
+            DEFAULT_PRIORITY : options.priority);
+        props.setMessageId(_idPrefix + Long.toString(_nextId.incrementAndGet(), 36));
+        SendTimestamp.stamp(props);
+        if (options.ttl > 0) {
+            Expiry.stamp(props, options.ttl);
+        }
+        return props;
+    }
+
+    /**
+     * Waits until the given time for rate limited messages that are lingering to be sent, and
+     * then sends whatever is left of them at once, over the limit.  Messages scheduled with
+     * {@link #sendMessageAt} or {@link #sendMessageDelayed} aren't sent early; they're dropped
+     * with a warning, as they are by {@link #close}.  No more messages may be scheduled
+     * afterwards.
+     *
+     * @param deadline When to stop waiting, in epoch milliseconds.
+     * @return true if every lingering message was sent on time.
+     */
+    public boolean drain (long deadline)
+    {
+        TimingWheel<Publication> timer;
+        synchronized (this) {
+            _closed = true;
+            timer = _timer;
+        }
+        if (timer == null) {
+            return true;
+        }
+        while (_lingering.get() > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(TIMER_TICK);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        int early = flushLingering(timer);
+        if (early > 0) {
+            logger.warning("Sent lingering messages early to drain.", "count", early);
+        }
+        return early == 0;
+    }
+
+    /**
+     * Sends the rate limited messages lingering on the given timer at once, and drops the
+     * scheduled ones, which aren't due yet, emptying the timer.
+     *
+     * @return the number of lingering messages sent.
+     */
+    protected int flushLingering (TimingWheel<Publication> timer)
+    {
+        List<Publication> held = Lists.newArrayList();
+        timer.clear(held);
+        List<Publication> lingering = Lists.newArrayList();
+        for (Publication pub : held) {
+            if (pub.limiter != null) {
+                lingering.add(pub);
+            }
+        }
+        if (held.size() > lingering.size()) {
+            logger.warning("Dropping scheduled messages.",
+                "count", held.size() - lingering.size());
+        }
+        if (!lingering.isEmpty()) {
+            sendScheduled(lingering);
+        }
+        return lingering.size();
+    }
+
+    /**
+     * Closes underlying replying destinations.  Rate limited messages that are still lingering
+     * are sent at once, over the limit, and scheduled messages are dropped.
      */
     public void close ()
         throws IOException
     {
+        _fanout.close();
+        TimingWheel<Publication> timer;
+        synchronized (this) {
+            _closed = true;
+            if (_timerService != null) {
+                _timerService.shutdown();
+            }
+            timer = _timer;
+        }
+        if (timer != null) {
+            flushLingering(timer);
+        }
         for (AMQPReplyingDestination destination : _destinations) {
             if (!destination.isClosed()) {
                 destination.close();
@@ -94,10 +592,181 @@ public class AMQPMessageSender
         }
     }
 
+    /** A message ready to be published. */
+    protected static class Publication
+    {
+        public final DestinationAddress addr;
+        public AMQP.BasicProperties props;
+        public byte[] body;
+        public final SendOptions options;
+
+        /**
+         * The limiter holding it back, if it's held back by a rate limit rather than scheduled by
+         * the caller.
+         */
+        public final Limiter limiter;
+
+        public Publication (DestinationAddress addr, AMQP.BasicProperties props, byte[] body,
+            SendOptions options)
+        {
+            this(addr, props, body, options, null);
+        }
+
+        public Publication (DestinationAddress addr, AMQP.BasicProperties props, byte[] body,
+            SendOptions options, Limiter limiter)
+        {
+            this.addr = addr;
+            this.props = props;
+            this.body = body;
+            this.options = options;
+            this.limiter = limiter;
+        }
+    }
+
+    /** Applies a rate limit to the messages sent to an address or exchange. */
+    protected class Limiter
+    {
+        public Limiter (RateLimit limit)
+        {
+            _limit = limit;
+            _bucket = new TokenBucket(limit.messagesPerSecond, limit.burst);
+        }
+
+        /**
+         * Waits for a message to be allowed through, or fails, or schedules it to be sent later,
+         * depending on the mode of the limit.
+         *
+         * @return true if the message should be sent now.
+         */
+        public boolean admit (byte[] body, DestinationAddress addr, SendOptions options)
+            throws IOException
+        {
+            switch (_limit.mode) {
+            case FAIL_FAST:
+                if (!_bucket.tryAcquire()) {
+                    throw new RateLimitExceededException(addr, _limit);
+                }
+                return true;
+
+            case LINGER:
+                long reserved = _bucket.reserve();
+                long linger = TimeUnit.NANOSECONDS.toMillis(reserved);
+                synchronized (this) {
+                    // a message that may go now still waits behind those held before it, and
+                    // none is due before the one held before it, so that they go in turn
+                    if (linger == 0 && _held.get() == 0) {
+                        return true;
+                    }
+                    // past the limit, or once we're closing, the caller waits its turn instead
+                    if (linger <= MAX_LINGER) {
+                        long when = Math.max(System.currentTimeMillis() + linger, _lastDue);
+                        _held.incrementAndGet();
+                        if (linger(new Publication(addr, null, body, options, this), when)) {
+                            _lastDue = when;
+                            logger.debug("Lingering rate limited message", "addr", addr,
+                                "linger", linger);
+                            return false;
+                        }
+                        _held.decrementAndGet();
+                    }
+                }
+                await(reserved);
+                return true;
+
+            default:
+                await(_bucket.reserve());
+                return true;
+            }
+        }
+
+        /**
+         * Notes that a message we held back has been sent.
+         */
+        public void released ()
+        {
+            _held.decrementAndGet();
+        }
+
+        /**
+         * Sleeps for the given number of nanoseconds, the wait for a reserved permit.
+         */
+        protected void await (long wait)
+            throws IOException
+        {
+            if (wait <= 0) {
+                return;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                IOException ioe = new IOException(
+                    "Interrupted while waiting to send a rate limited message.");
+                ioe.initCause(ie);
+                throw ioe;
+            }
+        }
+
+        protected final RateLimit _limit;
+        protected final TokenBucket _bucket;
+
+        /** The number of messages we're holding back. */
+        protected final AtomicInteger _held = new AtomicInteger();
+
+        /** When the last message we held back is due to be sent, in epoch milliseconds. */
+        protected long _lastDue;
+    }
+
     protected final ChannelFactory _channelFactory;
+    protected final LocalRouter _router;
     protected final Set<String> _declaredExchanges;
+    protected final RequestFanout _fanout;
+    protected final RateMeter _published = new RateMeter();
+
+    /** Makes the ids of our messages distinct from those of other senders. */
+    protected final String _idPrefix =
+        Long.toString(new Random().nextLong() & Long.MAX_VALUE, 36) + ':';
+    protected final AtomicLong _nextId = new AtomicLong();
     protected final Set<AMQPReplyingDestination> _destinations =
         new CopyOnWriteArraySet<AMQPReplyingDestination>();
 
+    protected final ConcurrentMap<DestinationAddress, SendOptions> _defaultOptions =
+        new ConcurrentHashMap<DestinationAddress, SendOptions>();
+
+    protected final ConcurrentMap<DestinationAddress, Limiter> _addressLimiters =
+        new ConcurrentHashMap<DestinationAddress, Limiter>();
+    protected final ConcurrentMap<String, Limiter> _exchangeLimiters =
+        new ConcurrentHashMap<String, Limiter>();
+
+    /** Where to put bodies too large to send through the server, or null to send them anyway. */
+    protected volatile BlobStore _blobStore;
+    protected volatile int _claimCheckThreshold;
+
+    /** Scheduled messages, and the thread that sends them, created when first needed. */
+    protected volatile TimingWheel<Publication> _timer;
+    protected ScheduledExecutorService _timerService;
+    protected boolean _closed;
+
+    /** The number of rate limited messages lingering on the timer. */
+    protected final AtomicInteger _lingering = new AtomicInteger();
+
+    /** The precision of scheduled sends, in milliseconds. */
+    protected static final long TIMER_TICK = 10;
+
+    /**
+     * The longest a rate limited message may linger, in milliseconds.  Messages that would have
+     * to wait longer block their sender instead, which bounds how many can pile up lingering.
+     */
+    protected static final long MAX_LINGER = 5000;
+
+    /** The AMQP delivery mode of messages that the broker keeps in memory only. */
+    protected static final int TRANSIENT_DELIVERY_MODE = 1;
+
+    /** The AMQP delivery mode of messages that the broker writes to disk. */
+    protected static final int PERSISTENT_DELIVERY_MODE = 2;
+
+    /** The priority given to messages sent without one, as MessageProperties does. */
+    protected static final int DEFAULT_PRIORITY = 0;
+
     protected static final Logger logger = Logger.getLogger(AMQPMessageSender.class);
 }
@@ -3,15 +3,27 @@
 
 package com.threerings.messaging.amqp;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
 import com.rabbitmq.client.RpcClient;
 import com.rabbitmq.client.ShutdownSignalException;
 import com.rabbitmq.client.AMQP.BasicProperties;
 import com.rabbitmq.utility.BlockingCell;
+
+import com.samskivert.util.Logger;
+
 import com.threerings.messaging.DestinationAddress;
 import com.threerings.messaging.OutMessage;
 import com.threerings.messaging.ReplyingDestination;
@@ -31,18 +43,45 @@ public class AMQPReplyingDestination
      */
     public AMQPReplyingDestination (ChannelFactory channelFactory, DestinationAddress addr)
         throws IOException
+    {
+        this(channelFactory, addr, new LocalRouter());
+    }
+
+    /**
+     * Creates a new replying destination for the given address, which sends requests straight to
+     * a listener in this process if the router knows of one.
+     *
+     * @param channelFactory Factory for creating AMQP channels.
+     * @param addr Address of destination.
+     * @param router Finds listeners for the address in this process.
+     * @throws IOException An error occurred while attempting to connect the destination.
+     */
+    public AMQPReplyingDestination (ChannelFactory channelFactory, DestinationAddress addr,
+        LocalRouter router)
+        throws IOException
     {
         _channelFactory = channelFactory;
         _destAddress = addr;
+        _router = router;
         createClient();
     }
 
     public byte[] sendMessage (OutMessage msg, long timeout)
         throws IOException, TimeoutException
     {
+        for (AMQPConnectedListener listener : _router.route(_destAddress)) {
+            byte[] reply = sendLocally(listener, msg, timeout);
+            if (reply != null) {
+                return reply;
+            }
+            // the listener is going away; try the server
+            break;
+        }
+
         // Sending the message can be retried once, if the current client is closed.
         int retries = 1;
         BlockingCell<Object> k;
+        String replyId;
         do {
             try {
                 _client.checkConsumer();
@@ -51,11 +90,12 @@ public class AMQPReplyingDestination
 
                 // Synchronize on continuation map since the client synchronizes on it as well.
                 synchronized (_client.getContinuationMap()) {
-                    String replyId = Integer.toString(_correlationId++);
+                    replyId = Integer.toString(_correlationId++);
                     props = new BasicProperties(null, null, null, null,
                                                  null, replyId,
                                                  _client.getReplyQueue(), null, null, null,
                                                  null, null, null, null);
+                    SendTimestamp.stamp(props);
                     _client.getContinuationMap().put(replyId, k);
                 }
 
@@ -63,6 +103,7 @@ public class AMQPReplyingDestination
                 synchronized (this) {
                     _client.publish(props, msg.encodeMessage());
                 }
+                _pending.put(replyId, System.currentTimeMillis());
                 break;
             } catch (ShutdownSignalException sse) {
                 // If we've already retried, just let the exception go.
@@ -84,7 +125,19 @@ public class AMQPReplyingDestination
 
         // Wait for a response, with some time out.  If we receive a shutdown signal here, just
         // throw an exception up to the user.
-        Object reply = k.uninterruptibleGet((int)timeout);
+        Object reply;
+        try {
+            reply = k.uninterruptibleGet((int)timeout);
+        } finally {
+            _pending.remove(replyId);
+            // if we timed out, a reply that comes after is one no one's waiting for
+            RpcClient client = _client;
+            if (client != null) {
+                synchronized (client.getContinuationMap()) {
+                    client.getContinuationMap().remove(replyId);
+                }
+            }
+        }
         if (reply instanceof ShutdownSignalException) {
             ShutdownSignalException sig = (ShutdownSignalException) reply;
             // Love the missing cause in the constructor in Java < 6...
@@ -105,23 +158,154 @@ public class AMQPReplyingDestination
         _client = null;
     }
 
-    public synchronized boolean isClosed ()
+    public boolean isClosed ()
     {
         return _client == null;
     }
 
+    /**
+     * Hands a request straight to a listener in this process and waits for its reply.
+     *
+     * @return the reply, or null if the listener isn't accepting messages.
+     */
+    protected byte[] sendLocally (AMQPConnectedListener listener, OutMessage msg, long timeout)
+        throws TimeoutException
+    {
+        String replyId = "local:" + _localRequests.incrementAndGet();
+        BasicProperties props = new BasicProperties();
+        props.setCorrelationId(replyId);
+        SendTimestamp.stamp(props);
+        BlockingQueue<byte[]> replies = new ArrayBlockingQueue<byte[]>(1);
+        if (!listener.deliverLocally(props, msg.encodeMessage(), replies)) {
+            return null;
+        }
+
+        _pending.put(replyId, System.currentTimeMillis());
+        long deadline = System.currentTimeMillis() + timeout;
+        boolean interrupted = false;
+        try {
+            for (long remaining = timeout; remaining > 0;
+                 remaining = deadline - System.currentTimeMillis()) {
+                // wait uninterruptibly, as we do for replies through the server
+                try {
+                    byte[] reply = replies.poll(remaining, TimeUnit.MILLISECONDS);
+                    if (reply != null) {
+                        return reply;
+                    }
+                } catch (InterruptedException ie) {
+                    interrupted = true;
+                }
+            }
+            throw new TimeoutException("Timed out waiting for a local reply.");
+        } finally {
+            _pending.remove(replyId);
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot of the requests waiting on replies from this destination.  This doesn't
+     * lock the destination, so it is cheap enough to poll frequently.
+     */
+    public AMQPConnectionStatus.Destination getStatus ()
+    {
+        long now = System.currentTimeMillis();
+        long oldest = now;
+        int pending = 0;
+        for (Long sent : _pending.values()) {
+            oldest = Math.min(oldest, sent);
+            pending++;
+        }
+        return new AMQPConnectionStatus.Destination(_destAddress, pending, now - oldest);
+    }
+
     private synchronized void createClient ()
         throws IOException
     {
         _channel = _channelFactory.createChannel();
-        _channel.exchangeDeclare(_destAddress.exchange, "direct", true);
-        _client = new RpcClient(_channel, _destAddress.exchange, _destAddress.getRoutingKey());
+        _channelFactory.declareExchange(_channel, _destAddress.exchange);
+        _client = new ReplyClient(_channel, _destAddress.exchange, _destAddress.getRoutingKey());
         _channel.queueBind(_client.getReplyQueue(), _destAddress.exchange, _client.getReplyQueue());
     }
 
+    /**
+     * An RPC client that drops replies no request is waiting for, rather than choking on them.
+     * Delivery is at least once, so a request whose listener's channel goes down before it acks
+     * is handled again, and replied to again, and a reply may come after its request timed out.
+     */
+    protected static class ReplyClient extends RpcClient
+    {
+        public ReplyClient (Channel channel, String exchange, String routingKey)
+            throws IOException
+        {
+            super(channel, exchange, routingKey);
+        }
+
+        @Override
+        public void checkConsumer ()
+            throws IOException
+        {
+            if (_shutdown) {
+                throw new EOFException("RpcClient is closed");
+            }
+            super.checkConsumer();
+        }
+
+        @Override
+        protected DefaultConsumer setupConsumer ()
+            throws IOException
+        {
+            DefaultConsumer consumer = new DefaultConsumer(getChannel()) {
+                @Override
+                public void handleDelivery (String consumerTag, Envelope envelope,
+                    AMQP.BasicProperties props, byte[] body)
+                {
+                    BlockingCell<Object> blocker;
+                    synchronized (getContinuationMap()) {
+                        blocker = getContinuationMap().remove(props.getCorrelationId());
+                    }
+                    if (blocker == null) {
+                        logger.debug("Dropping reply no request is waiting for",
+                            "correlationId", props.getCorrelationId());
+                    } else {
+                        blocker.set(body);
+                    }
+                }
+
+                @Override
+                public void handleShutdownSignal (String consumerTag,
+                    ShutdownSignalException signal)
+                {
+                    synchronized (getContinuationMap()) {
+                        _shutdown = true;
+                        for (BlockingCell<Object> blocker : getContinuationMap().values()) {
+                            blocker.set(signal);
+                        }
+                        getContinuationMap().clear();
+                    }
+                }
+            };
+            getChannel().basicConsume(getReplyQueue(), true, consumer);
+            return consumer;
+        }
+
+        /** Whether our consumer's channel has shut down.  Left uninitialized, since our consumer
+         * is set up from the superclass constructor, before our initializers run. */
+        protected volatile boolean _shutdown;
+    }
+
+    /** When each request still waiting on a reply was sent, by correlation id. */
+    protected final Map<String, Long> _pending = new ConcurrentHashMap<String, Long>();
+
     protected int _correlationId;
-    protected RpcClient _client;
+    protected volatile RpcClient _client;
     protected Channel _channel;
+    protected final AtomicInteger _localRequests = new AtomicInteger();
     protected final ChannelFactory _channelFactory;
     protected final DestinationAddress _destAddress;
+    protected final LocalRouter _router;
+
+    protected static final Logger logger = Logger.getLogger(AMQPReplyingDestination.class);
 }
@@ -0,0 +1,64 @@
+//
+// $Id$
+
+package com.threerings.messaging.amqp;
+
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Keeps track of the delivery tags on a channel that haven't been acknowledged, so that a batch
+ * of messages can be acknowledged with a single multiple ack when that wouldn't also acknowledge
+ * messages outside the batch.
+ *
+ * This class is thread-safe.
+ */
+class AckTracker
+{
+    /**
+     * Notes that a message was delivered with the given tag.
+     */
+    public synchronized void delivered (long tag)
+    {
+        _unacked.add(tag);
+    }
+
+    /**
+     * Notes that the message with the given tag was acknowledged by itself.
+     */
+    public synchronized void acked (long tag)
+    {
+        _unacked.remove(tag);
+    }
+
+    /**
+     * Checks whether every unacknowledged tag up to the last of the given tags is one of the given
+     * tags, and if so, notes them all as acknowledged.
+     *
+     * @param tags The tags to acknowledge, in ascending order.
+     * @return true if a multiple ack through the last tag may be sent, false if each tag should be
+     * acknowledged separately.
+     */
+    public synchronized boolean ackThrough (long[] tags)
+    {
+        if (tags.length == 0) {
+            return false;
+        }
+        SortedSet<Long> through = _unacked.headSet(tags[tags.length - 1] + 1);
+        if (through.size() != tags.length) {
+            return false;
+        }
+        through.clear();
+        return true;
+    }
+
+    /**
+     * Forgets every tag, as when the channel they were delivered on is replaced.
+     */
+    public synchronized void clear ()
+    {
+        _unacked.clear();
+    }
+
+    protected final TreeSet<Long> _unacked = new TreeSet<Long>();
+}
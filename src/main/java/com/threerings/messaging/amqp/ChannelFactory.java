@@ -21,4 +21,11 @@ interface ChannelFactory
     Channel createChannel ()
         throws IOException;
 
+    /**
+     * Declares the given exchange on the given channel, as whatever type it is configured to be.
+     *
+     * @throws IOException An error occurred while declaring the exchange.
+     */
+    void declareExchange (Channel channel, String exchange)
+        throws IOException;
 }
@@ -0,0 +1,75 @@
+//
+// $Id$
+
+package com.threerings.messaging.amqp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.impl.LongString;
+
+import com.threerings.messaging.BlobStore;
+
+/**
+ * Swaps large message bodies for a reference to a copy in a {@link BlobStore}, and back.  A
+ * claim-checked message is sent with an empty body and the blob's key in a header.
+ */
+class ClaimCheck
+{
+    /** The header holding the key of a claim-checked body. */
+    public static final String HEADER = "x-claim-check";
+
+    /** An empty body, sent in place of a claim-checked one. */
+    public static final byte[] EMPTY_BODY = new byte[0];
+
+    /**
+     * Notes the key of a body put in the store in the given properties.
+     */
+    public static void stamp (AMQP.BasicProperties props, String key)
+    {
+        // replace the headers rather than change them, as a local listener may be reading them
+        Map<String, Object> headers = (props.getHeaders() == null) ?
+            Maps.<String, Object>newHashMap() : Maps.newHashMap(props.getHeaders());
+        headers.put(HEADER, key);
+        props.setHeaders(headers);
+    }
+
+    /**
+     * Returns the key of the claim-checked body of a message with the given properties and body,
+     * or null if its body is just its body.
+     */
+    public static String getKey (AMQP.BasicProperties props, byte[] body)
+    {
+        if (body.length != 0 || props.getHeaders() == null) {
+            return null;
+        }
+        Object key = props.getHeaders().get(HEADER);
+        if (key instanceof LongString) {
+            return new String(((LongString)key).getBytes(), Charsets.UTF_8);
+        }
+        return (key == null) ? null : key.toString();
+    }
+
+    /**
+     * Returns the body claim-checked with the given key.
+     *
+     * @throws IllegalStateException There is no store to get it from, or it couldn't be read.
+     */
+    public static ByteBuffer claim (BlobStore store, String key)
+    {
+        if (store == null) {
+            throw new IllegalStateException(
+                "Received a claim-checked message, but no blob store is configured.");
+        }
+        try {
+            return store.get(key);
+        } catch (IOException ioe) {
+            throw new IllegalStateException("Could not read claim-checked body " + key, ioe);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+//
+// $Id$
+
+package com.threerings.messaging.amqp;
+
+/**
+ * Decides how many consumers a queue should have, from how many messages are waiting on the
+ * server and how busy its consumers have been.  When the consumers are nearly always busy, or
+ * the backlog is large and still growing, the count grows in proportion to the load, so a surge
+ * is met in a few intervals rather than one consumer at a time.  When the consumers are mostly
+ * idle and nothing is waiting for a few intervals running, one consumer is dropped, so a lull
+ * doesn't throw away capacity that will be needed again a moment later.
+ *
+ * This class is not thread-safe; it should only be used by the connection's autoscaling thread.
+ */
+class ConsumerScaler
+{
+    /**
+     * Creates a scaler that keeps the number of consumers between the given bounds.
+     */
+    public ConsumerScaler (int minConsumers, int maxConsumers)
+    {
+        _minConsumers = minConsumers;
+        _maxConsumers = maxConsumers;
+    }
+
+    /**
+     * Returns how many consumers there should be.
+     *
+     * @param consumers How many there are now.
+     * @param backlog How many messages are waiting on the server.
+     * @param utilization The fraction of the last interval the consumers spent processing,
+     * averaged over them.
+     */
+    public int scale (int consumers, int backlog, double utilization)
+    {
+        boolean growing = backlog > _lastBacklog;
+        _lastBacklog = backlog;
+        int desired = consumers;
+        if (utilization > HIGH_UTILIZATION ||
+            (growing && backlog > consumers * BACKLOG_PER_CONSUMER)) {
+            desired = Math.max(consumers + 1,
+                (int)Math.ceil(consumers * utilization / TARGET_UTILIZATION));
+            _idleIntervals = 0;
+        } else if (utilization < LOW_UTILIZATION && backlog <= consumers) {
+            if (++_idleIntervals >= SHRINK_INTERVALS) {
+                desired = consumers - 1;
+                _idleIntervals = 0;
+            }
+        } else {
+            _idleIntervals = 0;
+        }
+        return Math.max(_minConsumers, Math.min(_maxConsumers, desired));
+    }
+
+    protected final int _minConsumers;
+    protected final int _maxConsumers;
+
+    /** The backlog at the last interval. */
+    protected int _lastBacklog;
+
+    /** How many intervals running the consumers have been idle. */
+    protected int _idleIntervals;
+
+    /** The utilization above which we add consumers, and the one we add enough to get to. */
+    protected static final double HIGH_UTILIZATION = 0.8, TARGET_UTILIZATION = 0.6;
+
+    /** The utilization below which we think about dropping a consumer. */
+    protected static final double LOW_UTILIZATION = 0.3;
+
+    /** How many waiting messages per consumer make a backlog worth adding consumers for. */
+    protected static final int BACKLOG_PER_CONSUMER = 100;
+
+    /** How many idle intervals running it takes to drop a consumer. */
+    protected static final int SHRINK_INTERVALS = 3;
+}
@@ -0,0 +1,49 @@
+//
+// $Id$
+
+package com.threerings.messaging.amqp;
+
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+import com.rabbitmq.client.AMQP;
+
+/**
+ * Marks messages that go stale with when they do, and checks the mark on arrival.  The AMQP
+ * expiration property has the server drop a message that waits too long in its queue, but a
+ * message can also go stale in a listener's buffer, or be handed to a listener in this process
+ * without going through the server at all, so the time it expires is also put in a header for
+ * listeners to check.  As with {@link SendTimestamp}, the time is a decimal string of epoch
+ * milliseconds.
+ */
+class Expiry
+{
+    /** The header holding the time a message expires. */
+    public static final String HEADER = "x-expires-at";
+
+    /**
+     * Marks the given properties to expire the given number of milliseconds from now.
+     */
+    public static void stamp (AMQP.BasicProperties props, long ttl)
+    {
+        props.setExpiration(Long.toString(ttl));
+        Map<String, Object> headers = props.getHeaders();
+        if (headers == null) {
+            props.setHeaders(headers = Maps.newHashMap());
+        }
+        headers.put(HEADER, Long.toString(System.currentTimeMillis() + ttl));
+    }
+
+    /**
+     * Returns whether the message with the given properties had expired by the given time.  This
+     * doesn't allocate, so it can be called for every message.
+     *
+     * @param now The time to check against, in epoch milliseconds.
+     */
+    public static boolean isExpired (AMQP.BasicProperties props, long now)
+    {
+        long expiresAt = SendTimestamp.getMillis(props, HEADER);
+        return expiresAt != 0 && expiresAt <= now;
+    }
+}
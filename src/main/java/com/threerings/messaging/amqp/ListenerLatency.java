@@ -0,0 +1,56 @@
+//
+// $Id$
+
+package com.threerings.messaging.amqp;
+
+import com.samskivert.util.StringUtil;
+
+import com.threerings.messaging.util.LatencyHistogram;
+
+/**
+ * Where the time goes for the messages to one listener, split into histograms of each leg of
+ * their trip, in microseconds.  Use {@link LatencyHistogram#getPercentiles} to export them.
+ */
+public class ListenerLatency
+{
+    /**
+     * From when the message was sent until it was delivered to us: publishing, and waiting in the
+     * server's queue.  This compares the clocks of the sending and receiving machines, so it is
+     * only as good as their agreement, and only has millisecond resolution.  Messages sent
+     * without a timestamp, e.g., by older senders, aren't counted.
+     */
+    public final LatencyHistogram transit = new LatencyHistogram();
+
+    /** From when the message was delivered to us until it was handed to the listener. */
+    public final LatencyHistogram buffered = new LatencyHistogram();
+
+    /** How long the listener took to process the message. */
+    public final LatencyHistogram processing = new LatencyHistogram();
+
+    /**
+     * Records the legs of a message's trip.
+     *
+     * @param sentAt When the message was sent, in epoch milliseconds, or 0 if unknown.
+     * @param arrived When it was delivered to us, in {@link System#nanoTime} terms.
+     * @param dispatched When it was handed to the listener, in {@link System#nanoTime} terms.
+     * @param finished When the listener was done with it, in {@link System#nanoTime} terms.
+     */
+    public void record (long sentAt, long arrived, long dispatched, long finished)
+    {
+        if (sentAt != 0) {
+            // when it arrived, in epoch terms
+            long arrivedAt = System.currentTimeMillis() - (finished - arrived) / NANOS_PER_MILLI;
+            transit.record((arrivedAt - sentAt) * 1000);
+        }
+        buffered.record((dispatched - arrived) / 1000);
+        processing.record((finished - dispatched) / 1000);
+    }
+
+    @Override
+    public String toString ()
+    {
+        return StringUtil.fieldsToString(this);
+    }
+
+    protected static final long NANOS_PER_MILLI = 1000 * 1000;
+}
@@ -0,0 +1,159 @@
+//
+// $Id$
+
+package com.threerings.messaging.amqp;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.Maps;
+
+import com.threerings.messaging.DestinationAddress;
+import com.threerings.messaging.util.RoutingTrie;
+
+/**
+ * Keeps track of the listeners hosted by a connection, so that messages to their addresses can
+ * be handed to them directly, rather than making a round trip through the message server.
+ * Listeners on exact addresses are found with a single map lookup; those on pattern addresses
+ * are found by matching the routing key against a trie of the patterns on its exchange, which is
+ * rebuilt whenever a pattern listener comes or goes, so routing never locks.
+ *
+ * This class is thread-safe.
+ */
+class LocalRouter
+{
+    /**
+     * Turns routing of messages to local listeners on or off.
+     */
+    public void setEnabled (boolean enabled)
+    {
+        _enabled = enabled;
+    }
+
+    /**
+     * Returns whether messages are routed to local listeners.
+     */
+    public boolean isEnabled ()
+    {
+        return _enabled;
+    }
+
+    /**
+     * Notes that the given listener is now consuming on behalf of this process.
+     */
+    public void add (AMQPConnectedListener listener)
+    {
+        if (listener._addr.isPattern()) {
+            synchronized (_patternListeners) {
+                getPatternListeners(listener._addr.exchange).put(listener._queueName, listener);
+                compilePatterns(listener._addr.exchange);
+            }
+            return;
+        }
+        Map<String, AMQPConnectedListener> byQueue = _routes.get(listener._addr);
+        if (byQueue == null) {
+            Map<String, AMQPConnectedListener> newByQueue =
+                new ConcurrentHashMap<String, AMQPConnectedListener>();
+            byQueue = _routes.putIfAbsent(listener._addr, newByQueue);
+            if (byQueue == null) {
+                byQueue = newByQueue;
+            }
+        }
+        byQueue.put(listener._queueName, listener);
+    }
+
+    /**
+     * Forgets the given listener, if it is the one we know for its queue.
+     */
+    public void remove (AMQPConnectedListener listener)
+    {
+        if (listener == AMQPConnectedListener.NULL) {
+            return;
+        }
+        if (listener._addr.isPattern()) {
+            synchronized (_patternListeners) {
+                if (getPatternListeners(listener._addr.exchange).values().remove(listener)) {
+                    compilePatterns(listener._addr.exchange);
+                }
+            }
+            return;
+        }
+        Map<String, AMQPConnectedListener> byQueue = _routes.get(listener._addr);
+        if (byQueue != null) {
+            byQueue.values().remove(listener);
+        }
+    }
+
+    /**
+     * Returns a local listener for each queue bound to the given address, or an empty collection
+     * if routing is disabled or there are none, in which case messages should go through the
+     * server.
+     */
+    public Collection<AMQPConnectedListener> route (DestinationAddress addr)
+    {
+        if (!_enabled) {
+            return Collections.emptyList();
+        }
+        Map<String, AMQPConnectedListener> byQueue = _routes.get(addr);
+        Collection<AMQPConnectedListener> exact = (byQueue == null) ?
+            Collections.<AMQPConnectedListener>emptyList() : byQueue.values();
+        RoutingTrie<AMQPConnectedListener> trie = _patterns.get(addr.exchange);
+        if (trie == null) {
+            return exact;
+        }
+        Set<AMQPConnectedListener> matched = trie.match(addr.getRoutingKey());
+        if (matched.isEmpty()) {
+            return exact;
+        }
+        matched.addAll(exact);
+        return matched;
+    }
+
+    /**
+     * Returns the pattern listeners on the given exchange, by queue.  The caller must hold the
+     * lock on {@link #_patternListeners}.
+     */
+    protected Map<String, AMQPConnectedListener> getPatternListeners (String exchange)
+    {
+        Map<String, AMQPConnectedListener> byQueue = _patternListeners.get(exchange);
+        if (byQueue == null) {
+            _patternListeners.put(exchange, byQueue = Maps.newHashMap());
+        }
+        return byQueue;
+    }
+
+    /**
+     * Replaces the trie for the given exchange with one compiled from its current pattern
+     * listeners.  The caller must hold the lock on {@link #_patternListeners}.
+     */
+    protected void compilePatterns (String exchange)
+    {
+        Map<String, AMQPConnectedListener> byQueue = getPatternListeners(exchange);
+        if (byQueue.isEmpty()) {
+            _patternListeners.remove(exchange);
+            _patterns.remove(exchange);
+            return;
+        }
+        RoutingTrie<AMQPConnectedListener> trie = new RoutingTrie<AMQPConnectedListener>();
+        for (AMQPConnectedListener listener : byQueue.values()) {
+            trie.put(listener._addr.getRoutingKey(), listener);
+        }
+        _patterns.put(exchange, trie);
+    }
+
+    protected volatile boolean _enabled;
+    protected final ConcurrentMap<DestinationAddress, Map<String, AMQPConnectedListener>> _routes =
+        new ConcurrentHashMap<DestinationAddress, Map<String, AMQPConnectedListener>>();
+
+    /** The listeners on pattern addresses, by exchange; each trie is replaced, never changed. */
+    protected final ConcurrentMap<String, RoutingTrie<AMQPConnectedListener>> _patterns =
+        new ConcurrentHashMap<String, RoutingTrie<AMQPConnectedListener>>();
+
+    /** The listeners on pattern addresses, by exchange and queue, that the tries are built from. */
+    protected final Map<String, Map<String, AMQPConnectedListener>> _patternListeners =
+        Maps.newHashMap();
+}
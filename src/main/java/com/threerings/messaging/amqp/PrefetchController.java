@@ -0,0 +1,106 @@
+//
+// $Id$
+
+package com.threerings.messaging.amqp;
+
+/**
+ * Tunes a listener's prefetch, the number of unacknowledged messages the server will hand it at
+ * once, much as TCP tunes its congestion window.  The window should be just deep enough to cover
+ * the round trip for the next delivery: any shallower and the listener sits idle waiting for
+ * messages, any deeper and messages wait in its buffer that another consumer could have taken.
+ *
+ * The controller watches how long each message takes to process, how long it waited in the
+ * buffer, and how long the listener waited when its buffer ran dry, which is the round trip of a
+ * delivery when the queue has a backlog.  Every {@link #ADJUST_INTERVAL} messages, if messages
+ * waited in the buffer longer than a round trip and a couple of service times, the window is cut
+ * by a quarter; if instead the listener ran dry, the window grows by one.
+ *
+ * This class is not thread-safe; it should only be updated by the listener's processing thread.
+ */
+class PrefetchController
+{
+    /**
+     * Creates a controller that keeps the prefetch between the given bounds, starting at the
+     * minimum.
+     */
+    public PrefetchController (int minPrefetch, int maxPrefetch)
+    {
+        _minPrefetch = minPrefetch;
+        _maxPrefetch = maxPrefetch;
+        _prefetch = minPrefetch;
+    }
+
+    /**
+     * Returns the current prefetch.
+     */
+    public int getPrefetch ()
+    {
+        return _prefetch;
+    }
+
+    /**
+     * Notes that the listener waited the given time for a delivery after its buffer ran dry.
+     */
+    public void starved (long waitNanos)
+    {
+        if (waitNanos > MAX_ROUND_TRIP) {
+            // that was the queue running dry, not the round trip
+            return;
+        }
+        _roundTrip += (waitNanos - _roundTrip) * SMOOTHING;
+        _starved = true;
+    }
+
+    /**
+     * Notes how long a message waited in the buffer and then took to process.
+     *
+     * @return the new prefetch, if it should change, or 0 if not.
+     */
+    public int processed (long queueNanos, long serviceNanos)
+    {
+        _serviceTime += (serviceNanos - _serviceTime) * SMOOTHING;
+        _queueDelay += (queueNanos - _queueDelay) * SMOOTHING;
+        if (++_count < ADJUST_INTERVAL) {
+            return 0;
+        }
+
+        int prefetch = _prefetch;
+        if (_queueDelay > _roundTrip + TARGET_SERVICE_TIMES * _serviceTime) {
+            // we're hoarding; back off hard, as TCP does on loss
+            prefetch = Math.max(_minPrefetch, prefetch - Math.max(1, prefetch / 4));
+        } else if (_starved) {
+            prefetch = Math.min(_maxPrefetch, prefetch + 1);
+        }
+        _count = 0;
+        _starved = false;
+        if (prefetch == _prefetch) {
+            return 0;
+        }
+        _prefetch = prefetch;
+        return prefetch;
+    }
+
+    protected final int _minPrefetch;
+    protected final int _maxPrefetch;
+    protected volatile int _prefetch;
+
+    /** Moving averages, in nanoseconds. */
+    protected double _serviceTime, _queueDelay, _roundTrip;
+
+    /** The messages processed since the last adjustment. */
+    protected int _count;
+
+    /** Whether the listener has run dry since the last adjustment. */
+    protected boolean _starved;
+
+    /** How many messages to process between adjustments. */
+    protected static final int ADJUST_INTERVAL = 32;
+
+    /** How many service times worth of buffering to allow on top of the round trip. */
+    protected static final int TARGET_SERVICE_TIMES = 2;
+
+    /** The longest wait for a delivery that we take for a round trip, in nanoseconds. */
+    protected static final long MAX_ROUND_TRIP = 1000L * 1000 * 1000;
+
+    protected static final double SMOOTHING = 0.1;
+}
@@ -0,0 +1,109 @@
+//
+// $Id$
+
+package com.threerings.messaging.amqp;
+
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+import com.rabbitmq.client.AMQP;
+
+/**
+ * Counts the attempts made to process a message in a header, so that a listener with a
+ * {@link com.threerings.messaging.FailurePolicy} knows when to give up on it, and marks the
+ * messages it gives up on with why.  Likewise counts the times a message has been put back on its
+ * queue by an {@link com.threerings.messaging.AdmissionController}, so that a listener that stays
+ * behind sheds it rather than passing it around forever.  Unlike our timestamps, the counts are
+ * sent as integers.
+ */
+class Retries
+{
+    /** The header holding the number of failed attempts to process a message. */
+    public static final String HEADER = "x-retry-count";
+
+    /** The header holding the number of times a message has been requeued unprocessed. */
+    public static final String REQUEUE_HEADER = "x-requeue-count";
+
+    /** The header holding the failure that made a dead letter's last attempt fail. */
+    public static final String FAILURE_HEADER = "x-failure";
+
+    /** The header holding the queue whose listener gave up on a dead letter. */
+    public static final String QUEUE_HEADER = "x-failed-queue";
+
+    /**
+     * Returns the number of failed attempts to process the message with the given properties.
+     */
+    public static int getCount (AMQP.BasicProperties props)
+    {
+        return getInt(props, HEADER);
+    }
+
+    /**
+     * Returns the number of times the message with the given properties has been requeued.
+     */
+    public static int getRequeueCount (AMQP.BasicProperties props)
+    {
+        return getInt(props, REQUEUE_HEADER);
+    }
+
+    /**
+     * Returns a copy of the given properties with the given count of failed attempts.  The
+     * original properties are left alone, as they may be shared with other local listeners.
+     */
+    public static AMQP.BasicProperties withCount (AMQP.BasicProperties props, int count)
+    {
+        Map<String, Object> headers = copyHeaders(props);
+        headers.put(HEADER, count);
+        return copy(props, headers);
+    }
+
+    /**
+     * Returns a copy of the given properties with the given count of requeues.
+     */
+    public static AMQP.BasicProperties withRequeueCount (AMQP.BasicProperties props, int count)
+    {
+        Map<String, Object> headers = copyHeaders(props);
+        headers.put(REQUEUE_HEADER, count);
+        return copy(props, headers);
+    }
+
+    /**
+     * Returns a copy of the given properties for a dead letter, with the given count of failed
+     * attempts, the last failure, and the queue it failed on.
+     */
+    public static AMQP.BasicProperties forDeadLetter (AMQP.BasicProperties props, int count,
+        Throwable failure, String queueName)
+    {
+        Map<String, Object> headers = copyHeaders(props);
+        headers.put(HEADER, count);
+        headers.put(FAILURE_HEADER, String.valueOf(failure));
+        headers.put(QUEUE_HEADER, queueName);
+        return copy(props, headers);
+    }
+
+    protected static int getInt (AMQP.BasicProperties props, String header)
+    {
+        Map<String, Object> headers = props.getHeaders();
+        Object value = (headers == null) ? null : headers.get(header);
+        return (value instanceof Number) ? ((Number)value).intValue() : 0;
+    }
+
+    protected static Map<String, Object> copyHeaders (AMQP.BasicProperties props)
+    {
+        Map<String, Object> headers = Maps.newHashMap();
+        if (props.getHeaders() != null) {
+            headers.putAll(props.getHeaders());
+        }
+        return headers;
+    }
+
+    protected static AMQP.BasicProperties copy (AMQP.BasicProperties props,
+        Map<String, Object> headers)
+    {
+        return new AMQP.BasicProperties(props.getContentType(), props.getContentEncoding(),
+            headers, props.getDeliveryMode(), props.getPriority(), props.getCorrelationId(),
+            props.getReplyTo(), props.getExpiration(), props.getMessageId(), props.getTimestamp(),
+            props.getType(), props.getUserId(), props.getAppId(), props.getClusterId());
+    }
+}
@@ -0,0 +1,82 @@
+//
+// $Id$
+
+package com.threerings.messaging.amqp;
+
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.impl.LongString;
+
+/**
+ * Stamps messages with the time they were sent, in a header, and reads it back out.  The AMQP
+ * timestamp property only has a resolution of seconds, so the time is sent as a decimal string of
+ * epoch milliseconds instead.
+ */
+class SendTimestamp
+{
+    /** The header holding the time a message was sent. */
+    public static final String HEADER = "x-sent-at";
+
+    /**
+     * Stamps the given properties with the current time.
+     */
+    public static void stamp (AMQP.BasicProperties props)
+    {
+        Map<String, Object> headers = props.getHeaders();
+        if (headers == null) {
+            props.setHeaders(headers = Maps.newHashMap());
+        }
+        headers.put(HEADER, Long.toString(System.currentTimeMillis()));
+    }
+
+    /**
+     * Returns the time the message with the given properties was sent, in epoch milliseconds, or
+     * 0 if it wasn't stamped.  This doesn't allocate, so it can be called for every message.
+     */
+    public static long getSentAt (AMQP.BasicProperties props)
+    {
+        return getMillis(props, HEADER);
+    }
+
+    /**
+     * Returns the time in the given header of the message with the given properties, in epoch
+     * milliseconds, or 0 if it has no such header.  This doesn't allocate either.
+     */
+    public static long getMillis (AMQP.BasicProperties props, String header)
+    {
+        Map<String, Object> headers = props.getHeaders();
+        Object value = (headers == null) ? null : headers.get(header);
+        if (value instanceof LongString) {
+            return parse(((LongString)value).getBytes());
+        } else if (value instanceof String) {
+            // the header hasn't been through the server, as for local deliveries
+            String string = (String)value;
+            long millis = 0;
+            for (int ii = 0; ii < string.length(); ii++) {
+                int digit = string.charAt(ii) - '0';
+                if (digit < 0 || digit > 9) {
+                    return 0;
+                }
+                millis = millis * 10 + digit;
+            }
+            return millis;
+        }
+        return 0;
+    }
+
+    protected static long parse (byte[] digits)
+    {
+        long millis = 0;
+        for (byte b : digits) {
+            int digit = b - '0';
+            if (digit < 0 || digit > 9) {
+                return 0;
+            }
+            millis = millis * 10 + digit;
+        }
+        return millis;
+    }
+}
@@ -0,0 +1,129 @@
+//
+// $Id$
+
+package com.threerings.messaging.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies, in microseconds, in log-linear buckets: each power of two is split into eight
+ * equal buckets, so any latency is placed to within an eighth of itself, from a microsecond up to
+ * days.  Recording is a single atomic increment, with no locking or allocation, so it can be done
+ * for every message.  Percentiles are computed from the counts, so they're accurate to the width
+ * of a bucket.
+ *
+ * This class is thread-safe.
+ */
+public class LatencyHistogram
+{
+    /**
+     * Records a latency sample.  Negative samples, e.g., from clocks that disagree, count as 0.
+     */
+    public void record (long micros)
+    {
+        _counts.incrementAndGet(bucket(Math.max(0, micros)));
+    }
+
+    /**
+     * Returns the number of samples recorded.
+     */
+    public long getCount ()
+    {
+        long count = 0;
+        for (int ii = 0; ii < BUCKETS; ii++) {
+            count += _counts.get(ii);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the latency at the given percentile, or 0 if nothing has been recorded.  The value
+     * is the upper bound of the bucket the percentile falls in.
+     *
+     * @param percentile A value between 0 and 1, e.g., 0.99 for the 99th percentile.
+     */
+    public long getPercentile (double percentile)
+    {
+        return getPercentiles(percentile)[0];
+    }
+
+    /**
+     * Returns the latencies at each of the given percentiles, in order, from a single pass over
+     * the counts.  See {@link #getPercentile}.
+     */
+    public long[] getPercentiles (double... percentiles)
+    {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int ii = 0; ii < BUCKETS; ii++) {
+            total += (counts[ii] = _counts.get(ii));
+        }
+        long[] values = new long[percentiles.length];
+        if (total == 0) {
+            return values;
+        }
+        for (int pp = 0; pp < percentiles.length; pp++) {
+            long rank = Math.max(1, (long)Math.ceil(percentiles[pp] * total));
+            long seen = 0;
+            int bucket = 0;
+            while (bucket < BUCKETS - 1 && (seen += counts[bucket]) < rank) {
+                bucket++;
+            }
+            values[pp] = upperBound(bucket);
+        }
+        return values;
+    }
+
+    /**
+     * Forgets every sample.  Samples recorded while this runs may or may not be kept.
+     */
+    public void reset ()
+    {
+        for (int ii = 0; ii < BUCKETS; ii++) {
+            _counts.set(ii, 0);
+        }
+    }
+
+    @Override
+    public String toString ()
+    {
+        long[] values = getPercentiles(0.5, 0.9, 0.99, 0.999);
+        return "[count=" + getCount() + ", p50=" + values[0] + ", p90=" + values[1] +
+            ", p99=" + values[2] + ", p999=" + values[3] + "]";
+    }
+
+    /**
+     * Returns the bucket for the given non-negative latency.
+     */
+    protected static int bucket (long micros)
+    {
+        if (micros < SUB_BUCKETS) {
+            return (int)micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int)(micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return Math.min(BUCKETS - 1, (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub);
+    }
+
+    /**
+     * Returns the largest latency that falls in the given bucket.
+     */
+    protected static long upperBound (int bucket)
+    {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+
+    protected final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+
+    /** The number of bits of each latency, after its leading one, that pick its bucket. */
+    protected static final int SUB_BITS = 3;
+    protected static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    /** Enough buckets for latencies up to 2^40 microseconds, about twelve days. */
+    protected static final int BUCKETS = (40 - SUB_BITS + 1) * SUB_BUCKETS;
+}
@@ -0,0 +1,85 @@
+//
+// $Id$
+
+package com.threerings.messaging.util;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps a window of the most recent latency samples, in milliseconds, so that percentiles over
+ * recent traffic can be computed.  Recording is lock-free; computing a percentile copies and
+ * sorts the window, so it should not be done on every message.
+ *
+ * This class is thread-safe.
+ */
+public class LatencyTracker
+{
+    /**
+     * Creates a tracker holding the default number of samples.
+     */
+    public LatencyTracker ()
+    {
+        this(DEFAULT_WINDOW);
+    }
+
+    /**
+     * Creates a tracker holding the given number of recent samples.
+     *
+     * @param window The number of samples to keep. Rounded up to the next power of two.
+     */
+    public LatencyTracker (int window)
+    {
+        _samples = new AtomicLongArray(Integer.highestOneBit(Math.max(window, 2) - 1) << 1);
+    }
+
+    /**
+     * Records a latency sample.
+     */
+    public void record (long millis)
+    {
+        int idx = (int)(_cursor.getAndIncrement() & (_samples.length() - 1));
+        _samples.set(idx, millis);
+    }
+
+    /**
+     * Returns the number of samples currently in the window.
+     */
+    public int size ()
+    {
+        return (int)Math.min(_cursor.get(), _samples.length());
+    }
+
+    /**
+     * Returns the latency at the given percentile of the current window, or the given default if
+     * fewer than {@link #MIN_SAMPLES} samples have been recorded.
+     *
+     * @param percentile A value between 0 and 1, e.g., 0.95 for the 95th percentile.
+     */
+    public long getPercentile (double percentile, long defaultValue)
+    {
+        int size = size();
+        if (size < MIN_SAMPLES) {
+            return defaultValue;
+        }
+        long[] sorted = new long[size];
+        for (int ii = 0; ii < size; ii++) {
+            sorted[ii] = _samples.get(ii);
+        }
+        Arrays.sort(sorted);
+        int idx = (int)Math.ceil(percentile * size) - 1;
+        return sorted[Math.max(0, Math.min(size - 1, idx))];
+    }
+
+    /** The fewest samples we'll compute a percentile from. */
+    public static final int MIN_SAMPLES = 10;
+
+    /** The number of samples kept by default. */
+    public static final int DEFAULT_WINDOW = 256;
+
+    protected final AtomicLongArray _samples;
+
+    /** The number of samples ever recorded. */
+    protected final AtomicLong _cursor = new AtomicLong();
+}
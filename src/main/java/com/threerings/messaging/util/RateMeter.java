@@ -0,0 +1,85 @@
+//
+// $Id$
+
+package com.threerings.messaging.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how often something happens, as an exponentially weighted moving average of events per
+ * second.  Marking an event is lock-free, and the average is brought up to date at most once a
+ * second by whichever thread happens to notice that a second has passed.
+ *
+ * This class is thread-safe.
+ */
+public class RateMeter
+{
+    /**
+     * Creates a meter averaging over about the last five seconds.
+     */
+    public RateMeter ()
+    {
+        this(5000);
+    }
+
+    /**
+     * Creates a meter averaging over about the given window.
+     *
+     * @param window The time constant of the average, in milliseconds.
+     */
+    public RateMeter (long window)
+    {
+        _window = TimeUnit.MILLISECONDS.toNanos(window);
+    }
+
+    /**
+     * Records that an event happened.
+     */
+    public void mark ()
+    {
+        _count.incrementAndGet();
+        tickIfNeeded();
+    }
+
+    /**
+     * Returns the total number of events marked.
+     */
+    public long getCount ()
+    {
+        return _count.get();
+    }
+
+    /**
+     * Returns the average number of events per second.
+     */
+    public double getRate ()
+    {
+        tickIfNeeded();
+        return _rate;
+    }
+
+    protected void tickIfNeeded ()
+    {
+        long now = System.nanoTime();
+        long last = _lastTick.get();
+        long elapsed = now - last;
+        if (elapsed < TICK || !_lastTick.compareAndSet(last, now)) {
+            return;
+        }
+        // only the thread that won the tick gets here, so these fields needn't be atomic
+        long count = _count.get();
+        double instant = (count - _lastCount) / (elapsed / 1e9);
+        _lastCount = count;
+        _rate += (instant - _rate) * (1 - Math.exp(-(double)elapsed / _window));
+    }
+
+    /** How often the average is updated. */
+    protected static final long TICK = TimeUnit.SECONDS.toNanos(1);
+
+    protected final long _window;
+    protected final AtomicLong _count = new AtomicLong();
+    protected final AtomicLong _lastTick = new AtomicLong(System.nanoTime());
+    protected volatile long _lastCount;
+    protected volatile double _rate;
+}
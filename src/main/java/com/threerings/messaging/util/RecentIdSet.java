@@ -0,0 +1,115 @@
+//
+// $Id$
+
+package com.threerings.messaging.util;
+
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Remembers the 64-bit ids seen over a recent window of time, in a bounded amount of memory.
+ * Ids are kept in two generations of open-addressed hash sets of primitive longs; when the
+ * current generation has been filling for half the window, or is full, the older generation is
+ * cleared and becomes the current one.  An id is therefore remembered for at least half the
+ * window, and at most the whole window, as long as no more than the capacity arrive per half
+ * window.
+ *
+ * This class is thread-safe.
+ */
+public class RecentIdSet
+{
+    /**
+     * Creates a set remembering ids for about the given window.
+     *
+     * @param window How long ids should be remembered, in milliseconds.
+     * @param capacity How many ids each half of the window should be able to hold.
+     */
+    public RecentIdSet (long window, int capacity)
+    {
+        Preconditions.checkArgument(window > 0 && capacity > 0, "Invalid window or capacity.");
+        // keep the tables at most half full so that probe sequences stay short
+        int slots = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 2;
+        _current = new long[slots];
+        _previous = new long[slots];
+        _limit = slots / 2;
+        _halfWindow = window / 2;
+        _started = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns true if the given id has been added within the window.
+     */
+    public synchronized boolean contains (long id)
+    {
+        rotateIfNeeded();
+        id = nonZero(id);
+        return find(_current, id) >= 0 || find(_previous, id) >= 0;
+    }
+
+    /**
+     * Adds the given id to the set.
+     */
+    public synchronized void add (long id)
+    {
+        rotateIfNeeded();
+        id = nonZero(id);
+        if (_size >= _limit) {
+            rotate();
+        }
+        int slot = find(_current, id);
+        if (slot < 0) {
+            _current[-slot - 1] = id;
+            _size++;
+        }
+    }
+
+    /**
+     * Returns the slot holding the given id, or -(the empty slot it would go into) - 1.
+     */
+    protected static int find (long[] table, long id)
+    {
+        int mask = table.length - 1;
+        // mix the bits so that sequential ids don't cluster
+        long hash = id * 0x9E3779B97F4A7C15L;
+        for (int slot = (int)(hash >>> 32) & mask; ; slot = (slot + 1) & mask) {
+            if (table[slot] == id) {
+                return slot;
+            } else if (table[slot] == EMPTY) {
+                return -slot - 1;
+            }
+        }
+    }
+
+    protected void rotateIfNeeded ()
+    {
+        if (System.currentTimeMillis() - _started >= _halfWindow) {
+            rotate();
+        }
+    }
+
+    protected void rotate ()
+    {
+        long[] cleared = _previous;
+        Arrays.fill(cleared, EMPTY);
+        _previous = _current;
+        _current = cleared;
+        _size = 0;
+        _started = System.currentTimeMillis();
+    }
+
+    protected static long nonZero (long id)
+    {
+        return (id == EMPTY) ? 1 : id;
+    }
+
+    /** Marks an unused slot. An id of zero is stored as one instead. */
+    protected static final long EMPTY = 0;
+
+    protected final int _limit;
+    protected final long _halfWindow;
+    protected long[] _current;
+    protected long[] _previous;
+    protected int _size;
+    protected long _started;
+}
@@ -0,0 +1,120 @@
+//
+// $Id$
+
+package com.threerings.messaging.util;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Matches dot separated routing keys against topic patterns, as an AMQP topic exchange does: a
+ * "*" segment in a pattern matches exactly one segment of a key, and a "#" matches zero or more.
+ * The patterns are compiled into a trie of segments, so matching a key costs time in proportion
+ * to its segments and the wildcards it passes, rather than to the number of patterns.
+ *
+ * This class is not thread-safe; build a trie up front and then only match against it, building
+ * a new one to change the patterns.
+ */
+public class RoutingTrie<V>
+{
+    /** A segment that matches exactly one segment of a key. */
+    public static final String ONE = "*";
+
+    /** A segment that matches zero or more segments of a key. */
+    public static final String ANY = "#";
+
+    /**
+     * Adds a value to be returned for keys matching the given pattern.
+     */
+    public void put (String pattern, V value)
+    {
+        Node<V> node = _root;
+        for (String segment : split(pattern)) {
+            Node<V> child = node.children.get(segment);
+            if (child == null) {
+                node.children.put(segment, child = new Node<V>());
+            }
+            node = child;
+        }
+        node.values.add(value);
+    }
+
+    /**
+     * Returns the values of every pattern that matches the given key, without duplicates, in no
+     * particular order.
+     */
+    public Set<V> match (String key)
+    {
+        Set<V> matches = new LinkedHashSet<V>();
+        match(_root, split(key), 0, matches);
+        return matches;
+    }
+
+    /**
+     * Returns whether the given key matches the given pattern.
+     */
+    public static boolean matches (String pattern, String key)
+    {
+        return matches(split(pattern), 0, split(key), 0);
+    }
+
+    protected static boolean matches (String[] pattern, int pp, String[] key, int kk)
+    {
+        if (pp == pattern.length) {
+            return kk == key.length;
+        }
+        if (pattern[pp].equals(ANY)) {
+            for (int ii = kk; ii <= key.length; ii++) {
+                if (matches(pattern, pp + 1, key, ii)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return kk < key.length && (pattern[pp].equals(ONE) || pattern[pp].equals(key[kk])) &&
+            matches(pattern, pp + 1, key, kk + 1);
+    }
+
+    protected void match (Node<V> node, String[] key, int idx, Collection<V> matches)
+    {
+        Node<V> any = node.children.get(ANY);
+        if (any != null) {
+            // a # may swallow any number of the remaining segments, including none
+            for (int ii = idx; ii <= key.length; ii++) {
+                match(any, key, ii, matches);
+            }
+        }
+        if (idx == key.length) {
+            matches.addAll(node.values);
+            return;
+        }
+        Node<V> exact = node.children.get(key[idx]);
+        if (exact != null) {
+            match(exact, key, idx + 1, matches);
+        }
+        Node<V> one = node.children.get(ONE);
+        if (one != null) {
+            match(one, key, idx + 1, matches);
+        }
+    }
+
+    protected static String[] split (String key)
+    {
+        return key.split("\\.", -1);
+    }
+
+    /** A segment of the trie, and the values of the patterns that end there. */
+    protected static class Node<V>
+    {
+        public final Map<String, Node<V>> children = Maps.newHashMap();
+        public final List<V> values = Lists.newArrayListWithCapacity(1);
+    }
+
+    protected final Node<V> _root = new Node<V>();
+}
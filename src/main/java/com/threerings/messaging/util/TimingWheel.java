@@ -0,0 +1,244 @@
+//
+// $Id$
+
+package com.threerings.messaging.util;
+
+import java.util.Collection;
+
+/**
+ * Holds items until a deadline passes, in a hierarchy of timing wheels.  Adding an item and
+ * expiring it each take constant time, however many items are pending, and each item costs one
+ * small node, so millions of them can be held cheaply.  The price is that deadlines are only as
+ * precise as the wheel's tick.
+ *
+ * The lowest wheel has a slot per tick; each wheel above it has a slot per turn of the one below.
+ * An item is put in the lowest wheel whose turn covers its deadline, and is moved down a wheel
+ * each time the wheel above turns to its slot, until it expires from the lowest.  Items due
+ * further out than the highest wheel covers wait in an overflow list that is looked through once
+ * per turn of the highest wheel.  Items due on the same tick expire in the order they were added:
+ * each is added at the back of its slot, and those moved down from above, which were all added
+ * before any that went straight to the slot below, are put in front of it.
+ *
+ * This class is thread-safe.
+ */
+public class TimingWheel<T>
+{
+    /**
+     * Creates a wheel with the given tick, starting at the given time.
+     *
+     * @param tickMillis The precision of deadlines, in milliseconds.
+     * @param now The current time, in epoch milliseconds.
+     */
+    public TimingWheel (long tickMillis, long now)
+    {
+        _tickMillis = tickMillis;
+        _current = now / tickMillis;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Slot<T>[][] slots = new Slot[LEVELS][SLOTS];
+        for (Slot<T>[] wheel : slots) {
+            for (int ii = 0; ii < wheel.length; ii++) {
+                wheel[ii] = new Slot<T>();
+            }
+        }
+        _slots = slots;
+    }
+
+    /**
+     * Adds an item that expires at the given time.  An item whose deadline has already passed
+     * expires on the next tick.
+     *
+     * @param deadline When the item expires, in epoch milliseconds.
+     */
+    public synchronized void add (T item, long deadline)
+    {
+        // round up, so that nothing expires early
+        long tick = Math.max(_current + 1, (deadline + _tickMillis - 1) / _tickMillis);
+        slotFor(tick).append(new Node<T>(item, tick));
+        _size++;
+    }
+
+    /**
+     * Advances the wheel to the given time, adding every item that expires by then to the given
+     * collection, in order of deadline, to the precision of the tick, and those due on the same
+     * tick in the order they were added.
+     *
+     * @param now The current time, in epoch milliseconds.
+     * @return the number of items that expired.
+     */
+    public synchronized int advance (long now, Collection<? super T> expired)
+    {
+        long target = now / _tickMillis;
+        int count = 0;
+        while (_current < target) {
+            if (_size == 0) {
+                // nothing to expire or cascade on the way, so skip straight there
+                _current = target;
+                break;
+            }
+            _current++;
+            cascade();
+            int slot = (int)(_current & MASK);
+            for (Node<T> node = _slots[0][slot].take(); node != null; node = node.next) {
+                expired.add(node.item);
+                count++;
+            }
+        }
+        _size -= count;
+        return count;
+    }
+
+    /**
+     * Removes every item, whether or not it has expired, adding them to the given collection in
+     * no particular order.
+     *
+     * @return the number of items removed.
+     */
+    public synchronized int clear (Collection<? super T> items)
+    {
+        for (Slot<T>[] wheel : _slots) {
+            for (Slot<T> slot : wheel) {
+                for (Node<T> node = slot.take(); node != null; node = node.next) {
+                    items.add(node.item);
+                }
+            }
+        }
+        for (Node<T> node = _overflow.take(); node != null; node = node.next) {
+            items.add(node.item);
+        }
+        int count = _size;
+        _size = 0;
+        return count;
+    }
+
+    /**
+     * Returns the number of items waiting to expire.  This doesn't lock, so it can be used to keep
+     * an eye on a busy wheel.
+     */
+    public int size ()
+    {
+        return _size;
+    }
+
+    /**
+     * Moves the items in the slot each higher wheel has just turned to down to lower wheels.
+     */
+    protected void cascade ()
+    {
+        for (int level = 1; level < LEVELS; level++) {
+            int shift = level * BITS;
+            if ((_current & ((1L << shift) - 1)) != 0) {
+                // this wheel hasn't turned, so neither have any above it
+                return;
+            }
+            int slot = (int)((_current >>> shift) & MASK);
+            reinsert(_slots[level][slot].take());
+            if (level == LEVELS - 1) {
+                // the overflow was added to before anything in the wheels due on the same ticks
+                reinsert(_overflow.take());
+            }
+        }
+    }
+
+    /**
+     * Moves a list of nodes from a higher wheel, or the overflow, to the front of the slots they
+     * now belong in, keeping their order.
+     */
+    protected void reinsert (Node<T> node)
+    {
+        // reverse the list, so that putting each at the front leaves them in their original order
+        Node<T> reversed = null;
+        while (node != null) {
+            Node<T> next = node.next;
+            node.next = reversed;
+            reversed = node;
+            node = next;
+        }
+        while (reversed != null) {
+            Node<T> next = reversed.next;
+            slotFor(reversed.tick).prepend(reversed);
+            reversed = next;
+        }
+    }
+
+    /**
+     * Returns the slot of the lowest wheel whose turn covers the given tick, or the overflow.
+     */
+    protected Slot<T> slotFor (long tick)
+    {
+        long delta = tick - _current;
+        for (int level = 0; level < LEVELS; level++) {
+            if (delta < (1L << ((level + 1) * BITS))) {
+                return _slots[level][(int)((tick >>> (level * BITS)) & MASK)];
+            }
+        }
+        return _overflow;
+    }
+
+    /** A list of nodes, which can be added to at either end. */
+    protected static class Slot<T>
+    {
+        public void append (Node<T> node)
+        {
+            node.next = null;
+            if (_head == null) {
+                _head = node;
+            } else {
+                _tail.next = node;
+            }
+            _tail = node;
+        }
+
+        public void prepend (Node<T> node)
+        {
+            node.next = _head;
+            if (_head == null) {
+                _tail = node;
+            }
+            _head = node;
+        }
+
+        /**
+         * Empties the slot, returning the first of the nodes that were in it.
+         */
+        public Node<T> take ()
+        {
+            Node<T> head = _head;
+            _head = _tail = null;
+            return head;
+        }
+
+        protected Node<T> _head, _tail;
+    }
+
+    /** An item waiting in a slot, linked to the next in the same slot. */
+    protected static class Node<T>
+    {
+        public final T item;
+        public final long tick;
+        public Node<T> next;
+
+        public Node (T item, long tick)
+        {
+            this.item = item;
+            this.tick = tick;
+        }
+    }
+
+    protected final long _tickMillis;
+    protected final Slot<T>[][] _slots;
+    protected final Slot<T> _overflow = new Slot<T>();
+
+    /** The last tick we advanced to. */
+    protected long _current;
+    protected volatile int _size;
+
+    /** The number of bits of the tick each wheel covers. */
+    protected static final int BITS = 6;
+
+    /** The number of slots in each wheel. */
+    protected static final int SLOTS = 1 << BITS;
+    protected static final long MASK = SLOTS - 1;
+
+    /** The number of wheels; with a 10ms tick, they cover about four months. */
+    protected static final int LEVELS = 5;
+}
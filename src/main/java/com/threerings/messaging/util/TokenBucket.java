@@ -0,0 +1,80 @@
+//
+// $Id$
+
+package com.threerings.messaging.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Hands out permits at a steady rate, allowing bursts of up to a given size after a lull.  Rather
+ * than counting tokens, this keeps the time at which the bucket would next be empty, and a permit
+ * is taken by pushing that time one interval later with a compare-and-set, so no locks are held.
+ *
+ * This class is thread-safe.
+ */
+public class TokenBucket
+{
+    /**
+     * Creates a bucket that starts full.
+     *
+     * @param permitsPerSecond The steady rate at which permits are handed out.
+     * @param burst The most permits that may be taken at once after a lull.
+     */
+    public TokenBucket (double permitsPerSecond, int burst)
+    {
+        Preconditions.checkArgument(permitsPerSecond > 0, "Rate must be positive");
+        Preconditions.checkArgument(burst > 0, "Burst must be positive");
+        _interval = Math.max(1, (long)(1e9 / permitsPerSecond));
+        _tolerance = _interval * (burst - 1);
+        _empty = new AtomicLong(System.nanoTime() - _tolerance);
+    }
+
+    /**
+     * Takes a permit if one is available right now.
+     *
+     * @return false if none was.
+     */
+    public boolean tryAcquire ()
+    {
+        while (true) {
+            long now = System.nanoTime();
+            long empty = _empty.get();
+            long start = Math.max(empty, now - _tolerance);
+            if (start > now) {
+                return false;
+            }
+            if (_empty.compareAndSet(empty, start + _interval)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Takes a permit, whether or not one is available yet.  The caller must wait the returned time
+     * before using it, which leaves later callers waiting in turn behind it.
+     *
+     * @return how long to wait for the permit, in nanoseconds, or 0 if it may be used now.
+     */
+    public long reserve ()
+    {
+        while (true) {
+            long now = System.nanoTime();
+            long empty = _empty.get();
+            long start = Math.max(empty, now - _tolerance);
+            if (_empty.compareAndSet(empty, start + _interval)) {
+                return Math.max(0, start - now);
+            }
+        }
+    }
+
+    /** The time between permits, in nanoseconds. */
+    protected final long _interval;
+
+    /** How far behind the present the empty time may fall, which is what allows bursts. */
+    protected final long _tolerance;
+
+    /** The time, in {@link System#nanoTime} terms, at which the bucket runs dry. */
+    protected final AtomicLong _empty;
+}
@@ -0,0 +1,155 @@
+//
+// $Id$
+
+package com.threerings.messaging.util;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A blocking queue made up of several FIFO lanes that are drained by weighted round robin.  Each
+ * turn, a lane may hand out as many items as its weight before the next lane gets a turn, so a
+ * busy lane can delay another one by at most its weight, while no lane is ever starved.  Lanes
+ * are visited from the last (highest) to the first.  Lanes are backed by growable ring buffers,
+ * so adding and taking items doesn't allocate once the queue has reached its working size.
+ *
+ * This class is thread-safe.
+ */
+public class WeightedLanes<T>
+{
+    /**
+     * Creates a queue with one lane per weight.
+     *
+     * @param weights How many items each lane may hand out per turn.  Each must be at least 1.
+     */
+    public WeightedLanes (int... weights)
+    {
+        Preconditions.checkArgument(weights.length > 0, "Must have at least one lane.");
+        _weights = weights.clone();
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Lane<T>[] lanes = new Lane[weights.length];
+        _lanes = lanes;
+        for (int ii = 0; ii < weights.length; ii++) {
+            Preconditions.checkArgument(weights[ii] > 0, "Lane weights must be positive.");
+            _lanes[ii] = new Lane<T>();
+        }
+        _current = _lanes.length - 1;
+        _credits = _weights[_current];
+    }
+
+    /**
+     * Returns the number of lanes.
+     */
+    public int getLaneCount ()
+    {
+        return _lanes.length;
+    }
+
+    /**
+     * Adds an item to the end of the given lane.
+     */
+    public synchronized void add (T item, int lane)
+    {
+        lane(lane).add(item);
+        _size++;
+        notifyAll();
+    }
+
+    /**
+     * Waits for and removes the next item, according to the lane weights.
+     */
+    public synchronized T take ()
+        throws InterruptedException
+    {
+        while (_size == 0) {
+            wait();
+        }
+        return next();
+    }
+
+    /**
+     * Removes the next item, according to the lane weights, waiting up to the given time for one
+     * to arrive.
+     *
+     * @return the item, or null if none arrived in time.
+     */
+    public synchronized T poll (long timeout)
+        throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (_size == 0) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return null;
+            }
+            wait(remaining);
+        }
+        return next();
+    }
+
+    /**
+     * Returns the number of items waiting in all lanes.  This doesn't lock, so it can be used to
+     * keep an eye on a busy queue.
+     */
+    public int size ()
+    {
+        return _size;
+    }
+
+    /**
+     * Removes the next item.  There must be at least one.
+     */
+    protected T next ()
+    {
+        while (_credits == 0 || lane(_current).count == 0) {
+            _current = (_current == 0) ? _lanes.length - 1 : _current - 1;
+            _credits = _weights[_current];
+        }
+        _credits--;
+        _size--;
+        return lane(_current).remove();
+    }
+
+    @SuppressWarnings("unchecked")
+    protected Lane<T> lane (int idx)
+    {
+        return (Lane<T>)_lanes[idx];
+    }
+
+    protected static class Lane<T>
+    {
+        public int count;
+
+        public void add (T item)
+        {
+            if (count == _items.length) {
+                Object[] items = new Object[_items.length * 2];
+                for (int ii = 0; ii < count; ii++) {
+                    items[ii] = _items[(_head + ii) % _items.length];
+                }
+                _items = items;
+                _head = 0;
+            }
+            _items[(_head + count) % _items.length] = item;
+            count++;
+        }
+
+        @SuppressWarnings("unchecked")
+        public T remove ()
+        {
+            T item = (T)_items[_head];
+            _items[_head] = null;
+            _head = (_head + 1) % _items.length;
+            count--;
+            return item;
+        }
+
+        protected Object[] _items = new Object[16];
+        protected int _head;
+    }
+
+    protected final int[] _weights;
+    protected final Lane<?>[] _lanes;
+    protected int _current;
+    protected int _credits;
+    protected volatile int _size;
+}
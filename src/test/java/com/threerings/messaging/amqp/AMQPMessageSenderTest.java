@@ -0,0 +1,200 @@
+//
+// $Id$
+
+package com.threerings.messaging.amqp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+
+import com.threerings.messaging.BlobStore;
+import com.threerings.messaging.DestinationAddress;
+import com.threerings.messaging.EncodedMessage;
+import com.threerings.messaging.IntMessage;
+import com.threerings.messaging.RateLimit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests {@link AMQPMessageSender} against an {@link InMemoryBroker}, with a consumer of our own
+ * on a queue bound to the address we send to.
+ */
+public class AMQPMessageSenderTest
+{
+    @Before
+    public void setUp ()
+        throws IOException
+    {
+        ChannelFactory factory = _broker.newChannelFactory(Collections.<String>emptySet());
+        _sender = new AMQPMessageSender(factory);
+        Channel channel = factory.createChannel();
+        factory.declareExchange(channel, ADDR.exchange);
+        channel.queueDeclare(QUEUE, true);
+        channel.queueBind(QUEUE, ADDR.exchange, ADDR.getRoutingKey());
+        channel.basicConsume(QUEUE, true, new DefaultConsumer(channel) {
+            @Override
+            public void handleDelivery (String consumerTag, Envelope envelope,
+                AMQP.BasicProperties props, byte[] body)
+            {
+                _received.add(new Received(props, body));
+            }
+        });
+    }
+
+    @After
+    public void tearDown ()
+        throws IOException
+    {
+        _sender.close();
+    }
+
+    @Test
+    public void testClaimCheckScheduledTwice ()
+        throws Exception
+    {
+        MapBlobStore store = new MapBlobStore();
+        _sender.setClaimCheck(store, 4);
+        byte[] body = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 };
+        EncodedMessage msg = new EncodedMessage(body);
+        // both come due on the same tick, and are sent as one batch sharing the body
+        long when = System.currentTimeMillis() + 50;
+        _sender.sendMessageAt(msg, ADDR, when);
+        _sender.sendMessageAt(msg, ADDR, when);
+
+        for (int ii = 0; ii < 2; ii++) {
+            Received received = receive();
+            assertEquals(0, received.body.length);
+            String key = ClaimCheck.getKey(received.props, received.body);
+            assertNotNull("Copy " + ii + " has no claim check", key);
+            ByteBuffer buf = store.get(key);
+            byte[] claimed = new byte[buf.remaining()];
+            buf.get(claimed);
+            assertArrayEquals(body, claimed);
+        }
+        assertEquals("Body stored more than once", 1, store.blobs.size());
+    }
+
+    @Test
+    public void testLingerKeepsOrder ()
+        throws Exception
+    {
+        // several messages come due on each tick of the sender's timer
+        _sender.setRateLimit(ADDR, new RateLimit(LINGER_RATE, 1, RateLimit.Mode.LINGER));
+        for (int ii = 0; ii < LINGER_COUNT; ii++) {
+            _sender.sendMessage(new IntMessage(ii), ADDR);
+        }
+        assertReceivedInOrder(LINGER_COUNT);
+    }
+
+    @Test
+    public void testLingerKeepsOrderAfterLull ()
+        throws Exception
+    {
+        // after each pair, the limit lets the next message go at once, while the second of the
+        // pair still waits for the timer
+        _sender.setRateLimit(ADDR, new RateLimit(LINGER_RATE, 1, RateLimit.Mode.LINGER));
+        for (int ii = 0; ii < LINGER_COUNT; ii++) {
+            _sender.sendMessage(new IntMessage(ii), ADDR);
+            if (ii % 2 == 1) {
+                Thread.sleep(LINGER_LULL);
+            }
+        }
+        assertReceivedInOrder(LINGER_COUNT);
+    }
+
+    protected void assertReceivedInOrder (int count)
+        throws InterruptedException
+    {
+        for (int ii = 0; ii < count; ii++) {
+            assertEquals(ii, new IntMessage(receive().body).value);
+        }
+    }
+
+    protected Received receive ()
+        throws InterruptedException
+    {
+        Received received = _received.poll(RECEIVE_TIMEOUT, TimeUnit.MILLISECONDS);
+        if (received == null) {
+            fail("Nothing received");
+        }
+        return received;
+    }
+
+    /** A message our consumer received. */
+    protected static class Received
+    {
+        public final AMQP.BasicProperties props;
+        public final byte[] body;
+
+        public Received (AMQP.BasicProperties props, byte[] body)
+        {
+            this.props = props;
+            this.body = body;
+        }
+    }
+
+    /** Keeps blobs in memory. */
+    protected static class MapBlobStore
+        implements BlobStore
+    {
+        public final Map<String, byte[]> blobs = new ConcurrentHashMap<String, byte[]>();
+
+        public String put (byte[] body)
+        {
+            String key = UUID.randomUUID().toString();
+            blobs.put(key, Arrays.copyOf(body, body.length));
+            return key;
+        }
+
+        public ByteBuffer get (String key)
+            throws IOException
+        {
+            byte[] body = blobs.get(key);
+            if (body == null) {
+                throw new IOException("No blob " + key);
+            }
+            return ByteBuffer.wrap(body);
+        }
+
+        public void delete (String key)
+        {
+            blobs.remove(key);
+        }
+    }
+
+    protected final InMemoryBroker _broker = new InMemoryBroker();
+    protected final BlockingQueue<Received> _received = new LinkedBlockingQueue<Received>();
+    protected AMQPMessageSender _sender;
+
+    protected static final DestinationAddress ADDR =
+        new DestinationAddress("test", "sender", "ping", "test");
+    protected static final String QUEUE = "test.sender";
+
+    protected static final long RECEIVE_TIMEOUT = 5000;
+
+    /** How fast the linger test's messages may be sent, and how many it sends. */
+    protected static final double LINGER_RATE = 500;
+    protected static final int LINGER_COUNT = 100;
+
+    /** How long the linger test pauses between pairs of messages, in milliseconds. */
+    protected static final long LINGER_LULL = 4;
+}
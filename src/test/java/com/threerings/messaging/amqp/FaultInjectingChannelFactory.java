@@ -0,0 +1,302 @@
+//
+// $Id$
+
+package com.threerings.messaging.amqp;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Wraps the channels of another channel factory, or of a connection, to misbehave on demand the
+ * way channels do when the server or the network does: operations can be slowed down, channels
+ * dropped at random or all at once, publishes failed partway with a shutdown signal, and the
+ * channels under consumers killed.  Channels are dropped as the server would drop them if they're
+ * an {@link InMemoryBroker}'s, and closed from our side otherwise.  Used by
+ * {@link RecoveryDrillTest} to see how our listeners, senders and replying destinations recover.
+ *
+ * This class is thread-safe.
+ */
+class FaultInjectingChannelFactory
+    implements ChannelFactory
+{
+    /**
+     * Creates a factory that injects faults into the channels the given one creates.
+     */
+    public FaultInjectingChannelFactory (ChannelFactory delegate)
+    {
+        _delegate = delegate;
+    }
+
+    /**
+     * Returns a connection that acts as the given one, but injects our faults into the channels
+     * it creates, for code that creates its own channels from a connection.
+     */
+    public Connection wrap (final Connection conn)
+    {
+        return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(),
+            new Class<?>[] { Connection.class }, new InvocationHandler() {
+                public Object invoke (Object proxy, Method method, Object[] args)
+                    throws Throwable
+                {
+                    if (method.getName().equals("createChannel")) {
+                        delay();
+                        return wrap((Channel)call(conn, method, args));
+                    } else if (method.getName().equals("equals")) {
+                        return proxy == args[0];
+                    } else if (method.getName().equals("hashCode")) {
+                        return System.identityHashCode(proxy);
+                    }
+                    return call(conn, method, args);
+                }
+            });
+    }
+
+    /**
+     * Sets how long each channel operation waits before it goes ahead.
+     */
+    public void setDelay (long millis)
+    {
+        _delay = millis;
+    }
+
+    /**
+     * Sets the chance that each channel operation finds its channel dropped.
+     */
+    public void setDropRate (double rate)
+    {
+        _dropRate = rate;
+    }
+
+    /**
+     * Makes the next given number of publishes drop their channel and throw a shutdown signal,
+     * as if the connection went down partway through.
+     */
+    public void failPublishes (int count)
+    {
+        _failedPublishes.set(count);
+    }
+
+    /**
+     * Drops every open channel we've created.
+     *
+     * @return the number of channels dropped.
+     */
+    public int dropChannels ()
+    {
+        return drop(false);
+    }
+
+    /**
+     * Drops every open channel with a consumer on it, leaving the connection and any other
+     * channels up.
+     *
+     * @return the number of channels dropped.
+     */
+    public int killConsumers ()
+    {
+        return drop(true);
+    }
+
+    /**
+     * Returns the number of faults we've injected so far, not counting delays.
+     */
+    public int getFaultCount ()
+    {
+        return _faults.get();
+    }
+
+    public Channel createChannel ()
+        throws IOException
+    {
+        delay();
+        return wrap(_delegate.createChannel());
+    }
+
+    public void declareExchange (Channel channel, String exchange)
+        throws IOException
+    {
+        // the channel is one of ours, so the declare sees its faults
+        _delegate.declareExchange(channel, exchange);
+    }
+
+    protected Channel wrap (Channel channel)
+    {
+        FaultyChannel faulty = new FaultyChannel(channel);
+        synchronized (_channels) {
+            if (_channels.size() >= PRUNE_SIZE) {
+                // senders open a channel per send, so forget the closed ones as we go
+                for (Iterator<FaultyChannel> iter = _channels.iterator(); iter.hasNext(); ) {
+                    if (!iter.next().target.isOpen()) {
+                        iter.remove();
+                    }
+                }
+            }
+            _channels.add(faulty);
+        }
+        return faulty.proxy;
+    }
+
+    protected int drop (boolean consumersOnly)
+    {
+        List<FaultyChannel> channels;
+        synchronized (_channels) {
+            channels = Lists.newArrayList(_channels);
+            _channels.clear();
+        }
+        int dropped = 0;
+        for (FaultyChannel channel : channels) {
+            if (!channel.target.isOpen()) {
+                continue;
+            }
+            if (consumersOnly && channel.consumers.get() == 0) {
+                // keep track of it for next time
+                synchronized (_channels) {
+                    _channels.add(channel);
+                }
+                continue;
+            }
+            channel.sever("Injected fault: channel dropped.");
+            dropped++;
+        }
+        return dropped;
+    }
+
+    /**
+     * Returns whether the current publish should fail, counting it off if so.
+     */
+    protected boolean takeFailedPublish ()
+    {
+        while (true) {
+            int remaining = _failedPublishes.get();
+            if (remaining == 0) {
+                return false;
+            }
+            if (_failedPublishes.compareAndSet(remaining, remaining - 1)) {
+                return true;
+            }
+        }
+    }
+
+    protected void delay ()
+    {
+        long delay = _delay;
+        if (delay > 0) {
+            Uninterruptibles.sleepUninterruptibly(delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Calls the given method on the given target, rethrowing whatever it throws.
+     */
+    protected static Object call (Object target, Method method, Object[] args)
+        throws Throwable
+    {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException ite) {
+            throw ite.getCause();
+        }
+    }
+
+    /**
+     * Stands in for a channel, injecting faults before passing its operations on.
+     */
+    protected class FaultyChannel
+        implements InvocationHandler
+    {
+        public final Channel target;
+        public final Channel proxy;
+
+        /** The number of consumers started on the channel and not yet canceled. */
+        public final AtomicInteger consumers = new AtomicInteger();
+
+        public FaultyChannel (Channel target)
+        {
+            this.target = target;
+            proxy = (Channel)Proxy.newProxyInstance(Channel.class.getClassLoader(),
+                new Class<?>[] { Channel.class }, this);
+        }
+
+        public Object invoke (Object proxy, Method method, Object[] args)
+            throws Throwable
+        {
+            String name = method.getName();
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (method.getDeclaringClass() == Object.class ||
+                       UNFAILING.contains(name)) {
+                return call(target, method, args);
+            }
+
+            delay();
+            if (_dropRate > 0 && _random.nextDouble() < _dropRate) {
+                throw sever("Injected fault: channel dropped during " + name + ".");
+            }
+            if (name.equals("basicPublish") && takeFailedPublish()) {
+                throw sever("Injected fault: connection lost while publishing.");
+            }
+            Object result = call(target, method, args);
+            if (name.equals("basicConsume")) {
+                consumers.incrementAndGet();
+            } else if (name.equals("basicCancel")) {
+                consumers.decrementAndGet();
+            }
+            return result;
+        }
+
+        /**
+         * Drops the channel, returning the shutdown signal an operation on it would see.
+         */
+        public ShutdownSignalException sever (String reason)
+        {
+            _faults.incrementAndGet();
+            if (!InMemoryBroker.sever(target, reason)) {
+                try {
+                    target.close(AMQP.REPLY_SUCCESS, reason);
+                } catch (Exception e) {
+                    // it's closed either way
+                }
+            }
+            return new ShutdownSignalException(false, false, reason, proxy);
+        }
+    }
+
+    protected final ChannelFactory _delegate;
+
+    /** The channels we've created that were open when we last looked. */
+    protected final List<FaultyChannel> _channels = Lists.newArrayList();
+
+    protected volatile long _delay;
+    protected volatile double _dropRate;
+    protected final AtomicInteger _failedPublishes = new AtomicInteger();
+    protected final AtomicInteger _faults = new AtomicInteger();
+    protected final Random _random = new Random();
+
+    /** Channel methods that only look at the channel's state, which we never slow or fail. */
+    protected static final Set<String> UNFAILING = ImmutableSet.of("getChannelNumber",
+        "getConnection", "isOpen", "getCloseReason", "addShutdownListener",
+        "removeShutdownListener", "notifyListeners", "close", "abort");
+
+    /** How many channels we track before looking for closed ones to forget. */
+    protected static final int PRUNE_SIZE = 64;
+}
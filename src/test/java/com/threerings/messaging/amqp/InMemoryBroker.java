@@ -0,0 +1,868 @@
+//
+// $Id$
+
+package com.threerings.messaging.amqp;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import com.samskivert.util.Logger;
+
+import com.threerings.messaging.util.RoutingTrie;
+
+/**
+ * A stand-in for an AMQP server that lives in this process, for exercising our clients without a
+ * broker.  It hands out {@link Connection}s and {@link Channel}s supporting what this package
+ * uses of them: declaring direct, topic and fanout exchanges and queues, binding, publishing,
+ * consuming with acknowledgements and a prefetch limit, and shutdown notification.  As on a real
+ * server, a channel's unacked messages are requeued when it closes, an error closes the channel
+ * it happened on, and exclusive queues go away with their connection.  Anything else throws
+ * UnsupportedOperationException.
+ *
+ * One liberty is taken with routing: a message that no binding routes is delivered to the queue
+ * named by its routing key, if there is one, so that replies published to a listener's exchange
+ * reach the requester's reply queue.
+ *
+ * Each connection calls its consumers and shutdown listeners in order on a thread of its own, as
+ * the client library does.
+ *
+ * This class is thread-safe.
+ */
+class InMemoryBroker
+{
+    /**
+     * Opens a new connection to this broker.
+     */
+    public synchronized Connection newConnection ()
+    {
+        BrokerConnection conn = new BrokerConnection(++_lastId);
+        _connections.add(conn);
+        return conn.proxy;
+    }
+
+    /**
+     * Creates a channel factory that opens channels on a connection to this broker, opening a new
+     * connection when the last one has been closed.  The given exchanges are declared as topic
+     * exchanges, and all others as direct.
+     */
+    public ChannelFactory newChannelFactory (Collection<String> topicExchanges)
+    {
+        final Set<String> topics = ImmutableSet.copyOf(topicExchanges);
+        return new ChannelFactory() {
+            public synchronized Channel createChannel ()
+                throws IOException
+            {
+                if (_conn == null || !_conn.isOpen()) {
+                    _conn = newConnection();
+                }
+                return _conn.createChannel();
+            }
+
+            public void declareExchange (Channel channel, String exchange)
+                throws IOException
+            {
+                channel.exchangeDeclare(exchange, topics.contains(exchange) ? "topic" : "direct",
+                    true);
+            }
+
+            protected Connection _conn;
+        };
+    }
+
+    /**
+     * Closes every open connection as if the network to the server had gone down, so their
+     * channels and shutdown listeners see a hard error that the application didn't initiate.
+     */
+    public synchronized void dropConnections ()
+    {
+        for (BrokerConnection conn : Lists.newArrayList(_connections)) {
+            conn.shutdown(new ShutdownSignalException(true, false, "Connection dropped.",
+                conn.proxy));
+        }
+    }
+
+    /**
+     * Returns the number of messages waiting for delivery on the given queue, or -1 if there is
+     * no such queue.
+     */
+    public synchronized int getMessageCount (String queue)
+    {
+        Queue q = _queues.get(queue);
+        return (q == null) ? -1 : q.ready.size();
+    }
+
+    /**
+     * Returns the number of messages delivered on all open channels and not yet acknowledged.
+     */
+    public synchronized int getUnackedCount ()
+    {
+        int count = 0;
+        for (BrokerConnection conn : _connections) {
+            for (BrokerChannel channel : conn.channels) {
+                count += channel.unacked.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of messages published that no queue would take.
+     */
+    public synchronized int getUnroutableCount ()
+    {
+        return _unroutable;
+    }
+
+    /**
+     * Closes the given channel or connection, if it is one of a broker's, as the server would on
+     * an error or network failure, rather than as the application closing it.
+     *
+     * @return false if the given object isn't a broker's channel or connection.
+     */
+    public static boolean sever (Object proxy, String reason)
+    {
+        if (!Proxy.isProxyClass(proxy.getClass()) ||
+            !(Proxy.getInvocationHandler(proxy) instanceof Endpoint)) {
+            return false;
+        }
+        Endpoint endpoint = (Endpoint)Proxy.getInvocationHandler(proxy);
+        synchronized (endpoint.getBroker()) {
+            endpoint.shutdown(new ShutdownSignalException(endpoint instanceof BrokerConnection,
+                false, reason, proxy));
+        }
+        return true;
+    }
+
+    protected void declareExchange (BrokerChannel channel, String exchange, String type)
+        throws IOException
+    {
+        if (!type.equals("direct") && !type.equals("topic") && !type.equals("fanout")) {
+            throw channel.error("COMMAND_INVALID - unknown exchange type '" + type + "'");
+        }
+        String existing = _exchanges.get(exchange);
+        if (existing != null && !existing.equals(type)) {
+            throw channel.error("PRECONDITION_FAILED - cannot redeclare exchange '" + exchange +
+                "' of type '" + existing + "' as '" + type + "'");
+        }
+        _exchanges.put(exchange, type);
+    }
+
+    protected Queue declareQueue (BrokerChannel channel, String name, boolean passive,
+        boolean exclusive, boolean autoDelete)
+        throws IOException
+    {
+        if (name.length() == 0) {
+            name = "amq.gen-" + (++_lastId);
+        }
+        Queue queue = _queues.get(name);
+        if (queue == null) {
+            if (passive) {
+                throw channel.error("NOT_FOUND - no queue '" + name + "'");
+            }
+            queue = new Queue(name, exclusive ? channel.conn : null, autoDelete);
+            _queues.put(name, queue);
+        } else if (queue.owner != null && queue.owner != channel.conn) {
+            throw channel.error("RESOURCE_LOCKED - cannot obtain exclusive access to locked " +
+                "queue '" + name + "'");
+        }
+        return queue;
+    }
+
+    protected void bind (BrokerChannel channel, String queue, String exchange, String key)
+        throws IOException
+    {
+        Queue q = getQueue(channel, queue);
+        if (exchange.length() == 0) {
+            throw channel.error("ACCESS_REFUSED - operation not permitted on the default exchange");
+        }
+        if (!_exchanges.containsKey(exchange)) {
+            throw channel.error("NOT_FOUND - no exchange '" + exchange + "'");
+        }
+        Binding binding = new Binding(exchange, key, q);
+        if (!_bindings.contains(binding)) {
+            _bindings.add(binding);
+        }
+    }
+
+    protected void publish (BrokerChannel channel, String exchange, String key,
+        AMQP.BasicProperties props, byte[] body)
+        throws IOException
+    {
+        Set<Queue> targets = Sets.newLinkedHashSet();
+        String type = (exchange.length() == 0) ? null : _exchanges.get(exchange);
+        if (exchange.length() != 0 && type == null) {
+            throw channel.error("NOT_FOUND - no exchange '" + exchange + "'");
+        }
+        for (Binding binding : _bindings) {
+            if (binding.exchange.equals(exchange) && (type.equals("fanout") ||
+                (type.equals("topic") ? RoutingTrie.matches(binding.key, key) :
+                    binding.key.equals(key)))) {
+                targets.add(binding.queue);
+            }
+        }
+        if (targets.isEmpty() && _queues.containsKey(key)) {
+            // the default binding, which we honor on every exchange; see the class comment
+            targets.add(_queues.get(key));
+        }
+        if (targets.isEmpty()) {
+            _unroutable++;
+            return;
+        }
+
+        // the client is free to reuse the body once we return
+        Message message = new Message(exchange, key, props, body.clone(), false);
+        for (Queue queue : targets) {
+            queue.ready.add(message);
+            dispatch(queue);
+        }
+    }
+
+    protected Queue getQueue (BrokerChannel channel, String name)
+        throws IOException
+    {
+        Queue queue = _queues.get(name);
+        if (queue == null) {
+            throw channel.error("NOT_FOUND - no queue '" + name + "'");
+        }
+        return queue;
+    }
+
+    protected void deleteQueue (Queue queue)
+    {
+        queue.deleted = true;
+        _queues.remove(queue.name);
+        for (Binding binding : Lists.newArrayList(_bindings)) {
+            if (binding.queue == queue) {
+                _bindings.remove(binding);
+            }
+        }
+        for (Subscription sub : queue.consumers) {
+            sub.channel.consumers.remove(sub.tag);
+        }
+        queue.consumers.clear();
+    }
+
+    /**
+     * Hands the given queue's waiting messages to its consumers, round robin, for as long as any
+     * of them has room under its channel's prefetch limit.
+     */
+    protected void dispatch (Queue queue)
+    {
+        while (!queue.ready.isEmpty() && !queue.consumers.isEmpty()) {
+            int count = queue.consumers.size();
+            Subscription sub = null;
+            for (int ii = 0; ii < count && sub == null; ii++) {
+                Subscription next = queue.consumers.get((queue.next + ii) % count);
+                if (next.hasRoom()) {
+                    sub = next;
+                    queue.next = (queue.next + ii + 1) % count;
+                }
+            }
+            if (sub == null) {
+                return;
+            }
+            sub.deliver(queue, queue.ready.removeFirst());
+        }
+    }
+
+    protected void dispatchAll ()
+    {
+        for (Queue queue : Lists.newArrayList(_queues.values())) {
+            dispatch(queue);
+        }
+    }
+
+    /**
+     * Creates a proxy of the given interface whose methods each return the value given for their
+     * name, for the replies to declares and binds.
+     */
+    protected static Object reply (Class<?> type, Object... values)
+    {
+        if (type == void.class) {
+            return null;
+        }
+        final Map<String, Object> byName = Maps.newHashMap();
+        for (int ii = 0; ii < values.length; ii += 2) {
+            byName.put((String)values[ii], values[ii + 1]);
+        }
+        return newProxy(type, new InvocationHandler() {
+            public Object invoke (Object proxy, Method method, Object[] args) {
+                if (byName.containsKey(method.getName())) {
+                    return byName.get(method.getName());
+                }
+                if (method.getDeclaringClass() == Object.class) {
+                    return invokeObject(proxy, method, args, byName.toString());
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    protected static Object newProxy (Class<?> type, InvocationHandler handler)
+    {
+        return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+
+    /**
+     * Handles a call of one of Object's methods on a proxy, giving proxies identity semantics.
+     */
+    protected static Object invokeObject (Object proxy, Method method, Object[] args,
+        String description)
+    {
+        if (method.getName().equals("equals")) {
+            return proxy == args[0];
+        } else if (method.getName().equals("hashCode")) {
+            return System.identityHashCode(proxy);
+        }
+        return description;
+    }
+
+    /**
+     * What's common to connections and channels: the proxy that stands for them, whether they're
+     * open, and their shutdown listeners.  Every call on the proxy is made with the broker locked.
+     */
+    protected abstract class Endpoint
+        implements InvocationHandler
+    {
+        public Object invoke (Object proxy, Method method, Object[] args)
+            throws Throwable
+        {
+            args = (args == null) ? NO_ARGS : args;
+            String name = method.getName();
+            if (method.getDeclaringClass() == Object.class) {
+                return invokeObject(proxy, method, args, toString());
+            }
+            synchronized (InMemoryBroker.this) {
+                if (name.equals("isOpen")) {
+                    return _closeReason == null;
+                } else if (name.equals("getCloseReason")) {
+                    return _closeReason;
+                } else if (name.equals("addShutdownListener")) {
+                    _listeners.add((ShutdownListener)args[0]);
+                    if (_closeReason != null) {
+                        notify((ShutdownListener)args[0]);
+                    }
+                    return null;
+                } else if (name.equals("removeShutdownListener")) {
+                    _listeners.remove(args[0]);
+                    return null;
+                } else if (name.equals("notifyListeners")) {
+                    for (ShutdownListener listener : _listeners) {
+                        notify(listener);
+                    }
+                    return null;
+                } else if (name.equals("close") || name.equals("abort")) {
+                    if (_closeReason == null) {
+                        shutdown(new ShutdownSignalException(this instanceof BrokerConnection,
+                            true, "Closed by application.", proxy));
+                    } else if (name.equals("close")) {
+                        throw alreadyClosed();
+                    }
+                    return null;
+                }
+                return invoke(method, name, args);
+            }
+        }
+
+        /**
+         * Shuts this down for the given reason, if it's still open.
+         */
+        public abstract void shutdown (ShutdownSignalException reason);
+
+        /**
+         * Handles any call but those common to connections and channels.
+         */
+        protected abstract Object invoke (Method method, String name, Object[] args)
+            throws IOException;
+
+        protected abstract ExecutorService getDispatcher ();
+
+        protected InMemoryBroker getBroker ()
+        {
+            return InMemoryBroker.this;
+        }
+
+        /**
+         * Runs the given callback on the connection's thread, or right away if the connection has
+         * already shut down.
+         */
+        protected void callback (Runnable callback)
+        {
+            ExecutorService dispatcher = getDispatcher();
+            if (dispatcher.isShutdown()) {
+                callback.run();
+            } else {
+                dispatcher.execute(callback);
+            }
+        }
+
+        protected void notify (final ShutdownListener listener)
+        {
+            final ShutdownSignalException reason = _closeReason;
+            callback(new Runnable() {
+                public void run () {
+                    listener.shutdownCompleted(reason);
+                }
+            });
+        }
+
+        protected ShutdownSignalException alreadyClosed ()
+        {
+            return new ShutdownSignalException(_closeReason.isHardError(),
+                _closeReason.isInitiatedByApplication(), _closeReason.getReason(),
+                _closeReason.getReference());
+        }
+
+        protected void checkOpen ()
+        {
+            if (_closeReason != null) {
+                throw alreadyClosed();
+            }
+        }
+
+        protected ShutdownSignalException _closeReason;
+        protected final List<ShutdownListener> _listeners = Lists.newArrayList();
+    }
+
+    protected class BrokerConnection extends Endpoint
+    {
+        public final int id;
+        public final Connection proxy = (Connection)newProxy(Connection.class, this);
+        public final List<BrokerChannel> channels = Lists.newArrayList();
+
+        public BrokerConnection (int id)
+        {
+            this.id = id;
+        }
+
+        @Override
+        public void shutdown (ShutdownSignalException reason)
+        {
+            if (_closeReason != null) {
+                return;
+            }
+            _closeReason = reason;
+            _connections.remove(this);
+            for (BrokerChannel channel : Lists.newArrayList(channels)) {
+                channel.shutdown(reason);
+            }
+            for (Queue queue : Lists.newArrayList(_queues.values())) {
+                if (queue.owner == this) {
+                    deleteQueue(queue);
+                }
+            }
+            for (ShutdownListener listener : _listeners) {
+                notify(listener);
+            }
+            // let the callbacks we've queued run, then let the thread go
+            _dispatcher.shutdown();
+        }
+
+        @Override
+        public String toString ()
+        {
+            return "InMemoryBroker connection " + id;
+        }
+
+        @Override
+        protected Object invoke (Method method, String name, Object[] args)
+        {
+            if (name.equals("createChannel")) {
+                checkOpen();
+                BrokerChannel channel = new BrokerChannel(this, ++_lastChannel);
+                channels.add(channel);
+                return channel.proxy;
+            }
+            throw new UnsupportedOperationException(name);
+        }
+
+        @Override
+        protected ExecutorService getDispatcher ()
+        {
+            return _dispatcher;
+        }
+
+        protected final ExecutorService _dispatcher = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                public Thread newThread (Runnable r) {
+                    Thread thread = new Thread(r, "InMemoryBroker connection " + id);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        protected int _lastChannel;
+    }
+
+    protected class BrokerChannel extends Endpoint
+    {
+        public final BrokerConnection conn;
+        public final int number;
+        public final Channel proxy = (Channel)newProxy(Channel.class, this);
+
+        /** The messages delivered on this channel and not yet acked, by delivery tag. */
+        public final Map<Long, Unacked> unacked = Maps.newLinkedHashMap();
+
+        /** This channel's consumers, by consumer tag. */
+        public final Map<String, Subscription> consumers = Maps.newHashMap();
+
+        public int prefetch;
+        public long lastTag;
+
+        public BrokerChannel (BrokerConnection conn, int number)
+        {
+            this.conn = conn;
+            this.number = number;
+        }
+
+        @Override
+        public void shutdown (ShutdownSignalException reason)
+        {
+            if (_closeReason != null) {
+                return;
+            }
+            _closeReason = reason;
+            conn.channels.remove(this);
+            final ShutdownSignalException signal = reason;
+            for (final Subscription sub : Lists.newArrayList(consumers.values())) {
+                unsubscribe(sub);
+                callback(new Runnable() {
+                    public void run () {
+                        sub.consumer.handleShutdownSignal(sub.tag, signal);
+                    }
+                });
+            }
+
+            // put what we hadn't acked back at the front of its queue, in order, as redeliveries
+            List<Unacked> pending = Lists.newArrayList(unacked.values());
+            unacked.clear();
+            for (int ii = pending.size() - 1; ii >= 0; ii--) {
+                Unacked entry = pending.get(ii);
+                if (!entry.queue.deleted) {
+                    entry.queue.ready.addFirst(entry.message.redeliver());
+                }
+            }
+            for (ShutdownListener listener : _listeners) {
+                notify(listener);
+            }
+            dispatchAll();
+        }
+
+        /**
+         * Closes this channel with an error that the application didn't initiate, as the server
+         * does when a command fails, and returns the exception the command should throw.
+         */
+        public IOException error (String reason)
+        {
+            ShutdownSignalException sse = new ShutdownSignalException(false, false, reason, proxy);
+            shutdown(sse);
+            IOException ioe = new IOException(reason);
+            ioe.initCause(sse);
+            return ioe;
+        }
+
+        @Override
+        public String toString ()
+        {
+            return "InMemoryBroker channel " + number + " on connection " + conn.id;
+        }
+
+        @Override
+        protected Object invoke (Method method, String name, Object[] args)
+            throws IOException
+        {
+            if (name.equals("getChannelNumber")) {
+                return number;
+            } else if (name.equals("getConnection")) {
+                return conn.proxy;
+            }
+
+            checkOpen();
+            Class<?> type = method.getReturnType();
+            if (name.equals("basicQos")) {
+                // either just the count, or the size, count and whether it's global
+                prefetch = (Integer)args[args.length == 1 ? 0 : 1];
+                dispatchAll();
+                return null;
+
+            } else if (name.equals("exchangeDeclare")) {
+                declareExchange(this, (String)args[0], (String)args[1]);
+                return reply(type);
+
+            } else if (name.equals("queueDeclare")) {
+                boolean full = (args.length == 6);
+                Queue queue = declareQueue(this, (args.length == 0) ? "" : (String)args[0],
+                    full && (Boolean)args[1], (args.length == 0) || (full && (Boolean)args[3]),
+                    (args.length == 0) || (full && (Boolean)args[4]));
+                return reply(type, "getQueue", queue.name, "getMessageCount", queue.ready.size(),
+                    "getConsumerCount", queue.consumers.size());
+
+            } else if (name.equals("queueBind")) {
+                bind(this, (String)args[0], (String)args[1], (String)args[2]);
+                return reply(type);
+
+            } else if (name.equals("basicPublish")) {
+                // the properties and body are last, whether or not mandatory and immediate are
+                // given
+                publish(this, (String)args[0], (String)args[1],
+                    (AMQP.BasicProperties)args[args.length - 2], (byte[])args[args.length - 1]);
+                return null;
+
+            } else if (name.equals("basicConsume")) {
+                return consume(args);
+
+            } else if (name.equals("basicAck")) {
+                ack((Long)args[0], (Boolean)args[1]);
+                return null;
+
+            } else if (name.equals("basicCancel")) {
+                final Subscription sub = consumers.get(args[0]);
+                if (sub == null) {
+                    throw error("NOT_FOUND - unknown consumer tag '" + args[0] + "'");
+                }
+                unsubscribe(sub);
+                callback(new Runnable() {
+                    public void run () {
+                        sub.consumer.handleCancelOk(sub.tag);
+                    }
+                });
+                return null;
+            }
+            throw new UnsupportedOperationException(name);
+        }
+
+        protected String consume (Object[] args)
+            throws IOException
+        {
+            // the queue is first and the consumer last, with whether to auto-ack and a consumer
+            // tag between them in the longer forms
+            Queue queue = getQueue(this, (String)args[0]);
+            boolean noAck = (args.length > 2) && (Boolean)args[1];
+            String tag = (args.length > 3) ? (String)args[2] : "";
+            if (tag.length() == 0) {
+                tag = "amq.ctag-" + (++_lastId);
+            } else if (consumers.containsKey(tag)) {
+                throw error("NOT_ALLOWED - attempt to reuse consumer tag '" + tag + "'");
+            }
+            final Subscription sub =
+                new Subscription(this, queue, tag, (Consumer)args[args.length - 1], noAck);
+            consumers.put(tag, sub);
+            queue.consumers.add(sub);
+            callback(new Runnable() {
+                public void run () {
+                    sub.consumer.handleConsumeOk(sub.tag);
+                }
+            });
+            dispatch(queue);
+            return tag;
+        }
+
+        protected void ack (long tag, boolean multiple)
+            throws IOException
+        {
+            if (!multiple) {
+                if (unacked.remove(tag) == null) {
+                    throw error("PRECONDITION_FAILED - unknown delivery tag " + tag);
+                }
+            } else {
+                // a tag of 0 acks everything
+                for (Long pending : Lists.newArrayList(unacked.keySet())) {
+                    if (tag == 0 || pending <= tag) {
+                        unacked.remove(pending);
+                    }
+                }
+            }
+            dispatchAll();
+        }
+
+        protected void unsubscribe (Subscription sub)
+        {
+            consumers.remove(sub.tag);
+            sub.queue.consumers.remove(sub);
+            if (sub.queue.autoDelete && sub.queue.consumers.isEmpty() && !sub.queue.deleted) {
+                deleteQueue(sub.queue);
+            }
+        }
+
+        @Override
+        protected ExecutorService getDispatcher ()
+        {
+            return conn._dispatcher;
+        }
+    }
+
+    protected static class Queue
+    {
+        public final String name;
+
+        /** The connection that declared the queue exclusive, or null if it isn't. */
+        public final BrokerConnection owner;
+
+        public final boolean autoDelete;
+        public final LinkedList<Message> ready = Lists.newLinkedList();
+        public final List<Subscription> consumers = Lists.newArrayList();
+
+        /** The index of the consumer to try first for the next message. */
+        public int next;
+
+        public boolean deleted;
+
+        public Queue (String name, BrokerConnection owner, boolean autoDelete)
+        {
+            this.name = name;
+            this.owner = owner;
+            this.autoDelete = autoDelete;
+        }
+    }
+
+    protected static class Binding
+    {
+        public final String exchange;
+        public final String key;
+        public final Queue queue;
+
+        public Binding (String exchange, String key, Queue queue)
+        {
+            this.exchange = exchange;
+            this.key = key;
+            this.queue = queue;
+        }
+
+        @Override
+        public boolean equals (Object other)
+        {
+            if (!(other instanceof Binding)) {
+                return false;
+            }
+            Binding that = (Binding)other;
+            return exchange.equals(that.exchange) && key.equals(that.key) && queue == that.queue;
+        }
+
+        @Override
+        public int hashCode ()
+        {
+            return exchange.hashCode() ^ key.hashCode() ^ queue.name.hashCode();
+        }
+    }
+
+    protected static class Message
+    {
+        public final String exchange;
+        public final String routingKey;
+        public final AMQP.BasicProperties props;
+        public final byte[] body;
+        public final boolean redelivered;
+
+        public Message (String exchange, String routingKey, AMQP.BasicProperties props,
+            byte[] body, boolean redelivered)
+        {
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.props = props;
+            this.body = body;
+            this.redelivered = redelivered;
+        }
+
+        public Message redeliver ()
+        {
+            return redelivered ? this : new Message(exchange, routingKey, props, body, true);
+        }
+    }
+
+    protected static class Unacked
+    {
+        public final Queue queue;
+        public final Message message;
+
+        public Unacked (Queue queue, Message message)
+        {
+            this.queue = queue;
+            this.message = message;
+        }
+    }
+
+    protected static class Subscription
+    {
+        public final BrokerChannel channel;
+        public final Queue queue;
+        public final String tag;
+        public final Consumer consumer;
+        public final boolean noAck;
+
+        public Subscription (BrokerChannel channel, Queue queue, String tag, Consumer consumer,
+            boolean noAck)
+        {
+            this.channel = channel;
+            this.queue = queue;
+            this.tag = tag;
+            this.consumer = consumer;
+            this.noAck = noAck;
+        }
+
+        /**
+         * Returns whether this consumer may be sent another message under its channel's prefetch
+         * limit.
+         */
+        public boolean hasRoom ()
+        {
+            return noAck || channel.prefetch == 0 || channel.unacked.size() < channel.prefetch;
+        }
+
+        public void deliver (Queue from, final Message message)
+        {
+            long tag = ++channel.lastTag;
+            if (!noAck) {
+                channel.unacked.put(tag, new Unacked(from, message));
+            }
+            final Envelope envelope =
+                new Envelope(tag, message.redelivered, message.exchange, message.routingKey);
+            channel.callback(new Runnable() {
+                public void run () {
+                    try {
+                        consumer.handleDelivery(Subscription.this.tag, envelope, message.props,
+                            message.body);
+                    } catch (Throwable t) {
+                        logger.warning("Consumer failed to handle a delivery", "consumer",
+                            Subscription.this.tag, t);
+                    }
+                }
+            });
+        }
+    }
+
+    /** Exchange types, by name. */
+    protected final Map<String, String> _exchanges = Maps.newHashMap();
+    protected final Map<String, Queue> _queues = Maps.newLinkedHashMap();
+    protected final List<Binding> _bindings = Lists.newArrayList();
+    protected final List<BrokerConnection> _connections = Lists.newArrayList();
+
+    /** The last number used to name a connection, queue, or consumer. */
+    protected int _lastId;
+    protected int _unroutable;
+
+    protected static final Object[] NO_ARGS = new Object[0];
+
+    protected static final Logger logger = Logger.getLogger(InMemoryBroker.class);
+}
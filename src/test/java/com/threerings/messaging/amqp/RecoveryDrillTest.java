@@ -0,0 +1,471 @@
+//
+// $Id$
+
+package com.threerings.messaging.amqp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import com.rabbitmq.client.Connection;
+
+import com.samskivert.util.StringUtil;
+
+import com.threerings.messaging.AckingMessageListener;
+import com.threerings.messaging.AddressedMessageListener;
+import com.threerings.messaging.DestinationAddress;
+import com.threerings.messaging.FailurePolicy;
+import com.threerings.messaging.InMessage;
+import com.threerings.messaging.IntMessage;
+import com.threerings.messaging.ReplyingDestination;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs our AMQP client through scripted failures, with no server needed: an
+ * {@link InMemoryBroker} stands in for the server, and a {@link FaultInjectingChannelFactory}
+ * breaks its channels and connections.  Each scenario keeps a steady stream of messages or
+ * requests going, injects its failure partway through, and then checks that messages sent after
+ * the failure arrived, and that everything sent without error did.  Delivery is at least once,
+ * so a message being processed when its channel goes may arrive again; such duplicates are
+ * counted, but are no failure.
+ */
+public class RecoveryDrillTest
+{
+    /**
+     * The outcome of one scenario.
+     */
+    public static class Result
+    {
+        /** What failed. */
+        public final String scenario;
+
+        /** Whether anything sent after the failure arrived. */
+        public final boolean recovered;
+
+        /**
+         * How long after the failure the first message sent after it arrived, in milliseconds,
+         * or -1 if none did.
+         */
+        public final long recoveryMillis;
+
+        /** The number of messages or requests sent without error. */
+        public final int sent;
+
+        /** The number whose sending threw an exception. */
+        public final int failed;
+
+        /** The number of those sent without error that never arrived, or never got a reply. */
+        public final int lost;
+
+        /** The number of extra copies that arrived. */
+        public final int duplicated;
+
+        public Result (String scenario, long recoveryMillis, int sent, int failed, int lost,
+            int duplicated)
+        {
+            this.scenario = scenario;
+            this.recovered = (recoveryMillis >= 0);
+            this.recoveryMillis = recoveryMillis;
+            this.sent = sent;
+            this.failed = failed;
+            this.lost = lost;
+            this.duplicated = duplicated;
+        }
+
+        @Override
+        public String toString ()
+        {
+            return StringUtil.fieldsToString(this);
+        }
+    }
+
+    @Test
+    public void testPublishFailures ()
+    {
+        assertPassed(sends("publish failures", new Fault() {
+            public void inject (Rig rig) {
+                rig.faults.failPublishes(5);
+            }
+        }));
+    }
+
+    @Test
+    public void testDroppedChannels ()
+    {
+        assertPassed(sends("dropped channels", new Fault() {
+            public void inject (Rig rig) {
+                rig.faults.dropChannels();
+            }
+        }));
+    }
+
+    @Test
+    public void testKilledConsumers ()
+    {
+        assertPassed(sends("killed consumers", new Fault() {
+            public void inject (Rig rig) {
+                rig.faults.killConsumers();
+            }
+        }));
+    }
+
+    @Test
+    public void testLostConnection ()
+    {
+        assertPassed(sends("lost connection", new Fault() {
+            public void inject (Rig rig) {
+                rig.broker.dropConnections();
+            }
+        }));
+    }
+
+    @Test
+    public void testSlowChannels ()
+    {
+        assertPassed(requests("slow channels", new Fault() {
+            public void inject (Rig rig) {
+                rig.faults.setDelay(SLOW_DELAY);
+            }
+        }));
+    }
+
+    @Test
+    public void testFlakyChannels ()
+    {
+        assertPassed(requests("flaky channels", new Fault() {
+            public void inject (Rig rig) {
+                rig.faults.setDropRate(DROP_RATE);
+            }
+        }));
+    }
+
+    @Test
+    public void testLostConnectionDuringRequests ()
+    {
+        assertPassed(requests("lost connection during requests", new Fault() {
+            public void inject (Rig rig) {
+                rig.broker.dropConnections();
+            }
+        }));
+    }
+
+    @Test
+    public void testDroppedChannelsDuringRetries ()
+    {
+        assertPassed(retries("dropped channels during retries", new Fault() {
+            public void inject (Rig rig) {
+                rig.faults.dropChannels();
+            }
+        }));
+    }
+
+    @Test
+    public void testLostConnectionDuringRetries ()
+    {
+        assertPassed(retries("lost connection during retries", new Fault() {
+            public void inject (Rig rig) {
+                rig.broker.dropConnections();
+            }
+        }));
+    }
+
+    protected static void assertPassed (Result result)
+    {
+        assertTrue("Listener never started: " + result, result.sent > 0);
+        assertTrue("Nothing sent after the fault arrived: " + result, result.recovered);
+        assertEquals("Messages lost: " + result, 0, result.lost);
+    }
+
+    /**
+     * Runs a scenario that sends messages to a listener that processes each the first time.
+     */
+    protected Result sends (String scenario, Fault fault)
+    {
+        return sends(scenario, fault, null);
+    }
+
+    /**
+     * Runs a scenario that sends messages to a listener that fails the first attempt at each,
+     * so that the fault finds messages waiting to be retried.
+     */
+    protected Result retries (String scenario, Fault fault)
+    {
+        return sends(scenario, fault, RETRY_POLICY);
+    }
+
+    /**
+     * Runs a scenario that sends messages to a listener through a connection.
+     *
+     * @param policy If not null, the listener fails the first attempt at each message, and this
+     * says when it's retried.
+     */
+    protected Result sends (String scenario, Fault fault, final FailurePolicy policy)
+    {
+        final Rig rig = new Rig();
+        final Traffic traffic = new Traffic() {
+            @Override
+            protected void send (int seq)
+                throws IOException
+            {
+                rig.conn.getSender().sendMessage(new IntMessage(seq), ADDR);
+            }
+        };
+        try {
+            final Set<Integer> attempted = Sets.newSetFromMap(
+                new ConcurrentHashMap<Integer, Boolean>());
+            AddressedMessageListener listener = new AddressedMessageListener(
+                QUEUE, ADDR, new AckingMessageListener() {
+                @Override
+                public void processReceived (InMessage message)
+                {
+                    int seq = new IntMessage(message.getBody()).value;
+                    if (policy != null && attempted.add(seq)) {
+                        throw new IllegalStateException("Failing first attempt at " + seq);
+                    }
+                    traffic.arrived(seq);
+                }
+            });
+            if (policy != null) {
+                listener.setFailurePolicy(policy);
+            }
+            rig.conn.listen(listener);
+            return run(scenario, rig, traffic, fault);
+        } finally {
+            rig.close();
+        }
+    }
+
+    /**
+     * Runs a scenario that makes requests of a listener through a replying destination of its
+     * own, whose channels see the same faults as the connection's.
+     */
+    protected Result requests (String scenario, Fault fault)
+    {
+        final Rig rig = new Rig();
+        ReplyingDestination dest = null;
+        try {
+            rig.conn.listen(new AddressedMessageListener(QUEUE, ADDR, new AckingMessageListener() {
+                @Override
+                public void processReceived (InMessage message)
+                    throws IOException
+                {
+                    message.reply(new IntMessage(message.getBody()));
+                }
+            }));
+            dest = new AMQPReplyingDestination(rig.faults, ADDR);
+            final ReplyingDestination requester = dest;
+            Traffic traffic = new Traffic() {
+                @Override
+                protected void send (int seq)
+                    throws Exception
+                {
+                    byte[] reply = requester.sendMessage(new IntMessage(seq), REQUEST_TIMEOUT);
+                    arrived(ByteBuffer.wrap(reply).getInt());
+                }
+            };
+            return run(scenario, rig, traffic, fault);
+        } catch (IOException ioe) {
+            throw new RuntimeException("Could not create the replying destination.", ioe);
+        } finally {
+            if (dest != null) {
+                try {
+                    dest.close();
+                } catch (Exception e) {
+                    // we're done with it either way
+                }
+            }
+            rig.close();
+        }
+    }
+
+    /**
+     * Sends steadily for a while, injecting the fault partway through, and then waits for
+     * everything sent to arrive.
+     */
+    protected Result run (String scenario, Rig rig, Traffic traffic, Fault fault)
+    {
+        if (!rig.awaitListening()) {
+            return new Result(scenario, -1, 0, 0, 0, 0);
+        }
+        long faultAt = System.currentTimeMillis() + LEAD_TIME;
+        long end = faultAt + RUN_TIME;
+        boolean injected = false;
+        for (int seq = 0; System.currentTimeMillis() < end; seq++) {
+            if (!injected && System.currentTimeMillis() >= faultAt) {
+                fault.inject(rig);
+                faultAt = System.currentTimeMillis();
+                injected = true;
+            }
+            traffic.attempt(seq);
+            Uninterruptibles.sleepUninterruptibly(SEND_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        traffic.awaitArrivals(System.currentTimeMillis() + SETTLE_TIME);
+        return traffic.getResult(scenario, faultAt);
+    }
+
+    /**
+     * Something that goes wrong.
+     */
+    protected interface Fault
+    {
+        void inject (Rig rig);
+    }
+
+    /**
+     * A broker, the faults on its channels, and a connection to it.
+     */
+    protected static class Rig
+    {
+        public final InMemoryBroker broker = new InMemoryBroker();
+        public final FaultInjectingChannelFactory faults = new FaultInjectingChannelFactory(
+            broker.newChannelFactory(Collections.<String>emptySet()));
+        public final AMQPMessageConnection conn = new AMQPMessageConnection(CONFIG) {
+            @Override
+            protected Connection newConnection ()
+            {
+                return faults.wrap(broker.newConnection());
+            }
+        };
+
+        /**
+         * Waits for the connection to come up and its listener to start consuming.
+         */
+        public boolean awaitListening ()
+        {
+            long deadline = System.currentTimeMillis() + SETTLE_TIME;
+            while (System.currentTimeMillis() < deadline) {
+                AMQPConnectionStatus status = conn.getStatus();
+                if (status.connected && !status.listeners.isEmpty() &&
+                    status.listeners.get(0).consuming) {
+                    return true;
+                }
+                Uninterruptibles.sleepUninterruptibly(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+            }
+            return false;
+        }
+
+        public void close ()
+        {
+            try {
+                conn.close();
+            } catch (Exception e) {
+                // the next scenario gets a broker of its own
+            }
+        }
+    }
+
+    /**
+     * Keeps track of what was sent, and when, and what arrived.
+     */
+    protected abstract static class Traffic
+    {
+        /**
+         * Sends a message or request with the given sequence number, noting whether it went.
+         */
+        public void attempt (int seq)
+        {
+            long now = System.currentTimeMillis();
+            try {
+                send(seq);
+                _sent.put(seq, now);
+            } catch (Exception e) {
+                _failed.incrementAndGet();
+            }
+        }
+
+        /**
+         * Notes the arrival of a message or reply.
+         */
+        public void arrived (int seq)
+        {
+            if (_arrived.putIfAbsent(seq, System.currentTimeMillis()) != null) {
+                _duplicated.incrementAndGet();
+            }
+        }
+
+        /**
+         * Waits until everything sent has arrived, or the given time has passed.
+         */
+        public void awaitArrivals (long deadline)
+        {
+            while (!_arrived.keySet().containsAll(_sent.keySet()) &&
+                   System.currentTimeMillis() < deadline) {
+                Uninterruptibles.sleepUninterruptibly(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        public Result getResult (String scenario, long faultAt)
+        {
+            long recovery = -1;
+            int lost = 0;
+            for (Map.Entry<Integer, Long> entry : _sent.entrySet()) {
+                Long arrived = _arrived.get(entry.getKey());
+                if (arrived == null) {
+                    lost++;
+                } else if (entry.getValue() >= faultAt &&
+                           (recovery < 0 || arrived - faultAt < recovery)) {
+                    recovery = arrived - faultAt;
+                }
+            }
+            return new Result(scenario, recovery, _sent.size(), _failed.get(), lost,
+                _duplicated.get());
+        }
+
+        protected abstract void send (int seq)
+            throws Exception;
+
+        /** When each message was sent, by sequence number, for those sent without error. */
+        protected final Map<Integer, Long> _sent = new ConcurrentHashMap<Integer, Long>();
+
+        /** When each message first arrived, by sequence number. */
+        protected final ConcurrentHashMap<Integer, Long> _arrived =
+            new ConcurrentHashMap<Integer, Long>();
+
+        protected final AtomicInteger _failed = new AtomicInteger();
+        protected final AtomicInteger _duplicated = new AtomicInteger();
+    }
+
+    protected static final AMQPMessageConfig CONFIG =
+        new AMQPMessageConfig("localhost", "/", "guest", "guest", "/data", 0);
+    protected static final DestinationAddress ADDR =
+        new DestinationAddress("drill", "recovery", "ping", "drill");
+    protected static final String QUEUE = "drill.recovery";
+
+    /**
+     * How long to send before injecting the fault, and for how long after, in milliseconds.  The
+     * connection waits 5 seconds before reconnecting its listeners, so we must outlast that.
+     */
+    protected static final long LEAD_TIME = 500;
+    protected static final long RUN_TIME = 7000;
+
+    /** How long to wait for stragglers, and for listeners to start, in milliseconds. */
+    protected static final long SETTLE_TIME = 10000;
+
+    protected static final long SEND_INTERVAL = 5;
+    protected static final long POLL_INTERVAL = 10;
+    protected static final int REQUEST_TIMEOUT = 2000;
+
+    /** How long every channel operation takes in the slow scenario, in milliseconds. */
+    protected static final long SLOW_DELAY = 20;
+
+    /**
+     * How the retry scenarios retry their failed messages: after long enough that the fault
+     * finds plenty waiting.
+     */
+    protected static final FailurePolicy RETRY_POLICY = new FailurePolicy(5, 1000, 1000, null);
+
+    /** The chance each channel operation drops its channel in the flaky scenario. */
+    protected static final double DROP_RATE = 0.02;
+}
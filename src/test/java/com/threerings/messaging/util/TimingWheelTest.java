@@ -0,0 +1,77 @@
+//
+// $Id$
+
+package com.threerings.messaging.util;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests the order in which {@link TimingWheel} expires its items.
+ */
+public class TimingWheelTest
+{
+    @Test
+    public void testSameTickInOrderAdded ()
+    {
+        TimingWheel<Integer> wheel = new TimingWheel<Integer>(10, 0);
+        for (int ii = 0; ii < 5; ii++) {
+            wheel.add(ii, 50);
+        }
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), advance(wheel, 100));
+    }
+
+    @Test
+    public void testDeadlinesBeforeOrderAdded ()
+    {
+        TimingWheel<Integer> wheel = new TimingWheel<Integer>(10, 0);
+        wheel.add(2, 90);
+        wheel.add(0, 30);
+        wheel.add(1, 30);
+        assertEquals(Arrays.asList(0, 1, 2), advance(wheel, 100));
+    }
+
+    @Test
+    public void testCascadeInOrderAdded ()
+    {
+        // added now, these are due too far out for the lowest wheel, so they wait in the one
+        // above, and are moved down after those added later go straight to the lowest
+        TimingWheel<Integer> wheel = new TimingWheel<Integer>(1, 0);
+        wheel.add(0, 70);
+        wheel.add(1, 70);
+        assertEquals(0, advance(wheel, 10).size());
+        wheel.add(2, 70);
+        wheel.add(3, 70);
+        assertEquals(Arrays.asList(0, 1, 2, 3), advance(wheel, 100));
+    }
+
+    @Test
+    public void testCascadeThroughWheelsInOrderAdded ()
+    {
+        // the first are put two wheels up, the next one up, and the last in the lowest
+        TimingWheel<Integer> wheel = new TimingWheel<Integer>(1, 0);
+        wheel.add(0, 5000);
+        wheel.add(1, 5000);
+        assertEquals(0, advance(wheel, 4000).size());
+        wheel.add(2, 5000);
+        wheel.add(3, 5000);
+        assertEquals(0, advance(wheel, 4990).size());
+        wheel.add(4, 5000);
+        wheel.add(5, 5000);
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5), advance(wheel, 5000));
+    }
+
+    protected static List<Integer> advance (TimingWheel<Integer> wheel, long now)
+    {
+        List<Integer> expired = Lists.newArrayList();
+        int count = wheel.advance(now, expired);
+        assertEquals(count, expired.size());
+        return expired;
+    }
+}